@@ -0,0 +1,123 @@
+package io.seqware.pancancer.benchmarks;
+
+import io.seqware.pancancer.BgzfWriter;
+import io.seqware.pancancer.ParallelBgzf;
+import io.seqware.pancancer.TarArchive;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compressing upload archives: single threaded gzip as the upload tool does it against ParallelBgzf on 1, 4 and all cores. The
+ * inputs are a plain VCF and a tar of a submission, whose VCFs and indexes are already compressed and barely shrink.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    private static final int RECORDS = 400000;
+
+    @Param({ "vcf", "tar" })
+    public String input;
+
+    @Param({ "gzip", "bgzf1", "bgzf4", "bgzfAll" })
+    public String compressor;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] vcf = vcf(new Random(42));
+        if ("vcf".equals(input)) {
+            data = vcf;
+            return;
+        }
+        // a submission: compressed VCFs and their indexes, a plain text result and the metadata
+        File directory = Files.createTempDirectory("submission").toFile();
+        try {
+            int part = vcf.length / 4;
+            for (int i = 0; i < 3; i++) {
+                try (BgzfWriter out = new BgzfWriter(new FileOutputStream(new File(directory, "calls_" + i + ".vcf.gz")))) {
+                    out.write(vcf, i * part, part);
+                }
+                try (BgzfWriter out = new BgzfWriter(new FileOutputStream(new File(directory, "calls_" + i + ".vcf.gz.tbi")))) {
+                    out.write(vcf, i * part, part / 100);
+                }
+            }
+            Files.write(new File(directory, "calls.bedpe.txt").toPath(), Arrays.copyOfRange(vcf, 3 * part, vcf.length));
+            Files.write(new File(directory, "analysis.xml").toPath(), "<ANALYSIS_SET/>\n".getBytes(StandardCharsets.UTF_8));
+            ByteArrayOutputStream tar = new ByteArrayOutputStream();
+            new TarArchive(Collections.<String, String> emptyMap()).write(directory, tar);
+            data = tar.toByteArray();
+        } finally {
+            File[] files = directory.listFiles();
+            for (File file : files == null ? new File[0] : files) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private static byte[] vcf(Random random) {
+        StringBuilder text = new StringBuilder("##fileformat=VCFv4.1\n#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\n");
+        String bases = "ACGT";
+        for (int i = 0; i < RECORDS; i++) {
+            text.append(1 + i / 20000).append('\t').append(1000 + i * 97).append("\t.\t").append(bases.charAt(random.nextInt(4)))
+                    .append('\t').append(bases.charAt(random.nextInt(4))).append('\t').append(random.nextInt(100))
+                    .append("\tPASS\tDP=").append(random.nextInt(200)).append(";AF=0.").append(random.nextInt(100)).append('\n');
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public long compress() throws IOException {
+        CountingSink sink = new CountingSink();
+        int cores = Runtime.getRuntime().availableProcessors();
+        try (OutputStream out = "gzip".equals(compressor) ? new GZIPOutputStream(sink, 1 << 16) : new ParallelBgzf(sink,
+                "bgzf1".equals(compressor) ? 1 : "bgzf4".equals(compressor) ? 4 : cores)) {
+            out.write(data);
+        }
+        return sink.count;
+    }
+
+    /**
+     * Discards the output, only its size is kept.
+     */
+    private static class CountingSink extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package io.seqware.pancancer.benchmarks;
+
+import io.seqware.pancancer.DEWrapperWorkflow;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import net.sourceforge.seqware.pipeline.workflowV2.model.Workflow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time and allocation of setupWorkflow plus buildWorkflow for donors from one to 500 tumour aliquots, with the default ini and one
+ * padded with thousands of EMBL entries, with the default options and with every option that adds jobs. Run with -prof gc for the
+ * allocation rate, ScalingCheck then fails the build if either grows faster than linearly with the aliquots.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DagConstructionBenchmark {
+
+    @Param({ "1", "10", "100", "500" })
+    public int aliquots;
+
+    @Param({ "0", "5000" })
+    public int iniEntries;
+
+    @Param({ "false", "true" })
+    public boolean allOptions;
+
+    private Map<String, String> configs;
+
+    @Setup
+    public void setup() throws IOException {
+        configs = SyntheticDonor.configs(aliquots, iniEntries, allOptions);
+    }
+
+    @Benchmark
+    public Workflow build() {
+        DEWrapperWorkflow workflow = new DEWrapperWorkflow();
+        // the workflow must not see changes a previous invocation made
+        workflow.setConfigs(new HashMap<>(configs));
+        workflow.setupWorkflow();
+        workflow.buildWorkflow();
+        return workflow.getWorkflow();
+    }
+}
@@ -0,0 +1,115 @@
+package io.seqware.pancancer.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the JMH JSON result and fails if the time or the bytes allocated per operation of a benchmark grow faster than linearly in
+ * the number of aliquots. For every combination of the other parameters the growth exponent is taken between the two largest
+ * aliquot counts, where fixed costs no longer hide it: 1.0 is linear, 2.0 quadratic.
+ *
+ * Usage: ScalingCheck &lt;jmh result.json&gt; [max exponent]
+ */
+public class ScalingCheck {
+
+    private static final String SCALED_PARAM = "aliquots";
+    private static final Pattern PARAM = Pattern.compile("\"([^\"]+)\"\\s*:\\s*\"([^\"]*)\"");
+    private static final Pattern SCORE = Pattern.compile("\"score\"\\s*:\\s*\"?([-0-9.eE+]+|NaN)\"?");
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ScalingCheck <jmh result.json> [max exponent]");
+            System.exit(1);
+        }
+        double maxExponent = args.length > 1 ? Double.parseDouble(args[1]) : 1.25;
+        String json = new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8);
+
+        // benchmark and the other parameters, then aliquots to time and allocation
+        Map<String, TreeMap<Integer, double[]>> series = new TreeMap<>();
+        String[] results = json.split("\"benchmark\"\\s*:\\s*\"");
+        for (int i = 1; i < results.length; i++) {
+            String result = results[i];
+            String benchmark = result.substring(0, result.indexOf('"'));
+            int paramsStart = result.indexOf("\"params\"");
+            if (paramsStart < 0) {
+                continue;
+            }
+            String params = result.substring(result.indexOf('{', paramsStart) + 1, result.indexOf('}', paramsStart));
+            Integer scaled = null;
+            StringBuilder key = new StringBuilder(benchmark);
+            Matcher param = PARAM.matcher(params);
+            while (param.find()) {
+                if (SCALED_PARAM.equals(param.group(1))) {
+                    scaled = Integer.valueOf(param.group(2));
+                } else {
+                    key.append(' ').append(param.group(1)).append('=').append(param.group(2));
+                }
+            }
+            if (scaled == null) {
+                continue;
+            }
+            double time = score(result, "\"primaryMetric\"");
+            double allocation = score(result, "gc.alloc.rate.norm\"");
+            if (!series.containsKey(key.toString())) {
+                series.put(key.toString(), new TreeMap<Integer, double[]>());
+            }
+            series.get(key.toString()).put(scaled, new double[] { time, allocation });
+        }
+
+        List<String> failures = new ArrayList<>();
+        for (Map.Entry<String, TreeMap<Integer, double[]>> entry : series.entrySet()) {
+            TreeMap<Integer, double[]> points = entry.getValue();
+            if (points.size() < 2) {
+                continue;
+            }
+            int largest = points.lastKey();
+            int second = points.lowerKey(largest);
+            String[] metrics = { "time", "allocation" };
+            for (int m = 0; m < metrics.length; m++) {
+                double low = points.get(second)[m];
+                double high = points.get(largest)[m];
+                if (Double.isNaN(low) || Double.isNaN(high) || low <= 0) {
+                    continue;
+                }
+                double exponent = Math.log(high / low) / Math.log((double) largest / second);
+                String line = String.format(Locale.ROOT, "%s %s: %d -> %d %s grows with exponent %.2f", entry.getKey(), metrics[m],
+                        second, largest, SCALED_PARAM, exponent);
+                System.out.println(line);
+                if (exponent > maxExponent) {
+                    failures.add(line);
+                }
+            }
+        }
+        if (series.isEmpty()) {
+            System.err.println("no results with a " + SCALED_PARAM + " parameter in " + args[0]);
+            System.exit(1);
+        }
+        for (String failure : failures) {
+            System.err.println("super-linear: " + failure + ", more than " + maxExponent);
+        }
+        if (!failures.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the first score after the marker, NaN if the metric was not measured
+     */
+    private static double score(String result, String marker) {
+        int start = result.indexOf(marker);
+        if (start < 0) {
+            return Double.NaN;
+        }
+        Matcher score = SCORE.matcher(result);
+        return score.find(start) ? Double.parseDouble(score.group(1)) : Double.NaN;
+    }
+}
@@ -0,0 +1,104 @@
+package io.seqware.pancancer.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Builds the configuration of a made up donor from the default ini, with any number of tumour aliquots and padding entries.
+ */
+public class SyntheticDonor {
+
+    /** the ini the synthetic donor starts from, relative to the project directory Maven runs in */
+    public static final String DEFAULT_INI = System.getProperty("benchmark.ini", "workflow/config/DEWrapperWorkflow.ini");
+
+    private SyntheticDonor() {
+    }
+
+    /**
+     *
+     * @param aliquots
+     *            number of tumour aliquots
+     * @param iniEntries
+     *            extra EMBL entries, each becomes a line of the EMBL ini
+     * @param allOptions
+     *            turn on the per-aliquot, split, sharded, sampled, metrics, pre-pull, checkpoint, BAM release and
+     *            disk admission options that add jobs or commands
+     * @return the configuration
+     * @throws IOException
+     */
+    public static Map<String, String> configs(int aliquots, int iniEntries, boolean allOptions) throws IOException {
+        Map<String, String> configs = readIni(DEFAULT_INI);
+
+        // names derived from a fixed seed so every fork builds the same strings
+        List<String> aliquotIds = new ArrayList<>();
+        List<String> analysisIds = new ArrayList<>();
+        List<String> bams = new ArrayList<>();
+        List<String> s3Urls = new ArrayList<>();
+        for (int i = 0; i < aliquots; i++) {
+            aliquotIds.add(UUID.nameUUIDFromBytes(("aliquot" + i).getBytes(StandardCharsets.UTF_8)).toString());
+            String analysisId = UUID.nameUUIDFromBytes(("analysis" + i).getBytes(StandardCharsets.UTF_8)).toString();
+            analysisIds.add(analysisId);
+            bams.add(analysisId.replace("-", "") + ".bam");
+            s3Urls.add("s3://bucket/" + analysisId + ".bam");
+        }
+        configs.put("tumourAliquotIds", join(aliquotIds));
+        configs.put("tumourAnalysisIds", join(analysisIds));
+        configs.put("tumourBams", join(bams));
+        configs.put("tumourBamS3Urls", join(s3Urls));
+
+        for (int i = 0; i < iniEntries; i++) {
+            configs.put("EMBL.synthetic_" + i, "/datastore/synthetic/value_" + i);
+        }
+
+        if (allOptions) {
+            configs.put("downloadParallelism", "4");
+            configs.put("emblPerAliquot", "true");
+            configs.put("emblParallelism", "4");
+            configs.put("dkfzSplitRun", "true");
+            configs.put("dkfzSnvShards", "24");
+            configs.put("resourcePartitioning", "true");
+            configs.put("containerSampling", "true");
+            configs.put("metricsExporter", "true");
+            configs.put("imagePrePull", "true");
+            configs.put("checkpointDir", "/datastore/checkpoints");
+            configs.put("cleanupBams", "true");
+            configs.put("diskAdmission", "true");
+        }
+        return configs;
+    }
+
+    private static Map<String, String> readIni(String ini) throws IOException {
+        Map<String, String> configs = new LinkedHashMap<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(ini), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                int equals = line.indexOf('=');
+                if (line.isEmpty() || line.startsWith("#") || equals < 0) {
+                    continue;
+                }
+                configs.put(line.substring(0, equals), line.substring(equals + 1));
+            }
+        }
+        return configs;
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder joined = new StringBuilder();
+        for (String value : values) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(value);
+        }
+        return joined.toString();
+    }
+}
@@ -0,0 +1,88 @@
+package io.seqware.pancancer.benchmarks;
+
+import io.seqware.pancancer.BgzfWriter;
+import io.seqware.pancancer.VcfConcat;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Gathering the sharded DKFZ SNV calls: the same records split over 1 to 24 shards are concatenated and indexed, the time should
+ * not depend much on the shard count since most blocks are copied without inflating them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VcfConcatBenchmark {
+
+    private static final int RECORDS = 200000;
+
+    @Param({ "1", "4", "24" })
+    public int shards;
+
+    private File directory;
+    private List<File> shardFiles;
+    private File output;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("vcfconcat").toFile();
+        shardFiles = new ArrayList<>();
+        Random random = new Random(42);
+        int perShard = RECORDS / shards;
+        for (int shard = 0; shard < shards; shard++) {
+            File file = new File(directory, "shard_" + shard + ".vcf.gz");
+            try (BgzfWriter out = new BgzfWriter(new BufferedOutputStream(new FileOutputStream(file)))) {
+                StringBuilder text = new StringBuilder("##fileformat=VCFv4.1\n#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\n");
+                for (int i = 0; i < perShard; i++) {
+                    // one chromosome per shard, positions ascending
+                    text.append(shard + 1).append('\t').append(1000 + i * 97).append("\t.\tA\tG\t").append(random.nextInt(100))
+                            .append("\tPASS\tDP=").append(random.nextInt(200)).append(";AF=0.").append(random.nextInt(100)).append('\n');
+                    if (text.length() > 1 << 16) {
+                        out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+                        text.setLength(0);
+                    }
+                }
+                out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            shardFiles.add(file);
+        }
+        output = new File(directory, "merged.vcf.gz");
+    }
+
+    @Benchmark
+    public long concat() throws IOException {
+        return VcfConcat.concat(shardFiles, output);
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            file.delete();
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,140 @@
+package io.seqware.pancancer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a BGZF file one block at a time, keeping both the compressed block as found on disk and its inflated content.
+ */
+public class BgzfReader {
+
+    private final InputStream in;
+    private final String name;
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] raw = new byte[BgzfWriter.MAX_BLOCK_SIZE];
+    private final byte[] data = new byte[BgzfWriter.MAX_BLOCK_SIZE];
+    private int rawLength = 0;
+    private int dataLength = 0;
+
+    /**
+     *
+     * @param in
+     * @param name
+     *            used in error messages
+     */
+    public BgzfReader(InputStream in, String name) {
+        this.in = in;
+        this.name = name;
+    }
+
+    /**
+     * Reads and inflates the next block.
+     *
+     * @return false at the end of the file
+     * @throws IOException
+     *             when the file is not BGZF or a block is corrupt
+     */
+    public boolean next() throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return false;
+        }
+        raw[0] = (byte) first;
+        readFully(raw, 1, 11);
+        if ((raw[0] & 0xff) != 31 || (raw[1] & 0xff) != 139 || raw[2] != 8 || (raw[3] & 4) == 0) {
+            throw new IOException(name + " is not a BGZF file");
+        }
+        int xlen = (raw[10] & 0xff) | (raw[11] & 0xff) << 8;
+        readFully(raw, 12, xlen);
+        int blockSize = -1;
+        for (int i = 12; i + 4 <= 12 + xlen;) {
+            int slen = (raw[i + 2] & 0xff) | (raw[i + 3] & 0xff) << 8;
+            if (raw[i] == 66 && raw[i + 1] == 67 && slen == 2) {
+                blockSize = ((raw[i + 4] & 0xff) | (raw[i + 5] & 0xff) << 8) + 1;
+            }
+            i += 4 + slen;
+        }
+        if (blockSize < 0) {
+            throw new IOException(name + " has a gzip member without the BGZF block size");
+        }
+        readFully(raw, 12 + xlen, blockSize - 12 - xlen);
+        rawLength = blockSize;
+
+        int cdataOffset = 12 + xlen;
+        int cdataLength = blockSize - cdataOffset - BgzfWriter.FOOTER_SIZE;
+        int expectedCrc = readInt(blockSize - 8);
+        dataLength = readInt(blockSize - 4);
+        inflater.reset();
+        inflater.setInput(raw, cdataOffset, cdataLength);
+        try {
+            int inflated = 0;
+            while (inflated < dataLength && !inflater.finished()) {
+                int n = inflater.inflate(data, inflated, dataLength - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += n;
+            }
+            if (inflated != dataLength) {
+                throw new IOException(name + " has a truncated block at its end");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(name + " has a corrupt block", e);
+        }
+        crc.reset();
+        crc.update(data, 0, dataLength);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IOException(name + " has a block failing its CRC check");
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return the compressed block as read, valid up to getRawLength()
+     */
+    public byte[] getRaw() {
+        return raw;
+    }
+
+    public int getRawLength() {
+        return rawLength;
+    }
+
+    /**
+     *
+     * @return the inflated content of the block, valid up to getDataLength()
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+
+    private int readInt(int offset) {
+        return (raw[offset] & 0xff) | (raw[offset + 1] & 0xff) << 8 | (raw[offset + 2] & 0xff) << 16 | (raw[offset + 3] & 0xff) << 24;
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = in.read(b, off, len);
+            if (n < 0) {
+                throw new EOFException(name + " ends in the middle of a block");
+            }
+            off += n;
+            len -= n;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package io.seqware.pancancer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes BGZF, the blocked gzip used by bgzip, tabix and samtools. Every block is a complete gzip member carrying its compressed size
+ * in a BC extra field, so readers can seek to any block. Compressed blocks produced elsewhere can be copied through unchanged.
+ */
+public class BgzfWriter extends OutputStream {
+
+    /** largest uncompressed payload of a block, the same limit bgzip uses */
+    public static final int MAX_BLOCK_INPUT = 0xff00;
+    /** largest block on disk */
+    public static final int MAX_BLOCK_SIZE = 0x10000;
+    public static final int HEADER_SIZE = 18;
+    public static final int FOOTER_SIZE = 8;
+    /** the empty block bgzip writes at the end of every file */
+    public static final byte[] EOF_BLOCK = { 31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+
+    private final OutputStream out;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer = new byte[MAX_BLOCK_INPUT];
+    private final byte[] compressed = new byte[MAX_BLOCK_SIZE];
+    private int buffered = 0;
+    private long address = 0;
+
+    public BgzfWriter(OutputStream out) {
+        this(out, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public BgzfWriter(OutputStream out, int level) {
+        this.out = out;
+        this.deflater = new Deflater(level, true);
+    }
+
+    /**
+     *
+     * @return the file offset at which the next block starts
+     */
+    public long getAddress() {
+        return address;
+    }
+
+    /**
+     *
+     * @return the virtual offset of the next byte written
+     */
+    public long getVirtualOffset() {
+        return (address << 16) | buffered;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        buffer[buffered++] = (byte) b;
+        // full blocks are written straight away so the virtual offset always points into the current block
+        if (buffered == buffer.length) {
+            flushBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, buffer.length - buffered);
+            System.arraycopy(b, off, buffer, buffered, n);
+            buffered += n;
+            off += n;
+            len -= n;
+            if (buffered == buffer.length) {
+                flushBlock();
+            }
+        }
+    }
+
+    /**
+     * Compresses whatever is buffered into a block of its own.
+     *
+     * @throws IOException
+     */
+    public void flushBlock() throws IOException {
+        if (buffered > 0) {
+            writeBlock(buffer, 0, buffered);
+            buffered = 0;
+        }
+    }
+
+    /**
+     * Copies an already compressed block, the caller is responsible for it being a valid BGZF block.
+     *
+     * @param block
+     * @param off
+     * @param len
+     * @throws IOException
+     */
+    public void writeRawBlock(byte[] block, int off, int len) throws IOException {
+        flushBlock();
+        out.write(block, off, len);
+        address += len;
+    }
+
+    private void writeBlock(byte[] data, int off, int len) throws IOException {
+        deflater.reset();
+        deflater.setInput(data, off, len);
+        deflater.finish();
+        int size = 0;
+        int limit = MAX_BLOCK_SIZE - HEADER_SIZE - FOOTER_SIZE;
+        while (!deflater.finished() && size < limit) {
+            size += deflater.deflate(compressed, size, limit - size);
+        }
+        if (!deflater.finished()) {
+            // incompressible input grew past the block limit, halve it
+            int half = len / 2;
+            writeBlock(data, off, half);
+            writeBlock(data, off + half, len - half);
+            return;
+        }
+        crc.reset();
+        crc.update(data, off, len);
+        writeBlock(out, compressed, size, crc.getValue(), len);
+        address += HEADER_SIZE + size + FOOTER_SIZE;
+    }
+
+    /**
+     * Writes one block around raw deflate data.
+     *
+     * @param out
+     * @param deflated
+     * @param size
+     *            bytes of deflated data
+     * @param crc
+     *            CRC32 of the uncompressed data
+     * @param inputSize
+     *            bytes of uncompressed data
+     * @throws IOException
+     */
+    public static void writeBlock(OutputStream out, byte[] deflated, int size, long crc, int inputSize) throws IOException {
+        int blockSize = HEADER_SIZE + size + FOOTER_SIZE;
+        byte[] header = { 31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, (byte) (blockSize - 1), (byte) ((blockSize - 1) >> 8) };
+        out.write(header);
+        out.write(deflated, 0, size);
+        writeInt(out, (int) crc);
+        writeInt(out, inputSize);
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >> 8);
+        out.write(value >> 16);
+        out.write(value >> 24);
+    }
+
+    /**
+     * Flushes the last block and appends the end of file marker without closing the underlying stream.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        flushBlock();
+        out.write(EOF_BLOCK);
+        address += EOF_BLOCK.length;
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        deflater.end();
+        out.close();
+    }
+}
@@ -0,0 +1,175 @@
+package io.seqware.pancancer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Completion markers of workflow jobs. A marker holds the key of the job, a digest of its command, and the size, modification time
+ * and MD5 of every file the job produced. A job whose marker has its current key and whose files are unchanged is skipped when the
+ * workflow is launched again.
+ *
+ * <pre>
+ * Checkpoint -check [-verify] &lt;marker&gt; &lt;key&gt;              exit status 0 if the marker is valid
+ * Checkpoint -write [-t threads] &lt;marker&gt; &lt;key&gt; [path]...  records the files below the paths
+ * </pre>
+ *
+ * The check compares sizes and modification times, -verify hashes the files again. Paths are recorded resolved, so a workspace
+ * reached through a symbolic link from a new working directory still matches. Paths that do not exist when the marker is written are
+ * reported and left out.
+ */
+public class Checkpoint {
+
+    private static final String USAGE = "Usage: Checkpoint -check [-verify] <marker> <key>\n"
+            + "       Checkpoint -write [-t threads] <marker> <key> [path]...";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        boolean verify = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String mode = null;
+        List<String> operands = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-check".equals(args[i]) || "-write".equals(args[i])) {
+                mode = args[i].substring(1);
+            } else if ("-verify".equals(args[i])) {
+                verify = true;
+            } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                operands.add(args[i]);
+            }
+        }
+        if (mode == null || operands.size() < 2 || ("check".equals(mode) && operands.size() != 2) || threads < 1) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        File marker = new File(operands.get(0));
+        String key = operands.get(1);
+        if ("check".equals(mode)) {
+            String stale = check(marker, key, verify);
+            if (stale != null) {
+                System.err.println(marker + ": " + stale);
+                System.exit(1);
+            }
+        } else {
+            write(marker, key, operands.subList(2, operands.size()), threads);
+        }
+    }
+
+    /**
+     *
+     * @param marker
+     * @param key
+     *            the key of the job as built now
+     * @param verify
+     *            hash the recorded files again
+     * @return why the marker is not valid, null if it is
+     * @throws IOException
+     */
+    public static String check(File marker, String key, boolean verify) throws IOException {
+        if (!marker.isFile()) {
+            return "no checkpoint";
+        }
+        List<String> lines = Files.readAllLines(marker.toPath(), StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals("key " + key)) {
+            return "the job changed since the checkpoint";
+        }
+        for (String line : lines.subList(1, lines.size())) {
+            // file size mtime md5 path, the path may contain spaces
+            String[] fields = line.split(" ", 5);
+            if (fields.length != 5 || !"file".equals(fields[0])) {
+                return "malformed line '" + line + "'";
+            }
+            File file = new File(fields[4]);
+            if (!file.isFile()) {
+                return file + " is missing";
+            }
+            if (file.length() != Long.parseLong(fields[1]) || file.lastModified() != Long.parseLong(fields[2])) {
+                return file + " changed since the checkpoint";
+            }
+            if (verify && !Checksums.hex(Checksums.md5(file)).equals(fields[3])) {
+                return file + " does not match its checksum";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Hashes every file below the paths, one file per thread, and replaces the marker.
+     *
+     * @param marker
+     * @param key
+     * @param paths
+     *            files or directories the job produced
+     * @param threads
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void write(File marker, String key, List<String> paths, int threads) throws IOException, InterruptedException {
+        final List<File> files = new ArrayList<>();
+        for (String path : paths) {
+            File file = new File(path).getCanonicalFile();
+            if (!file.exists()) {
+                System.err.println(path + ": missing, not recorded");
+                continue;
+            }
+            Files.walkFileTree(file.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path visited, BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile()) {
+                        files.add(visited.toFile());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, files.size())));
+        List<Future<String>> digests = new ArrayList<>();
+        for (final File file : files) {
+            digests.add(pool.submit(new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    return Checksums.hex(Checksums.md5(file));
+                }
+            }));
+        }
+        pool.shutdown();
+
+        StringBuilder text = new StringBuilder("key ").append(key).append('\n');
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            try {
+                text.append("file ").append(file.length()).append(' ').append(file.lastModified()).append(' ')
+                        .append(digests.get(i).get()).append(' ').append(file.getPath()).append('\n');
+            } catch (ExecutionException e) {
+                throw new IOException("cannot hash " + file + ": " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+
+        File directory = marker.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        // a marker is either complete or absent
+        File partial = new File(marker.getPath() + ".partial");
+        Files.write(partial.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+        if (!partial.renameTo(marker)) {
+            throw new IOException("cannot rename " + partial + " to " + marker);
+        }
+        System.out.println(marker + ": " + files.size() + " files recorded");
+    }
+}
@@ -0,0 +1,166 @@
+package io.seqware.pancancer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Hashes the result files before upload, one file per thread with memory mapped reads. A file with an existing .md5 sidecar is
+ * verified against it, a file without one gets it written. Any mismatch or missing file makes the exit status non-zero so the upload
+ * chained behind it does not start.
+ *
+ * Usage: Checksums [-t threads] &lt;directory&gt; &lt;file&gt;...
+ */
+public class Checksums {
+
+    /** bytes mapped at a time, small enough for 32 bit address space limits on a mapping */
+    private static final long MAP_SIZE = 256L << 20;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int first = 0;
+        if (args.length > 1 && "-t".equals(args[0])) {
+            threads = Integer.parseInt(args[1]);
+            first = 2;
+        }
+        if (args.length - first < 2 || threads < 1) {
+            System.err.println("Usage: Checksums [-t threads] <directory> <file>...");
+            System.exit(1);
+        }
+        File directory = new File(args[first]);
+        List<File> files = new ArrayList<>();
+        for (int i = first + 1; i < args.length; i++) {
+            files.add(new File(directory, args[i]));
+        }
+        long start = System.currentTimeMillis();
+        int failures = check(files, threads);
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        System.out.println("checked " + files.size() + " files, " + (bytes >> 20) + " MB in " + millis + " ms ("
+                + (bytes / 1000 / millis) + " MB/s)");
+        if (failures > 0) {
+            System.err.println(failures + " files failed the checksum check, not uploading");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Verifies or writes the sidecars of all files.
+     *
+     * @param files
+     * @param threads
+     * @return the number of files that are missing or do not match their sidecar
+     * @throws InterruptedException
+     */
+    public static int check(List<File> files, int threads) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, files.size())));
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (final File file : files) {
+            results.add(pool.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    return checkFile(file);
+                }
+            }));
+        }
+        pool.shutdown();
+        int failures = 0;
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                if (!results.get(i).get()) {
+                    failures++;
+                }
+            } catch (ExecutionException e) {
+                System.err.println(files.get(i) + ": " + e.getCause().getMessage());
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    private static boolean checkFile(File file) throws IOException {
+        if (!file.isFile()) {
+            System.err.println(file + ": missing");
+            return false;
+        }
+        String digest = hex(md5(file));
+        File sidecar = new File(file.getPath() + ".md5");
+        if (!sidecar.exists()) {
+            writeMd5(file, digest);
+            System.out.println(file + ": " + digest + " written");
+            return true;
+        }
+        // md5sum output has the file name after the digest, the upload tool only reads the digest
+        String expected = new String(Files.readAllBytes(sidecar.toPath()), StandardCharsets.UTF_8).trim().split("\\s+")[0];
+        if (!expected.equalsIgnoreCase(digest)) {
+            System.err.println(file + ": " + digest + " does not match " + expected + " in " + sidecar.getName());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @param file
+     * @return the MD5 digest of the whole file
+     * @throws IOException
+     */
+    public static byte[] md5(File file) throws IOException {
+        MessageDigest digest = md5();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_SIZE) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, size - position));
+                digest.update(buffer);
+            }
+        }
+        return digest.digest();
+    }
+
+    static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("MD5 is not available", e);
+        }
+    }
+
+    static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Writes the hex digest into file.md5, the format the upload tool reads.
+     *
+     * @param file
+     * @param digest
+     * @throws IOException
+     */
+    static void writeMd5(File file, String digest) throws IOException {
+        try (OutputStream out = new FileOutputStream(file.getPath() + ".md5")) {
+            out.write((digest + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
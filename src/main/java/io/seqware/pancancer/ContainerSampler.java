@@ -0,0 +1,410 @@
+package io.seqware.pancancer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the cgroup of one container at a fixed interval and writes a time series of its CPU, RSS, block IO and network use. When the
+ * container exits or the sampler is terminated a summary with the peak and average of each is written, the summaries of all sampled
+ * jobs end up in the QC document that is uploaded.
+ *
+ * The container is found by name through docker inspect once it is running. For testing without docker any process can stand in for
+ * the container with -pid, or a cgroup directory can be given directly with -cgroup. Both cgroup v1 and the unified v2 hierarchy are
+ * read, counters a hierarchy does not have stay at zero.
+ *
+ * Usage: ContainerSampler [-i seconds] [-o series.tsv] [-summary summary.json] (-name container|-pid pid|-cgroup directory)
+ *
+ * The series has one line per sample: epoch milliseconds, CPU cores used since the previous sample, RSS bytes and the bytes read,
+ * written, received and sent since sampling started.
+ */
+public class ContainerSampler {
+
+    private static final String USAGE = "Usage: ContainerSampler [-i seconds] [-o series.tsv] [-summary summary.json] "
+            + "(-name container|-pid pid|-cgroup directory)";
+    private static final Path CGROUP_ROOT = Paths.get("/sys/fs/cgroup");
+
+    private final String container;
+    private final long intervalMillis;
+    private volatile boolean running = true;
+
+    // controller name to cgroup directory, "" is the unified hierarchy
+    private final Map<String, Path> cgroups = new HashMap<>();
+    private int pid = -1;
+
+    private long[] first;
+    private long[] previous;
+    private long previousTime;
+    private long firstTime;
+    private long lastTime;
+    private int samples = 0;
+    private double cpuPeak = 0;
+    private long rssPeak = 0;
+    private double rssTotal = 0;
+
+    private static final int CPU_NANOS = 0;
+    private static final int RSS = 1;
+    private static final int READ = 2;
+    private static final int WRITE = 3;
+    private static final int RX = 4;
+    private static final int TX = 5;
+
+    /**
+     *
+     * @param container
+     *            name recorded in the summary
+     * @param intervalMillis
+     *            time between samples
+     */
+    public ContainerSampler(String container, long intervalMillis) {
+        this.container = container;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long interval = 10;
+        String series = null;
+        String summary = null;
+        String name = null;
+        String pid = null;
+        String cgroup = null;
+        boolean valid = args.length % 2 == 0;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("-i".equals(args[i])) {
+                interval = Long.parseLong(args[i + 1]);
+            } else if ("-o".equals(args[i])) {
+                series = args[i + 1];
+            } else if ("-summary".equals(args[i])) {
+                summary = args[i + 1];
+            } else if ("-name".equals(args[i])) {
+                name = args[i + 1];
+            } else if ("-pid".equals(args[i])) {
+                pid = args[i + 1];
+            } else if ("-cgroup".equals(args[i])) {
+                cgroup = args[i + 1];
+            } else {
+                valid = false;
+            }
+        }
+        int targets = (name == null ? 0 : 1) + (pid == null ? 0 : 1) + (cgroup == null ? 0 : 1);
+        if (!valid || targets != 1 || interval < 1) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        final ContainerSampler sampler = new ContainerSampler(name != null ? name : pid != null ? "pid " + pid : cgroup, interval * 1000);
+        final Thread main = Thread.currentThread();
+        final CountDownLatch done = new CountDownLatch(1);
+        // the job kills the sampler once docker run returns, the samples taken so far are still summarised
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                sampler.running = false;
+                main.interrupt();
+                try {
+                    done.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // exiting anyway
+                }
+            }
+        });
+
+        try (PrintWriter out = series == null ? null : new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(series), StandardCharsets.UTF_8)))) {
+            boolean found;
+            if (name != null) {
+                found = sampler.attachContainer(name);
+            } else if (pid != null) {
+                found = sampler.attachProcess(Integer.parseInt(pid));
+            } else {
+                found = sampler.attachCgroup(Paths.get(cgroup));
+            }
+            if (found) {
+                sampler.sample(out);
+            }
+            // a stop while a counter was read leaves the interrupt pending, it would close the summary file under us
+            Thread.interrupted();
+            if (summary != null) {
+                sampler.writeSummary(Paths.get(summary));
+            }
+        } finally {
+            done.countDown();
+        }
+    }
+
+    /**
+     * Waits for the named container to be running and attaches to its init process.
+     *
+     * @param name
+     * @return false if the sampler was stopped before the container started
+     * @throws IOException
+     */
+    public boolean attachContainer(String name) throws IOException {
+        while (running) {
+            Process inspect = new ProcessBuilder("docker", "inspect", "-f", "{{.State.Pid}}", name).redirectErrorStream(true).start();
+            String output;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(inspect.getInputStream(), StandardCharsets.UTF_8))) {
+                output = reader.readLine();
+            }
+            try {
+                if (inspect.waitFor() == 0 && output != null && output.trim().matches("[1-9][0-9]*")) {
+                    return attachProcess(Integer.parseInt(output.trim()));
+                }
+                // not created yet
+                Thread.sleep(Math.min(intervalMillis, 1000));
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Attaches to the cgroups and network namespace of a process.
+     *
+     * @param pid
+     * @return false if the process is gone
+     * @throws IOException
+     */
+    public boolean attachProcess(int pid) throws IOException {
+        Path membership = Paths.get("/proc/" + pid + "/cgroup");
+        if (!Files.exists(membership)) {
+            return false;
+        }
+        this.pid = pid;
+        // v1 lines are id:controller[,controller]:path, the v2 line is 0::path
+        for (String line : Files.readAllLines(membership, StandardCharsets.UTF_8)) {
+            String[] fields = line.split(":", 3);
+            if (fields.length < 3) {
+                continue;
+            }
+            String relative = fields[2].startsWith("/") ? fields[2].substring(1) : fields[2];
+            if (fields[1].isEmpty()) {
+                // hybrid hosts mount the unified hierarchy next to the v1 controllers
+                Path unified = CGROUP_ROOT.resolve("unified");
+                cgroups.put("", (Files.isDirectory(unified) ? unified : CGROUP_ROOT).resolve(relative));
+            }
+            for (String controller : fields[1].split(",")) {
+                if (!controller.isEmpty()) {
+                    cgroups.put(controller, CGROUP_ROOT.resolve(controller).resolve(relative));
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads all counters from one cgroup directory, the network counters come from a process listed in it.
+     *
+     * @param directory
+     * @return false if the directory does not exist
+     * @throws IOException
+     */
+    public boolean attachCgroup(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return false;
+        }
+        for (String controller : new String[] { "", "cpuacct", "memory", "blkio" }) {
+            cgroups.put(controller, directory);
+        }
+        Path procs = directory.resolve("cgroup.procs");
+        if (Files.exists(procs)) {
+            for (String line : Files.readAllLines(procs, StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    pid = Integer.parseInt(line.trim());
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Samples until the container exits or the sampler is stopped.
+     *
+     * @param out
+     *            receives the series, may be null
+     * @throws IOException
+     */
+    public void sample(PrintWriter out) throws IOException {
+        if (out != null) {
+            out.print("# " + container + "\n");
+            out.print("time_ms\tcpu_cores\trss_bytes\tread_bytes\twrite_bytes\trx_bytes\ttx_bytes\n");
+        }
+        while (running && alive()) {
+            long[] counters = read();
+            long now = System.currentTimeMillis();
+            if (first == null) {
+                first = counters;
+                firstTime = now;
+            } else {
+                double cores = (counters[CPU_NANOS] - previous[CPU_NANOS]) / 1e6 / Math.max(1, now - previousTime);
+                cpuPeak = Math.max(cpuPeak, cores);
+                rssPeak = Math.max(rssPeak, counters[RSS]);
+                rssTotal += counters[RSS];
+                samples++;
+                if (out != null) {
+                    out.print(now + "\t" + String.format(Locale.ROOT, "%.2f", cores) + "\t" + counters[RSS] + "\t"
+                            + (counters[READ] - first[READ]) + "\t" + (counters[WRITE] - first[WRITE]) + "\t" + (counters[RX] - first[RX])
+                            + "\t" + (counters[TX] - first[TX]) + "\n");
+                    out.flush();
+                }
+            }
+            previous = counters;
+            previousTime = now;
+            lastTime = now;
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private boolean alive() {
+        if (pid > 0) {
+            return Files.exists(Paths.get("/proc/" + pid));
+        }
+        for (Path directory : cgroups.values()) {
+            if (Files.isDirectory(directory)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes peak and average CPU and RSS and the IO totals as one line of JSON, in place once complete.
+     *
+     * @param summary
+     * @throws IOException
+     */
+    public void writeSummary(Path summary) throws IOException {
+        double seconds = (lastTime - firstTime) / 1000.0;
+        long[] total = first == null ? new long[6] : new long[] { previous[CPU_NANOS] - first[CPU_NANOS], 0,
+                previous[READ] - first[READ], previous[WRITE] - first[WRITE], previous[RX] - first[RX], previous[TX] - first[TX] };
+        String json = "{\"container\":\"" + container.replace("\\", "\\\\").replace("\"", "\\\"") + "\""
+                + ",\"interval_seconds\":" + intervalMillis / 1000 + ",\"samples\":" + samples
+                + ",\"seconds\":" + String.format(Locale.ROOT, "%.1f", seconds)
+                + ",\"cpu_cores_peak\":" + String.format(Locale.ROOT, "%.2f", cpuPeak)
+                + ",\"cpu_cores_avg\":" + String.format(Locale.ROOT, "%.2f", seconds > 0 ? total[CPU_NANOS] / 1e9 / seconds : 0)
+                + ",\"rss_bytes_peak\":" + rssPeak + ",\"rss_bytes_avg\":" + (samples > 0 ? (long) (rssTotal / samples) : 0)
+                + ",\"read_bytes\":" + total[READ] + ",\"write_bytes\":" + total[WRITE] + ",\"rx_bytes\":" + total[RX]
+                + ",\"tx_bytes\":" + total[TX] + "}\n";
+        Path partial = Paths.get(summary + ".partial");
+        try (OutputStream out = Files.newOutputStream(partial)) {
+            out.write(json.getBytes(StandardCharsets.UTF_8));
+        }
+        if (!partial.toFile().renameTo(summary.toFile())) {
+            throw new IOException("cannot rename " + partial + " to " + summary);
+        }
+    }
+
+    private long[] read() {
+        long[] counters = new long[6];
+        // v2 reports microseconds, v1 nanoseconds
+        long usec = statValue(file("", "cpu.stat"), "usage_usec");
+        counters[CPU_NANOS] = usec >= 0 ? usec * 1000 : Math.max(0, singleValue(file("cpuacct", "cpuacct.usage")));
+        long rss = statValue(file("", "memory.stat"), "anon");
+        if (rss < 0) {
+            rss = statValue(file("memory", "memory.stat"), "total_rss");
+        }
+        if (rss < 0) {
+            rss = statValue(file("memory", "memory.stat"), "rss");
+        }
+        counters[RSS] = Math.max(0, rss);
+        readIo(counters);
+        readNetwork(counters);
+        return counters;
+    }
+
+    private File file(String controller, String name) {
+        Path directory = cgroups.get(controller);
+        return directory == null ? null : directory.resolve(name).toFile();
+    }
+
+    private void readIo(long[] counters) {
+        // v2: 8:0 rbytes=1 wbytes=2 rios=3 ...
+        for (String line : lines(file("", "io.stat"))) {
+            for (String field : line.split(" ")) {
+                if (field.startsWith("rbytes=")) {
+                    counters[READ] += Long.parseLong(field.substring(7));
+                } else if (field.startsWith("wbytes=")) {
+                    counters[WRITE] += Long.parseLong(field.substring(7));
+                }
+            }
+        }
+        // v1: 8:0 Read 1
+        for (String line : lines(file("blkio", "blkio.throttle.io_service_bytes"))) {
+            String[] fields = line.split(" ");
+            if (fields.length == 3 && "Read".equals(fields[1])) {
+                counters[READ] += Long.parseLong(fields[2]);
+            } else if (fields.length == 3 && "Write".equals(fields[1])) {
+                counters[WRITE] += Long.parseLong(fields[2]);
+            }
+        }
+    }
+
+    private void readNetwork(long[] counters) {
+        if (pid < 0) {
+            return;
+        }
+        // the container's network namespace, loopback traffic is not interesting
+        for (String line : lines(new File("/proc/" + pid + "/net/dev"))) {
+            int colon = line.indexOf(':');
+            if (colon < 0 || "lo".equals(line.substring(0, colon).trim())) {
+                continue;
+            }
+            String[] fields = line.substring(colon + 1).trim().split("\\s+");
+            if (fields.length >= 9) {
+                counters[RX] += Long.parseLong(fields[0]);
+                counters[TX] += Long.parseLong(fields[8]);
+            }
+        }
+    }
+
+    private static long statValue(File file, String key) {
+        for (String line : lines(file)) {
+            if (line.startsWith(key + " ")) {
+                return Long.parseLong(line.substring(key.length() + 1).trim());
+            }
+        }
+        return -1;
+    }
+
+    private static long singleValue(File file) {
+        List<String> lines = lines(file);
+        return lines.isEmpty() ? -1 : Long.parseLong(lines.get(0).trim());
+    }
+
+    /**
+     * @return the lines of a counter file, none if it does not exist in this hierarchy or went away with the container
+     */
+    private static List<String> lines(File file) {
+        if (file == null || !file.isFile()) {
+            return Collections.emptyList();
+        }
+        try {
+            return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+    }
+}
@@ -2,11 +2,19 @@ package io.seqware.pancancer;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import net.sourceforge.seqware.pipeline.workflowV2.AbstractWorkflowDataModel;
 import net.sourceforge.seqware.pipeline.workflowV2.model.Job;
@@ -37,8 +45,30 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
     private static final String SHARED_WORKSPACE = "shared_workspace";
     private static final String UPLOAD_ARCHIVE_LOCATION = "upload_archive";
     public static final String SHARED_WORKSPACE_ABSOLUTE = "`pwd`/" + SHARED_WORKSPACE;
-    private static final String DKFZ_RESULT_DIRECTORY_ABSOLUTE = SHARED_WORKSPACE_ABSOLUTE + "/results/";
+    // donor workspaces of a batch run, relative to the shared workspace
+    private static final String DONOR_WORKSPACES = "donors";
     public static final String UPLOAD_ARCHIVE_IN_CONTAINER = "/datastore/" + UPLOAD_ARCHIVE_LOCATION;
+    private static final String RESOURCE_PROFILE = SHARED_WORKSPACE + "/settings/resources.sh";
+    // where each result file was found, relative to the shared workspace
+    private static final String RESULT_CATALOG = "settings/result_catalog.tsv";
+    // start and end of every job, one JSON object per line
+    private static final String JOB_EVENTS = SHARED_WORKSPACE + "/job_events.ndjson";
+    // live metrics in Prometheus text format and the transfer reports they include
+    private static final String METRICS = SHARED_WORKSPACE + "/metrics";
+    // container time series and their summaries, one of each per sampled job, relative to the workspace
+    private static final String RESOURCE_SAMPLES = "resources";
+    // completion markers of the checkpointed jobs and the date of the first run, relative to the workspace
+    private static final String CHECKPOINTS = "checkpoints";
+    private static final String RUN_DATE = "settings/run_date";
+    // jobs acting on the node or on shared data run on every launch, they skip their work themselves where they can
+    private static final List<String> UNCHECKPOINTED_JOBS = Arrays.asList("create_dirs", "create_donor_dirs", "getEMBLDataFiles",
+            "getDKFZDataFiles", "metrics_start", "metrics_stop", "cleanup", "disk_admission", "disk_release");
+    // space reserved on the node by the donors admitted, in the common data dir
+    private static final String DISK_RESERVATIONS = "disk_reservations";
+    // transfers admitted or waiting on the node, in the common data dir
+    private static final String TRANSFER_SCHEDULE = "transfer_schedule";
+    private static final long GB = 1000L * 1000 * 1000;
+    private static final long MB = 1000L * 1000;
 
     private static final String EMBL_PREFIX = "EMBL.";
     private static final String DKFZ_PREFIX = "DKFZ.";
@@ -56,6 +86,7 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
     private String studyRefnameOverride = null;
     private String analysisCenterOverride = null;
     private String formattedDate;
+    private String runDate;
     private String commonDataDir = "";
     private String dkfzDataBundleServer = "";
     private String dkfzDataBundleUUID = "";
@@ -71,11 +102,95 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
     // GNOS timeout
     private int gnosTimeoutMin = 20;
     private int gnosRetries = 3;
+    // download from GNOS with the bundled segmented HTTPS downloader instead of gnos_download_file.pl
+    private boolean gnosHttpDownload = false;
+    private int gnosHttpSegmentMb = 64;
+    private int gnosHttpStreams = 8;
+    // number of input downloads allowed to run at the same time
+    private int downloadParallelism = 2;
+    // stage local BAMs with LocalStage instead of sudo ln, copying them where they cannot be linked
+    private boolean localStaging = false;
+    private int localStageStreams = 4;
+    private boolean localStageVerify = false;
+    // threads hashing the result files before upload, 0 uses all cores
+    private int checksumThreads = 0;
+    // run DKFZ SNV/indel calling separately from the copy number estimation that waits on Delly
+    private boolean dkfzSplitRun = false;
+    // split cores and memory between the EMBL and DKFZ containers
+    private boolean resourcePartitioning = false;
+    private int emblResourceWeight = 1;
+    private int dkfzResourceWeight = 2;
+    private int resourceReservedMemGb = 4;
+    // sample the cgroups of the containers while they run
+    private boolean containerSampling = false;
+    private int containerSamplingIntervalSec = 10;
+    // Prometheus metrics of the run in progress
+    private boolean metricsExporter = false;
+    private int metricsIntervalSec = 5;
+    private int metricsPort = 0;
+    // pull the images in parallel before their first use, the jobs running an image wait for its pull
+    private boolean imagePrePull = false;
+    private String dkfzDockerDigest = null;
+    private String emblDockerDigest = null;
+    private String gnosDockerDigest = null;
+    private final Map<String, Job> imagePullJobs = new HashMap<>();
+    // reserve the predicted disk footprint of a donor before its downloads start, waiting up to diskAdmissionWaitMin for space
+    private boolean diskAdmission = false;
+    private int diskAdmissionWaitMin = 0;
+    private int diskAdmissionMarginGb = 20;
+    private double emblDiskFactor = 0.1;
+    private double dkfzDiskFactor = 0.5;
+    private int emblReferenceGb = 10;
+    private int dkfzReferenceGb = 60;
+    // admit the downloads, reference fetches and uploads of the node in priority order, sharing transferBandwidthMb between them
+    private boolean transferScheduling = false;
+    private int transferSlots = 2;
+    private int transferBandwidthMb = 0;
+    // one Delly container per tumour aliquot
+    private boolean emblPerAliquot = false;
+    private int emblParallelism = 2;
+    // scatter the DKFZ SNV calling over chromosome shards
+    private int dkfzSnvShards = 0;
+    private int dkfzSnvParallelism = 4;
+    private String dkfzSnvShardReference = null;
+    // every job records its start and end, the end events are added once the job is complete
+    private String donorId = null;
+    // several donors in one run, sharing the reference data, images and event log
+    private List<String> batchDonors = null;
+    private int donorParallelism = 1;
+    // the workspace of the donor being built, a batch gives every donor its own below the shared workspace
+    private String workspace = SHARED_WORKSPACE;
+    private String workspaceAbsolute = SHARED_WORKSPACE_ABSOLUTE;
+    private String dkfzResultDirectoryAbsolute;
+    private String dkfzSnvShardDirectoryAbsolute;
+    private String dkfzRunDirectoryAbsolute;
+    // suffix of the resource profile variables of the donor being built, one slot per donor running at the same time
+    private String resourceSlot = "";
+    private final Map<Job, String> jobEndEvents = new LinkedHashMap<>();
+    // the jobs reading each input of the donor being built, with cleanupBams its BAM is deleted once they are done
+    private final Map<String, List<Job>> inputReaders = new HashMap<>();
+    // every donor gets a workspace below checkpointDir that outlives the working directory, a job is skipped once its marker is valid
+    private String checkpointDir = null;
+    private boolean checkpointVerify = false;
+    private final Map<Job, String> checkpointMarkers = new HashMap<>();
+    private final Map<Job, List<String>> checkpointOutputs = new HashMap<>();
     // S3
     private String controlS3URL = null;
     private List<String> allBamS3Urls = null;
     private String s3Key = null;
     private String s3SecretKey = null;
+    // download with the bundled ranged GET engine instead of aws s3 cp
+    private boolean s3ParallelDownload = false;
+    private int s3PartMb = 64;
+    private int s3DownloadStreams = 8;
+    // threads compressing the upload archive on the host, 0 leaves the archive to the upload tool
+    private int archiveThreads = 0;
+    // stream the S3 upload archive in parts instead of writing it and copying it with aws s3 cp
+    private boolean s3StreamingUpload = false;
+    private int s3UploadStreams = 4;
+    // region and S3 compatible endpoint of the bundled S3 tools, empty for the defaults
+    private String s3Region = "";
+    private String s3Endpoint = "";
     private String uploadS3BucketPath = null;
     // docker names, do not specify defaults here. They are misleading and
     // they will be overridden by the embedded default ini anyways
@@ -89,36 +204,41 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
     public void setupWorkflow() {
         try {
 
-            // controls
-            this.controlBam = getProperty("controlBam");
-            this.controlAnalysisId = getProperty("controlAnalysisId");
-
             // these variables are for download of inputs
-            this.analysisIds = Lists.newArrayList(getProperty("tumourAnalysisIds").split(","));
-            analysisIds.add(controlAnalysisId);
-            this.tumorAnalysisIds = Lists.newArrayList(getProperty("tumourAnalysisIds").split(","));
-            this.bams = Lists.newArrayList(getProperty("tumourBams").split(","));
-            bams.add(getProperty("controlBam"));
             this.gnosServer = getProperty("gnosServer");
             this.pemFile = getProperty("pemFile");
 
-            // S3 URLs
-            controlS3URL = getProperty("controlBamS3Url");
-            allBamS3Urls = Lists.newArrayList(getProperty("tumourBamS3Urls").split(","));
-            allBamS3Urls.add(controlS3URL);
+            // S3 keys
             s3Key = getProperty("s3Key");
             s3SecretKey = getProperty("s3SecretKey");
+            if (hasPropertyAndNotNull("s3ParallelDownload")) {
+                s3ParallelDownload = Boolean.valueOf(getProperty("s3ParallelDownload"));
+            }
+            if (hasPropertyAndNotNull("s3PartMb")) {
+                s3PartMb = Math.max(5, Integer.parseInt(getProperty("s3PartMb")));
+            }
+            if (hasPropertyAndNotNull("s3DownloadStreams")) {
+                s3DownloadStreams = Math.max(1, Integer.parseInt(getProperty("s3DownloadStreams")));
+            }
+            if (hasPropertyAndNotNull("s3StreamingUpload")) {
+                s3StreamingUpload = Boolean.valueOf(getProperty("s3StreamingUpload"));
+            }
+            if (hasPropertyAndNotNull("s3UploadStreams")) {
+                s3UploadStreams = Math.max(1, Integer.parseInt(getProperty("s3UploadStreams")));
+            }
+            if (hasPropertyAndNotNull("archiveThreads")) {
+                archiveThreads = Math.max(0, Integer.parseInt(getProperty("archiveThreads")));
+            }
+            if (hasPropertyAndNotNull("s3Region")) {
+                s3Region = getProperty("s3Region");
+            }
+            if (hasPropertyAndNotNull("s3Endpoint")) {
+                s3Endpoint = getProperty("s3Endpoint");
+            }
             uploadS3BucketPath = getProperty("uploadS3BucketPath");
 
             // these variables are those extra required for EMBL upload
             this.uploadServer = getProperty("uploadServer");
-            StringBuilder metadataURLBuilder = new StringBuilder();
-            metadataURLBuilder.append(gnosServer).append("/cghub/metadata/analysisFull/").append(controlAnalysisId);
-            for (String id : Lists.newArrayList(getProperty("tumourAnalysisIds").split(","))) {
-                metadataURLBuilder.append(",").append(gnosServer).append("/cghub/metadata/analysisFull/").append(id);
-            }
-            this.metadataURLs = metadataURLBuilder.toString();
-            this.tumorAliquotIds = Lists.newArrayList(getProperty("tumourAliquotIds").split(","));
 
             // background information on VMs
             // TODO: Cores and MemGb can be filled in at runtime
@@ -145,7 +265,16 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
             // record the date
             DateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
             Calendar cal = Calendar.getInstance();
-            this.formattedDate = dateFormat.format(cal.getTime());
+            this.runDate = dateFormat.format(cal.getTime());
+            this.formattedDate = runDate;
+
+            // checkpoints, read before the donors since a resumed donor takes the date of its first run
+            if (hasPropertyAndNotNull("checkpointDir")) {
+                checkpointDir = getProperty("checkpointDir");
+            }
+            if (hasPropertyAndNotNull("checkpointVerify")) {
+                checkpointVerify = Boolean.valueOf(getProperty("checkpointVerify"));
+            }
 
             // local file mode
             downloadSource = getProperty("downloadSource");
@@ -167,17 +296,92 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
 
             if (hasPropertyAndNotNull("localXMLMetadataPath")) {
                 localXMLMetadataPath = getProperty("localXMLMetadataPath");
-                this.localXMLMetadataFiles = new ArrayList<>();
-                // pre-construct local metadata paths as well
-                localXMLMetadataFiles.add("data_" + controlAnalysisId + ".xml");
-                for (String tumourAnalysisId : tumorAnalysisIds) {
-                    localXMLMetadataFiles.add("data_" + tumourAnalysisId + ".xml");
+            }
+
+            // the inputs, every donor of a batch is read here once so a missing key fails before anything runs
+            if (hasPropertyAndNotNull("donors")) {
+                batchDonors = Lists.newArrayList(getProperty("donors").split(","));
+                for (int i = 0; i < batchDonors.size(); i++) {
+                    String donor = batchDonors.get(i);
+                    if (donor.isEmpty() || batchDonors.indexOf(donor) != i || EMBL_PREFIX.equals(donor + ".")
+                            || DKFZ_PREFIX.equals(donor + ".")) {
+                        throw new RuntimeException("Donor '" + donor + "' in donors is empty, repeated or reserved");
+                    }
+                    readDonor(donor + ".");
+                }
+                // the shared jobs belong to none of the donors
+                donorId = null;
+                if (hasPropertyAndNotNull("donorParallelism")) {
+                    donorParallelism = Math.max(1, Integer.parseInt(getProperty("donorParallelism")));
                 }
+            } else {
+                readDonor("");
             }
+            useWorkspace(SHARED_WORKSPACE);
 
             // timeout
             gnosTimeoutMin = Integer.parseInt(getProperty("gnosTimeoutMin"));
             gnosRetries = Integer.parseInt(getProperty("gnosRetries"));
+            if (hasPropertyAndNotNull("gnosHttpDownload")) {
+                gnosHttpDownload = Boolean.valueOf(getProperty("gnosHttpDownload"));
+            }
+            if (hasPropertyAndNotNull("gnosHttpSegmentMb")) {
+                gnosHttpSegmentMb = Math.max(1, Integer.parseInt(getProperty("gnosHttpSegmentMb")));
+            }
+            if (hasPropertyAndNotNull("gnosHttpStreams")) {
+                gnosHttpStreams = Math.max(1, Integer.parseInt(getProperty("gnosHttpStreams")));
+            }
+
+            // download fan-out
+            if (hasPropertyAndNotNull("downloadParallelism")) {
+                downloadParallelism = Math.max(1, Integer.parseInt(getProperty("downloadParallelism")));
+            }
+            if (hasPropertyAndNotNull("localStaging")) {
+                localStaging = Boolean.valueOf(getProperty("localStaging"));
+            }
+            if (hasPropertyAndNotNull("localStageStreams")) {
+                localStageStreams = Math.max(1, Integer.parseInt(getProperty("localStageStreams")));
+            }
+            if (hasPropertyAndNotNull("localStageVerify")) {
+                localStageVerify = Boolean.valueOf(getProperty("localStageVerify"));
+            }
+            if (hasPropertyAndNotNull("checksumThreads")) {
+                checksumThreads = Integer.parseInt(getProperty("checksumThreads"));
+            }
+
+            // disk admission
+            if (hasPropertyAndNotNull("diskAdmission")) {
+                diskAdmission = Boolean.valueOf(getProperty("diskAdmission"));
+            }
+            if (hasPropertyAndNotNull("diskAdmissionWaitMin")) {
+                diskAdmissionWaitMin = Math.max(0, Integer.parseInt(getProperty("diskAdmissionWaitMin")));
+            }
+            if (hasPropertyAndNotNull("diskAdmissionMarginGb")) {
+                diskAdmissionMarginGb = Integer.parseInt(getProperty("diskAdmissionMarginGb"));
+            }
+            if (hasPropertyAndNotNull("emblDiskFactor")) {
+                emblDiskFactor = Double.parseDouble(getProperty("emblDiskFactor"));
+            }
+            if (hasPropertyAndNotNull("dkfzDiskFactor")) {
+                dkfzDiskFactor = Double.parseDouble(getProperty("dkfzDiskFactor"));
+            }
+            if (hasPropertyAndNotNull("emblReferenceGb")) {
+                emblReferenceGb = Integer.parseInt(getProperty("emblReferenceGb"));
+            }
+            if (hasPropertyAndNotNull("dkfzReferenceGb")) {
+                dkfzReferenceGb = Integer.parseInt(getProperty("dkfzReferenceGb"));
+            }
+
+            // transfer scheduling
+            if (hasPropertyAndNotNull("transferScheduling")) {
+                transferScheduling = Boolean.valueOf(getProperty("transferScheduling"));
+            }
+            if (hasPropertyAndNotNull("transferSlots")) {
+                transferSlots = Math.max(1, Integer.parseInt(getProperty("transferSlots")));
+            }
+            if (hasPropertyAndNotNull("transferBandwidthMb")) {
+                transferBandwidthMb = Math.max(0, Integer.parseInt(getProperty("transferBandwidthMb")));
+            }
 
             // cleanupJob
             if (hasPropertyAndNotNull("cleanup")) {
@@ -191,16 +395,177 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
              * if(hasPropertyAndNotNull("runEmbl")) { runEmbl=Boolean.valueOf(getProperty("runEmbl")); }
              */
 
+            if (hasPropertyAndNotNull("dkfzSplitRun")) {
+                dkfzSplitRun = Boolean.valueOf(getProperty("dkfzSplitRun"));
+            }
+
+            // resource partitioning
+            if (hasPropertyAndNotNull("resourcePartitioning")) {
+                resourcePartitioning = Boolean.valueOf(getProperty("resourcePartitioning"));
+            }
+            if (hasPropertyAndNotNull("emblResourceWeight")) {
+                emblResourceWeight = Integer.parseInt(getProperty("emblResourceWeight"));
+            }
+            if (hasPropertyAndNotNull("dkfzResourceWeight")) {
+                dkfzResourceWeight = Integer.parseInt(getProperty("dkfzResourceWeight"));
+            }
+            if (hasPropertyAndNotNull("resourceReservedMemGb")) {
+                resourceReservedMemGb = Integer.parseInt(getProperty("resourceReservedMemGb"));
+            }
+
+            // container sampling
+            if (hasPropertyAndNotNull("containerSampling")) {
+                containerSampling = Boolean.valueOf(getProperty("containerSampling"));
+            }
+            if (hasPropertyAndNotNull("containerSamplingIntervalSec")) {
+                containerSamplingIntervalSec = Math.max(1, Integer.parseInt(getProperty("containerSamplingIntervalSec")));
+            }
+            utils.setContainerSampling(containerSampling);
+
+            // live metrics
+            if (hasPropertyAndNotNull("metricsExporter")) {
+                metricsExporter = Boolean.valueOf(getProperty("metricsExporter"));
+            }
+            if (hasPropertyAndNotNull("metricsIntervalSec")) {
+                metricsIntervalSec = Math.max(1, Integer.parseInt(getProperty("metricsIntervalSec")));
+            }
+            if (hasPropertyAndNotNull("metricsPort")) {
+                metricsPort = Integer.parseInt(getProperty("metricsPort"));
+            }
+            if (metricsExporter) {
+                utils.setProgressReporter(javaTool("MetricsExporter") + " -report " + SHARED_WORKSPACE_ABSOLUTE + "/metrics/reports");
+            }
+            if (s3StreamingUpload) {
+                utils.setS3Uploader(s3Tool("S3Upload") + " -part-mb " + s3PartMb + " -streams " + s3UploadStreams
+                        + (archiveThreads > 0 ? " -t " + archiveThreads : ""));
+            }
+            if (archiveThreads > 0) {
+                utils.setArchiver(javaTool("TarArchive") + " -t " + archiveThreads);
+            }
+
+            // per-aliquot Delly
+            if (hasPropertyAndNotNull("emblPerAliquot")) {
+                emblPerAliquot = Boolean.valueOf(getProperty("emblPerAliquot"));
+            }
+            if (hasPropertyAndNotNull("emblParallelism")) {
+                emblParallelism = Math.max(1, Integer.parseInt(getProperty("emblParallelism")));
+            }
+
+            // sharded DKFZ SNV calling
+            if (hasPropertyAndNotNull("dkfzSnvShards")) {
+                dkfzSnvShards = Integer.parseInt(getProperty("dkfzSnvShards"));
+            }
+            if (hasPropertyAndNotNull("dkfzSnvParallelism")) {
+                dkfzSnvParallelism = Math.max(1, Integer.parseInt(getProperty("dkfzSnvParallelism")));
+            }
+            if (hasPropertyAndNotNull("dkfzSnvShardReference")) {
+                dkfzSnvShardReference = getProperty("dkfzSnvShardReference");
+            } else {
+                dkfzSnvShardReference = commonDataDir + "/embl/genome.fa";
+            }
+
             // Docker images
             dkfzDockerName = getProperty("dkfzDockerName");
             emblDockerName = getProperty("emblDockerName");
             gnosDownloadName = getProperty("gnosDockerName");
 
+            // image pre-pull
+            if (hasPropertyAndNotNull("imagePrePull")) {
+                imagePrePull = Boolean.valueOf(getProperty("imagePrePull"));
+            }
+            if (hasPropertyAndNotNull("dkfzDockerDigest")) {
+                dkfzDockerDigest = getProperty("dkfzDockerDigest");
+            }
+            if (hasPropertyAndNotNull("emblDockerDigest")) {
+                emblDockerDigest = getProperty("emblDockerDigest");
+            }
+            if (hasPropertyAndNotNull("gnosDockerDigest")) {
+                gnosDockerDigest = getProperty("gnosDockerDigest");
+            }
+
         } catch (Exception e) {
             throw new RuntimeException("Could not read property from ini", e);
         }
     }
 
+    /**
+     * Reads the inputs of a donor, the jobs built afterwards are for that donor.
+     *
+     * @param prefix
+     *            empty for a single donor run, the donor ID and a dot for a donor of a batch
+     * @throws Exception
+     *             if a required key is missing
+     */
+    private void readDonor(String prefix) throws Exception {
+
+        // controls
+        this.controlBam = getProperty(prefix + "controlBam");
+        this.controlAnalysisId = getProperty(prefix + "controlAnalysisId");
+        if (prefix.isEmpty()) {
+            this.donorId = hasPropertyAndNotNull("donorId") ? getProperty("donorId") : controlAnalysisId;
+        } else {
+            this.donorId = prefix.substring(0, prefix.length() - 1);
+        }
+
+        // these variables are for download of inputs
+        this.analysisIds = Lists.newArrayList(getProperty(prefix + "tumourAnalysisIds").split(","));
+        analysisIds.add(controlAnalysisId);
+        inputReaders.clear();
+        this.tumorAnalysisIds = Lists.newArrayList(getProperty(prefix + "tumourAnalysisIds").split(","));
+        this.bams = Lists.newArrayList(getProperty(prefix + "tumourBams").split(","));
+        bams.add(controlBam);
+        this.tumorAliquotIds = Lists.newArrayList(getProperty(prefix + "tumourAliquotIds").split(","));
+        if (tumorAliquotIds.size() != tumorAnalysisIds.size() || bams.size() != analysisIds.size()) {
+            throw new RuntimeException("The tumour aliquot IDs, analysis IDs and BAMs of donor " + donorId + " do not match up");
+        }
+
+        // S3 URLs, the donors of a batch only need them when downloading from S3
+        if (prefix.isEmpty() || S3.equalsIgnoreCase(downloadSource)) {
+            controlS3URL = getProperty(prefix + "controlBamS3Url");
+            allBamS3Urls = Lists.newArrayList(getProperty(prefix + "tumourBamS3Urls").split(","));
+            allBamS3Urls.add(controlS3URL);
+        }
+
+        // these variables are those extra required for EMBL upload
+        StringBuilder metadataURLBuilder = new StringBuilder();
+        metadataURLBuilder.append(gnosServer).append("/cghub/metadata/analysisFull/").append(controlAnalysisId);
+        for (String id : tumorAnalysisIds) {
+            metadataURLBuilder.append(",").append(gnosServer).append("/cghub/metadata/analysisFull/").append(id);
+        }
+        this.metadataURLs = metadataURLBuilder.toString();
+
+        if (localXMLMetadataPath != null) {
+            this.localXMLMetadataFiles = new ArrayList<>();
+            // pre-construct local metadata paths as well
+            localXMLMetadataFiles.add("data_" + controlAnalysisId + ".xml");
+            for (String tumourAnalysisId : tumorAnalysisIds) {
+                localXMLMetadataFiles.add("data_" + tumourAnalysisId + ".xml");
+            }
+        }
+
+        // the result names carry the date, a donor resumed from its checkpoints keeps that of its first run
+        formattedDate = runDate;
+        if (checkpointDir != null) {
+            File dateFile = new File(checkpointDir + "/" + donorId + "/" + RUN_DATE);
+            if (dateFile.isFile()) {
+                formattedDate = new String(Files.readAllBytes(dateFile.toPath()), StandardCharsets.UTF_8).trim();
+            }
+        }
+    }
+
+    /**
+     *
+     * @param relative
+     *            the workspace of the donor being built, relative to where the jobs run
+     */
+    private void useWorkspace(String relative) {
+        workspace = relative;
+        workspaceAbsolute = "`pwd`/" + relative;
+        dkfzResultDirectoryAbsolute = workspaceAbsolute + "/results/";
+        dkfzSnvShardDirectoryAbsolute = dkfzResultDirectoryAbsolute + "snv_shards/";
+        dkfzRunDirectoryAbsolute = dkfzResultDirectoryAbsolute + "runs/";
+    }
+
     /*
      * MAIN WORKFLOW METHOD
      */
@@ -214,70 +579,510 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
         // create a shared directory in /datastore on the host in order to download reference data
         Job createSharedWorkSpaceJob = createDirectoriesJob();
 
+        // the images are pulled alongside the reference staging and the downloads rather than by their first docker run
+        if (imagePrePull) {
+            imagePullJob("gnos", gnosDownloadName, gnosDockerDigest, createSharedWorkSpaceJob);
+            imagePullJob("embl", emblDockerName, emblDockerDigest, createSharedWorkSpaceJob);
+            imagePullJob("dkfz", dkfzDockerName, dkfzDockerDigest, createSharedWorkSpaceJob);
+        }
+
+        // reference staging and input downloads are independent, they all start off the shared directory job
         // create reference EMBL data by calling download_data (currently a stub in the Perl version)
         Job getReferenceDataJob = createReferenceDataJob(createSharedWorkSpaceJob);
 
         // download DKFZ data from GNOS
-        Job getDKFZReferenceDataJob = createDkfzReferenceDataJob(getReferenceDataJob);
+        Job getDKFZReferenceDataJob = createDkfzReferenceDataJob(createSharedWorkSpaceJob);
 
-        // create inputs
-        Job lastDownloadDataJob = createDownloadDataJobs(getDKFZReferenceDataJob);
+        // the exporter runs alongside everything else until the upload is done
+        Job metricsStartJob = metricsExporter ? metricsStartJob(createSharedWorkSpaceJob) : null;
 
-        // call the EMBL workflow
-        Job emblJob = runEMBLWorkflow(lastDownloadDataJob);
-        Job dkfzJob = null;
+        if (batchDonors != null) {
+            buildBatch(createSharedWorkSpaceJob, getReferenceDataJob, getDKFZReferenceDataJob, metricsStartJob);
+        } else {
+
+            // create inputs
+            Job downloadJoinJob = createDownloadDataJobs(createSharedWorkSpaceJob);
 
-        // call the DKFZ workflow
-        dkfzJob = runDKFZWorkflow(emblJob);
+            // call the EMBL workflow, it only needs its own reference files and the inputs
+            Job emblJob = runEMBLWorkflow(getReferenceDataJob, downloadJoinJob);
+            Job dkfzJob = null;
 
-        // common upload job
-        Job uploadJob = uploadJob();
-        uploadJob.addParent(emblJob);
-        uploadJob.addParent(dkfzJob);
+            // call the DKFZ workflow
+            dkfzJob = runDKFZWorkflow(createSharedWorkSpaceJob, getReferenceDataJob, getDKFZReferenceDataJob, downloadJoinJob, emblJob);
+
+            // common upload job, the inputs are released before since it does not read them
+            Job uploadJob = uploadJob(releaseInputs(emblJob, dkfzJob));
+            if (diskAdmission) {
+                diskReleaseJob(uploadJob);
+            }
 
-        // now cleanupJob
-        cleanupWorkflow(uploadJob);
+            Job metricsStopJob = metricsExporter ? metricsStopJob(metricsStartJob, uploadJob) : null;
 
+            // now cleanupJob
+            cleanupWorkflow(uploadJob, metricsStopJob);
+        }
+
+        // every job body is complete now
+        for (Map.Entry<Job, String> endEvent : jobEndEvents.entrySet()) {
+            Job job = endEvent.getKey();
+            String marker = checkpointMarkers.get(job);
+            job.getCommand().addArgument((marker == null ? "\n) \nJOB_EXIT=$? \n" : checkpointGuard(job, marker)) + endEvent.getValue());
+        }
+    }
+
+    /**
+     * Builds a branch per donor of a batch off the shared directories and reference data. The donors are spread over
+     * donorParallelism lanes, within a lane the callers of a donor wait for those of the previous donor while its inputs are
+     * downloaded, so each lane has at most one donor calling and the next one staged. Each donor is uploaded and cleaned up on its
+     * own.
+     *
+     * @param createSharedWorkSpaceJob
+     * @param getReferenceDataJob
+     * @param getDKFZReferenceDataJob
+     * @param metricsStartJob
+     *            null without the metrics exporter
+     */
+    private void buildBatch(Job createSharedWorkSpaceJob, Job getReferenceDataJob, Job getDKFZReferenceDataJob, Job metricsStartJob) {
+
+        Job[] laneReady = new Job[Math.min(donorParallelism, batchDonors.size())];
+        Job[] laneCallers = new Job[laneReady.length];
+        List<Job> lastJobs = new ArrayList<>();
+
+        for (int i = 0; i < batchDonors.size(); i++) {
+
+            String donor = batchDonors.get(i);
+            int lane = i % laneReady.length;
+            try {
+                readDonor(donor + ".");
+            } catch (Exception e) {
+                throw new RuntimeException("Could not read property from ini", e);
+            }
+            useWorkspace(SHARED_WORKSPACE + "/" + DONOR_WORKSPACES + "/" + donor);
+            resourceSlot = "_" + lane;
+
+            // the next donor of the lane is staged once this one has its inputs and a free slot
+            Job createDonorWorkSpaceJob = createJob("create_donor_dirs");
+            if (checkpointDir != null) {
+                createDonorWorkSpaceJob.getCommand().addArgument(checkpointWorkspace());
+            }
+            addWorkspaceDirectories(createDonorWorkSpaceJob);
+            createDonorWorkSpaceJob.addParent(laneReady[lane] == null ? createSharedWorkSpaceJob : laneReady[lane]);
+
+            Job downloadJoinJob = createDownloadDataJobs(createDonorWorkSpaceJob);
+            Job readyJob = downloadJoinJob;
+            if (laneCallers[lane] != null) {
+                readyJob = createJob("donor_slot");
+                readyJob.addParent(downloadJoinJob);
+                readyJob.addParent(laneCallers[lane]);
+            }
+
+            Job emblJob = runEMBLWorkflow(getReferenceDataJob, readyJob);
+            Job dkfzJob = runDKFZWorkflow(createDonorWorkSpaceJob, getReferenceDataJob, getDKFZReferenceDataJob, readyJob, emblJob);
+            laneReady[lane] = readyJob;
+            laneCallers[lane] = dkfzJob;
+
+            Job uploadJob = uploadJob(releaseInputs(emblJob, dkfzJob));
+            if (diskAdmission) {
+                diskReleaseJob(uploadJob);
+            }
+            Job cleanupJob = cleanupWorkflow(uploadJob);
+            lastJobs.add(cleanupJob == null ? uploadJob : cleanupJob);
+        }
+
+        // the jobs after the donors belong to none of them
+        donorId = null;
+        useWorkspace(SHARED_WORKSPACE);
+        resourceSlot = "";
+        if (metricsStartJob != null) {
+            lastJobs.add(metricsStartJob);
+            metricsStopJob(lastJobs.toArray(new Job[lastJobs.size()]));
+        }
+    }
+
+    /**
+     * Creates a job whose body is bracketed by start and end events in the job event log. The body runs in a subshell so the end event
+     * is written with its exit status whatever the body does, and that status stays the status of the job. The subshell runs with
+     * errexit, so the first failing command ends the body. It is not part of a list, where bash would ignore errexit, instead the shell
+     * of the job turns errexit off around it and restores it before the end. With checkpoints the body of a donor job is a function
+     * instead, buildWorkflow calls it unless the marker of the job is valid.
+     *
+     * @param name
+     * @param aliquotId
+     *            the tumour aliquot the job works on, null for jobs covering the whole donor or the shared jobs of a batch
+     * @param prologue
+     *            commands run before the start event
+     * @return the job, the end event is added by buildWorkflow
+     */
+    private Job createJob(String name, String aliquotId, String prologue) {
+        Job job = this.getWorkflow().createBashJob(name);
+        String eventArguments = " " + name + " " + (donorId == null ? "-" : donorId) + " " + (aliquotId == null ? "-" : aliquotId);
+        boolean checkpointed = checkpointDir != null && donorId != null && !UNCHECKPOINTED_JOBS.contains(name) && !name.startsWith("pull_");
+        // the no-op keeps the subshell valid for join jobs without a body
+        job.getCommand().addArgument(prologue + jobEvent("start") + eventArguments + " \n"
+                + (containerSampling ? sampledDockerRun(name) : "") + "JOB_OPTIONS=$- \nset +o errexit \nJOB_EXIT=0 \n"
+                + (checkpointed ? "checkpointed_job() { \n" : "( set -o errexit \n") + ": \n");
+        if (checkpointed) {
+            checkpointMarkers.put(job, workspace + "/" + CHECKPOINTS + "/" + name);
+        }
+        jobEndEvents.put(job, jobEvent("end") + eventArguments + " $JOB_EXIT \n" + "case $JOB_OPTIONS in *e*) set -o errexit ;; esac \n"
+                + "( exit $JOB_EXIT ) \n");
+        return job;
+    }
+
+    private Job createJob(String name, String aliquotId) {
+        return createJob(name, aliquotId, "");
+    }
+
+    private Job createJob(String name) {
+        return createJob(name, null, "");
+    }
+
+    /**
+     * Closes the function holding the body of a checkpointed job and calls it in a subshell unless the marker of the job is valid. The
+     * key of the marker is the MD5 of the body, which names the inputs, images and settings of the job, so a job built differently runs
+     * again. The function is called in a subshell with errexit, and the marker is only written once every command of the body
+     * succeeded.
+     *
+     * @param job
+     *            a job with a complete body
+     * @param marker
+     * @return the commands
+     */
+    private String checkpointGuard(Job job, String marker) {
+        // the first argument is the opening added by createJob
+        List<String> arguments = job.getCommand().getArguments();
+        MessageDigest digest = Checksums.md5();
+        for (String argument : arguments.subList(1, arguments.size())) {
+            digest.update(argument.getBytes(StandardCharsets.UTF_8));
+        }
+        String key = Checksums.hex(digest.digest());
+        List<String> outputs = checkpointOutputs.containsKey(job) ? checkpointOutputs.get(job) : new ArrayList<String>();
+        return "\n} \n" + "if " + javaTool("Checkpoint") + " -check " + (checkpointVerify ? "-verify " : "") + marker + " " + key
+                + "; then echo 'checkpoint of " + job.getAlgo() + " is valid, skipped'; \n" + "else ( set -o errexit; checkpointed_job ) \n"
+                + "JOB_EXIT=$? \n" + "[ $JOB_EXIT -ne 0 ] || " + javaTool("Checkpoint") + " -write " + marker + " " + key + " "
+                + Joiner.on(" ").join(outputs) + " || JOB_EXIT=$? \nfi \n";
+    }
+
+    /**
+     * Records the files a checkpointed job produces in its marker, a job whose files changed or are gone runs again. Jobs without
+     * outputs are skipped once they succeeded. Other jobs must not change these files afterwards.
+     *
+     * @param job
+     * @param paths
+     *            files, directories or globs, expanded when the job runs
+     */
+    private void checkpointOutputs(Job job, List<String> paths) {
+        if (checkpointMarkers.containsKey(job)) {
+            checkpointOutputs.put(job, paths);
+        }
+    }
+
+    /**
+     * The workspace of the donor being built becomes a link to a directory of the donor below checkpointDir, unless it exists already.
+     * The date of the first run is kept there for setupWorkflow.
+     *
+     * @return the commands
+     */
+    private String checkpointWorkspace() {
+        String stable = checkpointDir + "/" + donorId;
+        return "mkdir -m 0777 -p " + stable + "/settings \n" + "[ -e " + workspace + " ] || ln -s " + stable + " " + workspace + " \n"
+                + "[ -s " + workspace + "/" + RUN_DATE + " ] || echo " + formattedDate + " > " + workspace + "/" + RUN_DATE + " \n";
+    }
+
+    /**
+     * Defines the shell function the docker runs of a job go through when sampling. The container gets a name the sampler can find
+     * it by, the sampler is stopped once docker run returns and the status of docker run is kept. The samples directory is resolved
+     * before the job changes directory.
+     *
+     * @param name
+     *            the job, names the series and summary files
+     * @return the function definition
+     */
+    private String sampledDockerRun(String name) {
+        return "CONTAINER_SAMPLES=" + workspaceAbsolute + "/" + RESOURCE_SAMPLES + " \n"
+                + JobUtilities.SAMPLED_DOCKER_RUN + "() { \n"
+                + "  local name=" + name + "_$$_$RANDOM \n"
+                + "  " + javaTool("ContainerSampler") + " -i " + containerSamplingIntervalSec + " -name $name -o $CONTAINER_SAMPLES/" + name
+                + ".tsv -summary $CONTAINER_SAMPLES/" + name + ".json & \n"
+                + "  local sampler=$! \n"
+                + "  local status=0 \n"
+                + "  docker run --name $name \"$@\" || status=$? \n"
+                + "  kill $sampler 2>/dev/null || true \n"
+                + "  wait $sampler || true \n"
+                + "  return $status \n"
+                + "} \n";
+    }
+
+    private String jobEvent(String event) {
+        return "perl " + this.getWorkflowBaseDir() + "/scripts/job_event.pl " + JOB_EVENTS + " " + event;
+    }
+
+    /**
+     * Waits for the transfer scheduler of the node to admit the transfer the job runs next. The ledger entry and the budget are
+     * exported for the bundled transfer tools, which keep to their share, the share granted at admission is left in TRANSFER_RATE.
+     * If the body fails before releaseTransfer, an exit trap releases the transfer.
+     *
+     * @param job
+     * @param transferClass
+     *            control, reference, download or upload
+     * @param paths
+     *            where the transfer writes, or what an upload sends
+     */
+    private void admitTransfer(Job job, String transferClass, String paths) {
+        if (!transferScheduling) {
+            return;
+        }
+        job.getCommand().addArgument(
+                "export TRANSFER_SCHEDULE=" + commonDataDir + "/" + TRANSFER_SCHEDULE + " TRANSFER_ID="
+                        + (donorId == null ? "" : donorId + "/") + job.getAlgo() + ".$$ TRANSFER_BUDGET=" + transferBandwidthMb * MB
+                        + " \n" + "TRANSFER_RATE=$(" + javaTool("TransferScheduler") + " -slots " + transferSlots
+                        + " -budget $TRANSFER_BUDGET $TRANSFER_SCHEDULE " + transferClass + " $TRANSFER_ID $$ " + paths + ") \n"
+                        + "trap '" + javaTool("TransferScheduler") + " -release $TRANSFER_SCHEDULE $TRANSFER_ID > /dev/null' EXIT \n");
+    }
+
+    /**
+     * Releases the transfer admitted by admitTransfer and logs the bytes it moved and its seconds as a transfer event of the job. The
+     * transfer is the command just before, often a chain with && that errexit does not stop on, so if it failed the body ends with
+     * its status and the exit trap releases it.
+     *
+     * @param job
+     * @param paths
+     *            as given to admitTransfer
+     */
+    private void releaseTransfer(Job job, String paths) {
+        if (!transferScheduling) {
+            return;
+        }
+        job.getCommand().addArgument(
+                " \nTRANSFER_EXIT=$? \n" + "[ $TRANSFER_EXIT -eq 0 ] || exit $TRANSFER_EXIT \n" + "trap - EXIT \n" + "TRANSFER=$(" + javaTool("TransferScheduler") + " -release $TRANSFER_SCHEDULE $TRANSFER_ID " + paths
+                        + ") \n" + jobEvent("transfer") + " " + job.getAlgo() + " " + (donorId == null ? "-" : donorId) + " - $TRANSFER \n");
+    }
+
+    /**
+     * @return the result files of an upload below the directory
+     */
+    private static String uploadPaths(String directory, List<String> vcfs, List<String> tbis, List<String> tars) {
+        StringBuilder paths = new StringBuilder();
+        for (List<String> files : Arrays.asList(vcfs, tbis, tars)) {
+            for (String file : files) {
+                paths.append(paths.length() > 0 ? " " : "").append(directory).append('/').append(file);
+            }
+        }
+        return paths.toString();
     }
 
     /*
      * JOB BUILDING METHODS
      */
 
-    private void cleanupWorkflow(Job... lastJobs) {
+    /**
+     *
+     * @param lastJobs
+     *            the jobs the cleanup waits for, null entries are skipped
+     * @return the cleanup job, null when nothing is cleaned up
+     */
+    private Job cleanupWorkflow(Job... lastJobs) {
         Job cleanupJob = null;
+        // the BAMs are released by releaseInputs
         if (cleanup) {
-            cleanupJob = this.getWorkflow().createBashJob("cleanup");
+            cleanupJob = createJob("cleanup");
             cleanupJob.getCommand().addArgument("echo rf -Rf * \n");
-        } else if (cleanupBams) {
-            cleanupJob = this.getWorkflow().createBashJob("cleanupBams");
-            cleanupJob.getCommand().addArgument("rm -f ./*/*.bam && ").addArgument("rm -f ./shared_workspace/*/*.bam; ");
         }
         for (Job lastJob : lastJobs) {
             if (lastJob != null && cleanupJob != null) {
                 cleanupJob.addParent(lastJob);
             }
         }
+        return cleanupJob;
     }
 
     /**
+     * With cleanupBams each input BAM of the donor is deleted as soon as the jobs reading it are done, rather than after the upload.
+     * The space freed is logged as a freed event and shows up in the timing summary, a hard link to a BAM kept elsewhere frees nothing.
      *
-     * @param previousJobPointer
+     * @param callers
+     *            the last EMBL and DKFZ jobs
+     * @return the callers and the release jobs, the parents of the upload
+     */
+    private Job[] releaseInputs(Job... callers) {
+        if (!cleanupBams) {
+            return callers;
+        }
+        List<Job> parents = Lists.newArrayList(callers);
+        for (int i = 0; i < analysisIds.size(); i++) {
+            String analysisId = analysisIds.get(i);
+            String aliquotId = i < tumorAliquotIds.size() ? tumorAliquotIds.get(i) : null;
+            String bams = "./" + analysisId + "/*.bam " + workspace + "/inputs/" + analysisId + "/*.bam";
+            Job releaseJob = createJob("release_" + i, aliquotId);
+            // blocks of files with no other link, before they go
+            releaseJob.getCommand().addArgument(
+                    "FREED=`stat -c '%h %b %B' " + bams + " 2>/dev/null | awk '$1 == 1 { freed += $2 * $3 } END { printf \"%.0f\", freed }'` \n");
+            releaseJob.getCommand().addArgument("rm -f " + bams + " \n");
+            releaseJob.getCommand().addArgument(
+                    jobEvent("freed") + " release_" + i + " " + (donorId == null ? "-" : donorId) + " " + (aliquotId == null ? "-" : aliquotId)
+                            + " $FREED \n");
+            releaseJob.getCommand().addArgument("echo \"" + analysisId + ": $FREED bytes freed\" \n");
+            for (Job reader : inputReaders.get(analysisId)) {
+                releaseJob.addParent(reader);
+            }
+            parents.add(releaseJob);
+        }
+        return parents.toArray(new Job[parents.size()]);
+    }
+
+    /**
+     *
+     * @param job
+     * @param analysisIds
+     *            the inputs the job reads
+     */
+    private void readsInputs(Job job, List<String> analysisIds) {
+        for (String analysisId : analysisIds) {
+            if (!inputReaders.containsKey(analysisId)) {
+                inputReaders.put(analysisId, new ArrayList<Job>());
+            }
+            inputReaders.get(analysisId).add(job);
+        }
+    }
+
+    /**
+     *
+     * @param previousJobPointers
+     *            the jobs staging the EMBL reference files and the inputs
      * @return a pointer to the last job created
      */
-    private Job runEMBLWorkflow(Job previousJobPointer) {
+    private Job runEMBLWorkflow(Job... previousJobPointers) {
 
-        // call the EMBL workflow
-        Job emblJob = this.getWorkflow().createBashJob("embl_workflow");
+        if (emblPerAliquot) {
+            return runEMBLWorkflowPerAliquot(previousJobPointers);
+        }
 
-        // timing info
-        emblJob.getCommand().addArgument("date +%s >> download_timing.txt \n");
-        emblJob.getCommand().addArgument("date +%s > embl_timing.txt \n");
+        // call the EMBL workflow
+        Job emblJob = createJob("embl_workflow");
+        waitForImage(emblJob, emblDockerName);
 
         // make config
+        addEMBLIni(emblJob, workspaceAbsolute + "/settings/embl.ini", emblDonorOverrides());
+
+        // the actual docker command
+        emblJob.getCommand().addArgument(loadResourceProfile());
+        emblJob.getCommand().addArgument(emblDockerCommand("-v " + workspaceAbsolute + ":/datastore ", "embl.ini", 0));
+        checkpointOutputs(emblJob, emblResults());
+        readsInputs(emblJob, analysisIds);
+
+        for (Job previousJobPointer : previousJobPointers) {
+            emblJob.addParent(previousJobPointer);
+        }
+        return emblJob;
+    }
+
+    /**
+     * One Delly container per tumour aliquot, each in its own sub-workspace under embl/. At most emblParallelism containers run at
+     * once. The gather job moves the per-aliquot results to the top of the shared workspace where the single run writes them.
+     *
+     * @param previousJobPointers
+     *            the jobs staging the EMBL reference files and the inputs
+     * @return the gather job
+     */
+    private Job runEMBLWorkflowPerAliquot(Job... previousJobPointers) {
+
+        Job[] lanes = new Job[Math.min(emblParallelism, tumorAliquotIds.size())];
+        List<String> gatherCommands = new ArrayList<>();
+
+        for (int i = 0; i < tumorAliquotIds.size(); i++) {
+
+            String aliquotId = tumorAliquotIds.get(i);
+            String workspace = workspaceAbsolute + "/embl/" + aliquotId;
+            String iniFile = "embl_" + aliquotId + ".ini";
+
+            Job emblJob = createJob("embl_workflow_" + i, aliquotId);
+            waitForImage(emblJob, emblDockerName);
+
+            emblJob.getCommand().addArgument("mkdir -m 0777 -p " + workspace + " \n");
+
+            // make config, each container only sees its own tumour
+            Map<String, String> overrides = emblDonorOverrides();
+            overrides.put("delly_runID", aliquotId);
+            overrides.put("input_bam_path_tumor", "inputs/" + tumorAnalysisIds.get(i));
+            addEMBLIni(emblJob, workspaceAbsolute + "/settings/" + iniFile, overrides);
+
+            // the inputs are shared, everything the container writes stays in its sub-workspace
+            // the containers of a lane run one after the other and share its part of the EMBL slice
+            int lane = i % lanes.length;
+            emblJob.getCommand().addArgument(loadResourceProfile());
+            emblJob.getCommand().addArgument(
+                    emblDockerCommand("-v " + workspace + ":/datastore " + "-v " + workspaceAbsolute + "/inputs:/datastore/inputs ",
+                            iniFile, lane));
+            readsInputs(emblJob, Arrays.asList(tumorAnalysisIds.get(i), controlAnalysisId));
+
+            if (lanes[lane] == null) {
+                for (Job previousJobPointer : previousJobPointers) {
+                    emblJob.addParent(previousJobPointer);
+                }
+            } else {
+                emblJob.addParent(lanes[lane]);
+            }
+            lanes[lane] = emblJob;
+
+            gatherCommands.add(
+                    "mv " + workspace + "/" + aliquotId + "." + Version.EMBL_WORKFLOW_SHORT_NAME_VERSION + "." + formattedDate + "* "
+                            + workspaceAbsolute + "/ \n");
+        }
+
+        // the per-aliquot jobs record no outputs since the gather moves them
+        Job gatherJob = createJob("embl_gather");
+        for (String gatherCommand : gatherCommands) {
+            gatherJob.getCommand().addArgument(gatherCommand);
+        }
+        checkpointOutputs(gatherJob, emblResults());
+
+        for (Job lastEmblJob : lanes) {
+            gatherJob.addParent(lastEmblJob);
+        }
+        return gatherJob;
+    }
+
+    /**
+     *
+     * @return globs of the Delly results at the top of the workspace
+     */
+    private List<String> emblResults() {
+        List<String> results = new ArrayList<>();
+        for (String aliquotId : tumorAliquotIds) {
+            results.add(workspaceAbsolute + "/" + aliquotId + "." + Version.EMBL_WORKFLOW_SHORT_NAME_VERSION + "." + formattedDate + "*");
+        }
+        return results;
+    }
+
+    /**
+     * The EMBL entries of the ini name the inputs of a single donor, a donor of a batch replaces them with its own.
+     *
+     * @return the overrides of the donor being built, empty outside a batch
+     */
+    private Map<String, String> emblDonorOverrides() {
+        Map<String, String> overrides = new HashMap<>();
+        if (batchDonors != null) {
+            overrides.put("delly_runID", tumorAliquotIds.get(0));
+            overrides.put("input_bam_path_tumor", "inputs/" + tumorAnalysisIds.get(0));
+            overrides.put("input_bam_path_germ", "inputs/" + controlAnalysisId);
+        }
+        return overrides;
+    }
+
+    /**
+     *
+     * @param emblJob
+     * @param iniPath
+     *            where the ini is written
+     * @param overrides
+     *            values replacing the EMBL.* entries of the workflow ini
+     */
+    private void addEMBLIni(Job emblJob, String iniPath, Map<String, String> overrides) {
         boolean count = true;
         for (Entry<String, String> entry : this.getConfigs().entrySet()) {
             if (entry.getKey().startsWith(EMBL_PREFIX)) {
+                String key = entry.getKey().replaceFirst(EMBL_PREFIX, "");
+                String value = overrides.containsKey(key) ? overrides.get(key) : entry.getValue();
                 String cat = ">>";
                 if (count) {
                     cat = ">";
@@ -285,41 +1090,43 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
                 }
                 emblJob.getCommand().addArgument(
                 // we need a better way of getting the ini file here, this may not be safe if the workflow has escaped key-values
-                        "echo \"" + entry.getKey().replaceFirst(EMBL_PREFIX, "") + "\"=\"" + entry.getValue() + "\" " + cat + " "
-                                + SHARED_WORKSPACE_ABSOLUTE + "/settings/embl.ini \n");
+                        "echo \"" + key + "\"=\"" + value + "\" " + cat + " " + iniPath + " \n");
             }
         }
         // now supply date
-        emblJob.getCommand().addArgument("echo \"date=" + formattedDate + "\" >> " + SHARED_WORKSPACE_ABSOLUTE + "/settings/embl.ini \n");
+        emblJob.getCommand().addArgument("echo \"date=" + formattedDate + "\" >> " + iniPath + " \n");
+    }
 
-        // the actual docker command
-        emblJob.getCommand()
-                .addArgument(
-                // this is the actual command we run inside the container, which is to launch a workflow
-                        "docker run --rm -h master -v " + SHARED_WORKSPACE_ABSOLUTE
-                                + ":/datastore "
-                                // data files
-                                + "-v "
-                                + commonDataDir
-                                + "/embl:/datafiles "
-                                // mount the workflow.ini
-                                + "-v "
-                                + SHARED_WORKSPACE_ABSOLUTE
-                                + "/settings/embl.ini:/workflow.ini "
-                                // the container
-                                + emblDockerName
-                                + " "
-                                // command received by seqware (replace this with a real call to Delly after getting bam files downloaded)
-                                + "seqware bundle launch --dir /home/seqware/DELLY/target/Workflow_Bundle_DELLY_1.4.0_SeqWare_1.1.1 --engine whitestar-parallel --no-metadata --ini /workflow.ini\n");
-
-        // timing
-        emblJob.getCommand().addArgument("date +%s >> embl_timing.txt \n");
-
-        emblJob.addParent(previousJobPointer);
-        return emblJob;
+    /**
+     *
+     * @param datastoreMounts
+     *            the volumes making up /datastore in the container
+     * @param iniFile
+     *            name of the ini in the settings directory
+     * @param container
+     *            which of the EMBL containers running at the same time this is
+     * @return the docker command running Delly
+     */
+    private String emblDockerCommand(String datastoreMounts, String iniFile, int container) {
+        // this is the actual command we run inside the container, which is to launch a workflow
+        return utils.dockerRun() + "--rm -h master " + dockerResources("EMBL", emblContainers(), container)
+                + datastoreMounts
+                // data files
+                + "-v "
+                + commonDataDir
+                + "/embl:/datafiles "
+                // mount the workflow.ini
+                + "-v "
+                + workspaceAbsolute
+                + "/settings/" + iniFile + ":/workflow.ini "
+                // the container
+                + emblDockerName
+                + " "
+                // command received by seqware (replace this with a real call to Delly after getting bam files downloaded)
+                + "seqware bundle launch --dir /home/seqware/DELLY/target/Workflow_Bundle_DELLY_1.4.0_SeqWare_1.1.1 --engine whitestar-parallel --no-metadata --ini /workflow.ini\n";
     }
 
-    private Job uploadJob() throws RuntimeException {
+    private Job uploadJob(Job... parents) throws RuntimeException {
 
         // upload the EMBL and DKFZ results together
 
@@ -331,6 +1138,7 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
         List<String> tarmd5s = new ArrayList<>();
         List<String> qcFiles = new ArrayList<>();
         List<String> timingFiles = new ArrayList<>();
+        List<String> catalogued = new ArrayList<>();
 
         // FIXME: really just need one timing file not broken down by tumorAliquotID! This will be key for multi-tumor donors
         String qcJson = null;
@@ -343,8 +1151,10 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
             // String baseFile = "/workflow_data/" + tumorAliquotId + ".embl-delly_1-0-0-preFilter."+formattedDate;
             String baseFile = tumorAliquotId + "." + Version.EMBL_WORKFLOW_SHORT_NAME_VERSION + "." + formattedDate;
 
-            qcJson = "`find . | grep " + baseFile + ".sv.qc.json | head -1`";
-            timingJson = "`find . | grep " + baseFile + ".sv.timing.json | head -1`";
+            qcJson = workspaceAbsolute + "/" + catalogLookup(workspace + "/" + RESULT_CATALOG, baseFile + ".sv.qc.json");
+            timingJson = workspaceAbsolute + "/" + catalogLookup(workspace + "/" + RESULT_CATALOG, baseFile + ".sv.timing.json");
+            catalogued.add(baseFile + ".sv.qc.json");
+            catalogued.add(baseFile + ".sv.timing.json");
 
             // now add these to a list
             qcFiles.add("embl_qc_"+tumorAliquotId); qcFiles.add(qcJson);
@@ -394,12 +1204,18 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
 
             baseFile = tumorAliquotId + ".dkfz-";
 
-            timingJson = "./shared_workspace/results/timing.json";
+            timingJson = "./" + workspace + "/results/timing.json";
 
             // now add these to a list
-            qcFiles.add("dkfz_qc_indel_"+tumorAliquotId); qcFiles.add(DKFZ_RESULT_DIRECTORY_ABSOLUTE + "/" + baseFile + "indelCalling_" + Version.DKFZ_SNV_INDEL_WORKFLOW_VERSION_UNDERSCORE + "." + formattedDate + ".indel.json");
-            qcFiles.add("dkfz_qc_snv_mnv_"+tumorAliquotId); qcFiles.add(DKFZ_RESULT_DIRECTORY_ABSOLUTE + "/" + baseFile + "snvCalling_" + Version.DKFZ_SNV_INDEL_WORKFLOW_VERSION_UNDERSCORE + "." + formattedDate + ".snv_mnv.json");
-            qcFiles.add("dkfz_qc_cnv_"+tumorAliquotId); qcFiles.add(DKFZ_RESULT_DIRECTORY_ABSOLUTE + "/" + baseFile + "copyNumberEstimation_" + Version.DKFZ_CNV_WORKFLOW_VERSION_UNDERSCORE + "." + formattedDate + ".cnv.gcbias.json");
+            String indelJson = baseFile + "indelCalling_" + Version.DKFZ_SNV_INDEL_WORKFLOW_VERSION_UNDERSCORE + "." + formattedDate + ".indel.json";
+            String snvJson = baseFile + "snvCalling_" + Version.DKFZ_SNV_INDEL_WORKFLOW_VERSION_UNDERSCORE + "." + formattedDate + ".snv_mnv.json";
+            String cnvJson = baseFile + "copyNumberEstimation_" + Version.DKFZ_CNV_WORKFLOW_VERSION_UNDERSCORE + "." + formattedDate + ".cnv.gcbias.json";
+            qcFiles.add("dkfz_qc_indel_"+tumorAliquotId); qcFiles.add(dkfzResultDirectoryAbsolute + "/" + indelJson);
+            qcFiles.add("dkfz_qc_snv_mnv_"+tumorAliquotId); qcFiles.add(dkfzResultDirectoryAbsolute + "/" + snvJson);
+            qcFiles.add("dkfz_qc_cnv_"+tumorAliquotId); qcFiles.add(dkfzResultDirectoryAbsolute + "/" + cnvJson);
+            catalogued.add(indelJson);
+            catalogued.add(snvJson);
+            catalogued.add(cnvJson);
             timingFiles.add("global_timing_"+tumorAliquotId); timingFiles.add(timingJson);
 
             // VCF
@@ -441,18 +1257,38 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
             tarmd5s.add(baseFile + "snvCalling_" + Version.DKFZ_SNV_INDEL_WORKFLOW_VERSION_UNDERSCORE + "." + formattedDate + ".somatic.snv_mnv.tar.gz.md5");
 
         }
+        // find everything to upload in one walk, missing results fail here rather than in the upload tool
+        catalogued.addAll(vcfs);
+        catalogued.addAll(tbis);
+        catalogued.addAll(tars);
+        Job catalogJob = resultCatalogJob(catalogued, parents);
+
         // perform upload to GNOS
         // FIXME: hardcoded versions, URLs, etc
-        Job uploadJob = this.getWorkflow().createBashJob("upload");
+        Job uploadJob = createJob("upload");
+        uploadJob.addParent(catalogJob);
+        waitForImage(uploadJob, gnosDownloadName);
+
+        // summarize timing info since DKFZ does not provide a timing.json
+        uploadJob.getCommand().addArgument(timingSummaryCommand());
+
+        // peak and average use of every container sampled so far
+        if (containerSampling) {
+            String resourceJson = dkfzResultDirectoryAbsolute + "resource_usage.json";
+            uploadJob.getCommand().addArgument(javaTool("JsonMerge") + " -dir -o " + resourceJson + " "
+                    + workspaceAbsolute + "/" + RESOURCE_SAMPLES + " \n");
+            qcFiles.add("resource_usage");
+            qcFiles.add(resourceJson);
+        }
 
         // cleanup JSON to make single line, combine JSON
         String summaryQcJSON = "summary_qc.json";
-        uploadJob.getCommand().addArgument("perl " + this.getWorkflowBaseDir() + "/scripts/prep_json.pl "+Joiner.on(" ").join(qcFiles) +" > " + DKFZ_RESULT_DIRECTORY_ABSOLUTE + "/" + summaryQcJSON + "\n");
+        uploadJob.getCommand().addArgument(javaTool("JsonMerge") + " -o " + dkfzResultDirectoryAbsolute + "/" + summaryQcJSON + " " + Joiner.on(" ").join(qcFiles) + " \n");
         String summaryTimingJSON = "summary_timing.json";
-        uploadJob.getCommand().addArgument("perl " + this.getWorkflowBaseDir() + "/scripts/prep_json.pl "+Joiner.on(" ").join(timingFiles) +" > " + DKFZ_RESULT_DIRECTORY_ABSOLUTE + "/" + summaryTimingJSON + "\n");
+        uploadJob.getCommand().addArgument(javaTool("JsonMerge") + " -o " + dkfzResultDirectoryAbsolute + "/" + summaryTimingJSON + " " + Joiner.on(" ").join(timingFiles) + " \n");
 
         // copy the Delly results into the results folder to mix with DKFZ
-        uploadJob.getCommand().addArgument("cp "+SHARED_WORKSPACE_ABSOLUTE+"/*." + Version.EMBL_WORKFLOW_SHORT_NAME_VERSION + "." + formattedDate + "* " + DKFZ_RESULT_DIRECTORY_ABSOLUTE + "/\n");
+        uploadJob.getCommand().addArgument("cp -p "+workspaceAbsolute+"/*." + Version.EMBL_WORKFLOW_SHORT_NAME_VERSION + "." + formattedDate + "* " + dkfzResultDirectoryAbsolute + "/\n");
 
         // params
         StringBuilder overrideTxt = new StringBuilder();
@@ -462,12 +1298,17 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
         if (this.analysisCenterOverride != null) {
             overrideTxt.append(" --analysis-center-override ").append(this.analysisCenterOverride);
         }
+        // admitted before the checksum pass, which is chained to the upload command
+        String uploadPaths = uploadPaths(dkfzResultDirectoryAbsolute, vcfs, tbis, tars);
+        admitTransfer(uploadJob, "upload", uploadPaths);
+        verifyChecksums(uploadJob, dkfzResultDirectoryAbsolute, vcfs, tbis, tars);
+
         // Now do the upload based on the destination chosen
         // NOTE: I'm using the wrapper workflow version here so it's immediately obvious what wrapper was used
         if (LOCAL.equalsIgnoreCase(uploadDestination)) {
 
             // using hard links so it spans multiple exported filesystems to Docker
-            uploadJob = utils.localUploadJob(uploadJob, DKFZ_RESULT_DIRECTORY_ABSOLUTE, pemFile, metadataURLs, vcfs, vcfmd5s, tbis, tbimd5s,
+            uploadJob = utils.localUploadJob(uploadJob, dkfzResultDirectoryAbsolute, pemFile, metadataURLs, vcfs, vcfmd5s, tbis, tbimd5s,
                     tars, tarmd5s, uploadServer, Version.SEQWARE_VERSION, vmInstanceType, vmLocationCode, overrideTxt.toString(),
                     UPLOAD_ARCHIVE_IN_CONTAINER, gnosTimeoutMin, gnosRetries, summaryQcJSON, summaryTimingJSON, Version.WORKFLOW_SRC_URL,
                     Version.WORKFLOW_URL, Version.WORKFLOW_NAME, Version.WORKFLOW_VERSION, gnosDownloadName,
@@ -475,14 +1316,14 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
 
         } else if (GNOS.equalsIgnoreCase(uploadDestination)) {
 
-            uploadJob = utils.gnosUploadJob(uploadJob, DKFZ_RESULT_DIRECTORY_ABSOLUTE, pemFile, metadataURLs, vcfs, vcfmd5s, tbis, tbimd5s,
+            uploadJob = utils.gnosUploadJob(uploadJob, dkfzResultDirectoryAbsolute, pemFile, metadataURLs, vcfs, vcfmd5s, tbis, tbimd5s,
                     tars, tarmd5s, uploadServer, Version.SEQWARE_VERSION, vmInstanceType, vmLocationCode, overrideTxt.toString(),
                     gnosTimeoutMin, gnosRetries, summaryQcJSON, summaryTimingJSON, Version.WORKFLOW_SRC_URL,
                     Version.WORKFLOW_URL, Version.WORKFLOW_NAME, Version.WORKFLOW_VERSION, gnosDownloadName);
 
         } else if (S3.equalsIgnoreCase(uploadDestination)) {
 
-            uploadJob = utils.s3UploadJob(uploadJob, DKFZ_RESULT_DIRECTORY_ABSOLUTE, pemFile, metadataURLs, vcfs, vcfmd5s, tbis, tbimd5s, tars,
+            uploadJob = utils.s3UploadJob(uploadJob, dkfzResultDirectoryAbsolute, pemFile, metadataURLs, vcfs, vcfmd5s, tbis, tbimd5s, tars,
                     tarmd5s, uploadServer, Version.SEQWARE_VERSION, vmInstanceType, vmLocationCode, overrideTxt.toString(),
                     UPLOAD_ARCHIVE_IN_CONTAINER, s3Key, s3SecretKey, uploadS3BucketPath, gnosTimeoutMin, gnosRetries, summaryQcJSON, summaryTimingJSON,
                     Version.WORKFLOW_SRC_URL, Version.WORKFLOW_URL, Version.WORKFLOW_NAME,  Version.WORKFLOW_VERSION,
@@ -491,10 +1332,118 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
         } else {
             throw new RuntimeException("Don't know what upload type '" + uploadDestination + "' is!");
         }
+        releaseTransfer(uploadJob, uploadPaths);
         return uploadJob;
     }
 
-    private Job uploadEMBLJob() throws RuntimeException {
+    /**
+     *
+     * @param tool
+     *            class name of one of the command line tools in this package
+     * @return the command running it from the classes bundled with the workflow
+     */
+    private String javaTool(String tool) {
+        return "java -cp " + this.getWorkflowBaseDir() + "/classes io.seqware.pancancer." + tool;
+    }
+
+    /**
+     *
+     * @param tool
+     * @return the command running a bundled S3 tool with the credentials in its environment
+     */
+    private String s3Tool(String tool) {
+        return utils.s3Environment(s3Key, s3SecretKey) + javaTool(tool) + (s3Region.isEmpty() ? "" : " -region " + s3Region)
+                + (s3Endpoint.isEmpty() ? "" : " -endpoint " + s3Endpoint);
+    }
+
+    /**
+     *
+     * @param keyFile
+     *            the GNOS download key
+     * @return the GnosDownload command with the segment options of the ini
+     */
+    private String gnosHttpTool(String keyFile) {
+        return javaTool("GnosDownload") + " -segment-mb " + gnosHttpSegmentMb + " -streams " + gnosHttpStreams + " -retries "
+                + gnosRetries + " -token " + keyFile;
+    }
+
+    /**
+     *
+     * @param i
+     *            the index of the analysis
+     * @return the local copy of its GNOS metadata if localXMLMetadataPath is set, else its analysisFull URL
+     */
+    private String analysisMetadata(int i) {
+        return localXMLMetadataPath != null && !localXMLMetadataPath.isEmpty() ? localXMLMetadataPath + "/data_" + analysisIds.get(i)
+                + ".xml" : gnosServer + "/cghub/metadata/analysisFull/" + analysisIds.get(i);
+    }
+
+    /**
+     * DKFZ does not provide a timing.json, so one is derived from the job event log with the stage totals the old timing files gave
+     * and the timing of every job that finished so far. A batch shares the log, each donor gets its own jobs and the shared ones.
+     *
+     * @return the command writing results/timing.json
+     */
+    private String timingSummaryCommand() {
+        return javaTool("JsonMerge") + " -timing " + JOB_EVENTS + (batchDonors == null ? "" : " -donor " + donorId) + " -o " + dkfzResultDirectoryAbsolute + "timing.json"
+                + " download_timing_seconds 'download_*' reference_timing_seconds getEMBLDataFiles"
+                + " dkfz_reference_seconds getDKFZDataFiles dkfz_timing_seconds 'runDKFZ*' embl_timing_seconds 'embl_*'"
+                + (imagePrePull ? " image_pull_seconds 'pull_*'" : "") + " \n";
+    }
+
+    /**
+     * Hashes the files about to be uploaded in one parallel pass, writing missing .md5 sidecars and verifying existing ones. The upload
+     * command is chained behind it so a mismatch stops the upload.
+     *
+     * @param uploadJob
+     * @param directory
+     *            the directory the upload tool runs in
+     * @param vcfs
+     * @param tbis
+     * @param tars
+     */
+    private void verifyChecksums(Job uploadJob, String directory, List<String> vcfs, List<String> tbis, List<String> tars) {
+        uploadJob.getCommand().addArgument(
+                javaTool("Checksums")
+                        + (checksumThreads > 0 ? " -t " + checksumThreads : "") + " " + directory + " " + Joiner.on(" ").join(vcfs) + " "
+                        + Joiner.on(" ").join(tbis) + " " + Joiner.on(" ").join(tars) + " && ");
+    }
+
+    /**
+     * Walks the shared workspace once for the files the upload needs and writes where each one is to the result catalog. The input
+     * BAMs, the copies made for the SNV shards and the settings are skipped.
+     *
+     * @param expected
+     *            file names the upload needs
+     * @param parents
+     *            the jobs producing them
+     * @return the catalog job
+     */
+    private Job resultCatalogJob(List<String> expected, Job... parents) {
+        Job catalogJob = createJob("result_catalog");
+        catalogJob.getCommand().addArgument(
+                javaTool("ResultCatalog") + " " + workspaceAbsolute + " "
+                        + workspaceAbsolute + "/" + RESULT_CATALOG + " -x inputs -x snv_shards -x runs -x settings " + Joiner.on(" ").join(expected)
+                        + " \n");
+        checkpointOutputs(catalogJob, Arrays.asList(workspaceAbsolute + "/" + RESULT_CATALOG));
+        for (Job parent : parents) {
+            catalogJob.addParent(parent);
+        }
+        return catalogJob;
+    }
+
+    /**
+     *
+     * @param catalog
+     *            path of the result catalog from where the command runs
+     * @param name
+     * @return a command substitution giving the path of the file relative to the shared workspace
+     */
+    private String catalogLookup(String catalog, String name) {
+        return "`grep \"^" + name + "\t\" " + catalog + " | cut -f2`";
+    }
+
+    private Job uploadEMBLJob(Job... parents) throws RuntimeException {
         // upload the EMBL results
 
         List<String> vcfs = new ArrayList<>();
@@ -503,6 +1452,7 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
         List<String> vcfmd5s = new ArrayList<>();
         List<String> tbimd5s = new ArrayList<>();
         List<String> tarmd5s = new ArrayList<>();
+        List<String> catalogued = new ArrayList<>();
         // FIXME: really just need one timing file not broken down by tumorAliquotID! This will be key for multi-tumor donors
         String qcJson = null;
         String timingJson = null;
@@ -512,8 +1462,11 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
             // String baseFile = "/workflow_data/" + tumorAliquotId + ".embl-delly_1-0-0-preFilter."+formattedDate;
             String baseFile = tumorAliquotId + ".embl-delly_1-4-0-preFilter." + formattedDate;
 
-            qcJson = "`find . | grep " + baseFile + ".sv.qc.json | head -1`";
-            timingJson = "`find . | grep " + baseFile + ".sv.timing.json | head -1`";
+            // looked up inside the upload container, which runs in the shared workspace
+            qcJson = catalogLookup(RESULT_CATALOG, baseFile + ".sv.qc.json");
+            timingJson = catalogLookup(RESULT_CATALOG, baseFile + ".sv.timing.json");
+            catalogued.add(baseFile + ".sv.qc.json");
+            catalogued.add(baseFile + ".sv.timing.json");
 
             vcfs.add(baseFile + ".germline.sv.vcf.gz");
             vcfs.add(baseFile + ".sv.vcf.gz");
@@ -550,9 +1503,15 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
             tarmd5s.add(baseFile + ".sv.cov.tar.gz.md5");
 
         }
+        catalogued.addAll(vcfs);
+        catalogued.addAll(tbis);
+        catalogued.addAll(tars);
+        Job catalogJob = resultCatalogJob(catalogued, parents);
+
         // perform upload to GNOS
         // FIXME: hardcoded versions, URLs, etc
-        Job uploadJob = this.getWorkflow().createBashJob("uploadEMBL");
+        Job uploadJob = createJob("uploadEMBL");
+        uploadJob.addParent(catalogJob);
         // params
         StringBuilder overrideTxt = new StringBuilder();
         if (this.studyRefnameOverride != null) {
@@ -561,12 +1520,17 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
         if (this.analysisCenterOverride != null) {
             overrideTxt.append(" --analysis-center-override ").append(this.analysisCenterOverride);
         }
+        // admitted before the checksum pass, which is chained to the upload command
+        String uploadPaths = uploadPaths(workspaceAbsolute, vcfs, tbis, tars);
+        admitTransfer(uploadJob, "upload", uploadPaths);
+        verifyChecksums(uploadJob, workspaceAbsolute, vcfs, tbis, tars);
+
         // Now do the upload based on the destination chosen
         // NOTE: I'm using the wrapper workflow version here so it's immediately obvious what wrapper was used
         if (LOCAL.equalsIgnoreCase(uploadDestination)) {
 
             // using hard links so it spans multiple exported filesystems to Docker
-            uploadJob = utils.localUploadJob(uploadJob, SHARED_WORKSPACE_ABSOLUTE, pemFile, metadataURLs, vcfs, vcfmd5s, tbis, tbimd5s,
+            uploadJob = utils.localUploadJob(uploadJob, workspaceAbsolute, pemFile, metadataURLs, vcfs, vcfmd5s, tbis, tbimd5s,
                     tars, tarmd5s, uploadServer, Version.SEQWARE_VERSION, vmInstanceType, vmLocationCode, overrideTxt.toString(),
                     UPLOAD_ARCHIVE_IN_CONTAINER, gnosTimeoutMin, gnosRetries, qcJson, timingJson, Version.EMBL_WORKFLOW_SRC_URL,
                     Version.EMBL_WORKFLOW_URL, Version.EMBL_WORKFLOW_NAME, Version.WORKFLOW_VERSION, gnosDownloadName,
@@ -574,14 +1538,14 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
 
         } else if (GNOS.equalsIgnoreCase(uploadDestination)) {
 
-            uploadJob = utils.gnosUploadJob(uploadJob, SHARED_WORKSPACE_ABSOLUTE, pemFile, metadataURLs, vcfs, vcfmd5s, tbis, tbimd5s,
+            uploadJob = utils.gnosUploadJob(uploadJob, workspaceAbsolute, pemFile, metadataURLs, vcfs, vcfmd5s, tbis, tbimd5s,
                     tars, tarmd5s, uploadServer, Version.SEQWARE_VERSION, vmInstanceType, vmLocationCode, overrideTxt.toString(),
                     gnosTimeoutMin, gnosRetries, qcJson, timingJson, Version.EMBL_WORKFLOW_SRC_URL, Version.EMBL_WORKFLOW_URL,
                     Version.EMBL_WORKFLOW_NAME, Version.WORKFLOW_VERSION, gnosDownloadName);
 
         } else if (S3.equalsIgnoreCase(uploadDestination)) {
 
-            uploadJob = utils.s3UploadJob(uploadJob, SHARED_WORKSPACE_ABSOLUTE, pemFile, metadataURLs, vcfs, vcfmd5s, tbis, tbimd5s, tars,
+            uploadJob = utils.s3UploadJob(uploadJob, workspaceAbsolute, pemFile, metadataURLs, vcfs, vcfmd5s, tbis, tbimd5s, tars,
                     tarmd5s, uploadServer, Version.SEQWARE_VERSION, vmInstanceType, vmLocationCode, overrideTxt.toString(),
                     UPLOAD_ARCHIVE_IN_CONTAINER, s3Key, s3SecretKey, uploadS3BucketPath, gnosTimeoutMin, gnosRetries, qcJson, timingJson,
                     Version.EMBL_WORKFLOW_SRC_URL, Version.EMBL_WORKFLOW_URL, Version.EMBL_WORKFLOW_NAME, Version.WORKFLOW_VERSION,
@@ -590,10 +1554,24 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
         } else {
             throw new RuntimeException("Don't know what download Type " + downloadSource + " is!");
         }
+        releaseTransfer(uploadJob, uploadPaths);
         return uploadJob;
     }
 
-    private Job runDKFZWorkflow(Job previousJobPointer) {
+    /**
+     *
+     * @param createSharedWorkSpaceJob
+     *            the ini only needs the settings directory
+     * @param getReferenceDataJob
+     *            the SNV shards are planned from the EMBL reference genome
+     * @param getDKFZReferenceDataJob
+     * @param downloadJoinJob
+     * @param emblJob
+     *            the Delly bedpe files are read by the copy number calling
+     * @return a pointer to the last job created
+     */
+    private Job runDKFZWorkflow(Job createSharedWorkSpaceJob, Job getReferenceDataJob, Job getDKFZReferenceDataJob, Job downloadJoinJob,
+            Job emblJob) {
 
         // generate the tumor array
         List<String> tumorBams = new ArrayList<>();
@@ -620,55 +1598,267 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
                     + ".somatic.sv.bedpe.txt");
         }
 
-        Job generateIni = this.getWorkflow().createBashJob("generateDKFZ_ini");
-        generateIni.getCommand().addArgument(
-                "echo \"#!/bin/bash\n" + "tumorBams=( " + Joiner.on(" ").join(tumorBams) + " )\n" + "aliquotIDs=( "
-                        + Joiner.on(" ").join(tumorAliquotIds) + " )\n" + "controlBam=/mnt/datastore/workflow_data/inputdata/"
-                        + controlAnalysisId + "/" + controlBam + "\n" + "dellyFiles=( " + Joiner.on(" ").join(tumorDelly) + " )\n"
-                        + "runACEeq=true\n" + "runSNVCalling=true\n" + "runIndelCalling=true\n" + "date=" + this.formattedDate + "\" > "
-                        + SHARED_WORKSPACE + "/settings/dkfz.ini \n");
-        generateIni.addParent(previousJobPointer);
+        Job generateIni = createJob("generateDKFZ_ini");
+        generateIni.addParent(createSharedWorkSpaceJob);
+        // every DKFZ run waits for the ini
+        waitForImage(generateIni, dkfzDockerName);
+
+        boolean shardSnvCalling = dkfzSnvShards > 1;
+
+        if (!dkfzSplitRun && !shardSnvCalling) {
+
+            generateIni.getCommand().addArgument(dkfzIniCommand("dkfz.ini", tumorBams, tumorDelly, true, true, true));
+
+            // run the docker for DKFZ
+            Job runWorkflow = createJob("runDKFZ");
+            runWorkflow.getCommand().addArgument(dkfzDockerCommand("dkfz.ini", true, dkfzResultDirectoryAbsolute, 0));
+            // the only job writing the results directory, the split and sharded runs each have their own
+            checkpointOutputs(runWorkflow, Arrays.asList(dkfzResultDirectoryAbsolute));
+            readsInputs(runWorkflow, analysisIds);
+
+            runWorkflow.addParent(generateIni);
+            runWorkflow.addParent(getDKFZReferenceDataJob);
+            runWorkflow.addParent(downloadJoinJob);
+            runWorkflow.addParent(emblJob);
+
+            return runWorkflow;
+        }
+
+        List<Job> dkfzJobs = new ArrayList<>();
+
+        if (dkfzSplitRun) {
+
+            // split mode, only the copy number estimation reads the Delly bedpe files so SNV and indel calling start with the inputs
+            generateIni.getCommand().addArgument(
+                    dkfzIniCommand("dkfz_snv_indel.ini", tumorBams, tumorDelly, false, !shardSnvCalling, true));
+            generateIni.getCommand().addArgument(dkfzIniCommand("dkfz_cnv.ini", tumorBams, tumorDelly, true, false, false));
+
+            Job runSnvIndel = createJob("runDKFZ_snv_indel");
+            runSnvIndel.getCommand().addArgument("mkdir -m 0777 -p " + dkfzRunDirectoryAbsolute + "snv_indel \n");
+            runSnvIndel.getCommand().addArgument(
+                    dkfzDockerCommand("dkfz_snv_indel.ini", false, dkfzRunDirectoryAbsolute + "snv_indel", 0));
+            checkpointOutputs(runSnvIndel, Arrays.asList(dkfzRunDirectoryAbsolute + "snv_indel"));
+            readsInputs(runSnvIndel, analysisIds);
+            runSnvIndel.addParent(generateIni);
+            runSnvIndel.addParent(getDKFZReferenceDataJob);
+            runSnvIndel.addParent(downloadJoinJob);
+            dkfzJobs.add(runSnvIndel);
+
+            Job runCnv = createJob("runDKFZ_cnv");
+            runCnv.getCommand().addArgument("mkdir -m 0777 -p " + dkfzRunDirectoryAbsolute + "cnv \n");
+            runCnv.getCommand().addArgument(dkfzDockerCommand("dkfz_cnv.ini", true, dkfzRunDirectoryAbsolute + "cnv", 0));
+            checkpointOutputs(runCnv, Arrays.asList(dkfzRunDirectoryAbsolute + "cnv"));
+            readsInputs(runCnv, analysisIds);
+            runCnv.addParent(generateIni);
+            runCnv.addParent(getDKFZReferenceDataJob);
+            runCnv.addParent(downloadJoinJob);
+            runCnv.addParent(emblJob);
+            dkfzJobs.add(runCnv);
+
+        } else {
+
+            // the SNVs are called by the shards, the rest runs as usual
+            generateIni.getCommand().addArgument(dkfzIniCommand("dkfz.ini", tumorBams, tumorDelly, true, false, true));
+
+            Job runWorkflow = createJob("runDKFZ");
+            runWorkflow.getCommand().addArgument("mkdir -m 0777 -p " + dkfzRunDirectoryAbsolute + "indel_cnv \n");
+            runWorkflow.getCommand().addArgument(dkfzDockerCommand("dkfz.ini", true, dkfzRunDirectoryAbsolute + "indel_cnv", 0));
+            checkpointOutputs(runWorkflow, Arrays.asList(dkfzRunDirectoryAbsolute + "indel_cnv"));
+            readsInputs(runWorkflow, analysisIds);
+            runWorkflow.addParent(generateIni);
+            runWorkflow.addParent(getDKFZReferenceDataJob);
+            runWorkflow.addParent(downloadJoinJob);
+            runWorkflow.addParent(emblJob);
+            dkfzJobs.add(runWorkflow);
+        }
+
+        if (shardSnvCalling) {
+            // the shards are planned from the reference genome staged for EMBL
+            generateIni.addParent(getReferenceDataJob);
+            generateIni.getCommand().addArgument(dkfzIniCommand("dkfz_snv_shard.ini", tumorBams, tumorDelly, false, true, false));
+            generateIni.getCommand().addArgument(
+                    "perl " + this.getWorkflowBaseDir() + "/scripts/shard_genome.pl " + dkfzSnvShardReference + " " + dkfzSnvShards + " "
+                            + workspace + "/settings/dkfz_snv_shard.ini " + workspace + "/settings/dkfz_snv_shard_ \n");
+
+            // at most dkfzSnvParallelism shards run at once, the shards of a lane one after the other
+            Job[] lanes = new Job[dkfzSnvLanes()];
+            for (int shard = 0; shard < dkfzSnvShards; shard++) {
+                Job runShard = createJob("runDKFZ_snv_" + shard);
+                int lane = shard % lanes.length;
+                String shardIni = "dkfz_snv_shard_" + shard + ".ini";
+                runShard.getCommand().addArgument("mkdir -m 0777 -p " + dkfzSnvShardDirectoryAbsolute + shard + " \n");
+                runShard.getCommand().addArgument(
+                        dkfzDockerCommand(shardIni, false, dkfzSnvShardDirectoryAbsolute + shard, (dkfzSplitRun ? 1 : 0) + lane));
+                // an image ignoring chromosomeIndices calls the whole genome in every shard, stop at the first one
+                runShard.getCommand().addArgument(
+                        "perl " + this.getWorkflowBaseDir() + "/scripts/check_shard.pl " + workspace + "/settings/" + shardIni + " "
+                                + Joiner.on(" ").join(dkfzSnvShardVcfs(dkfzSnvShardDirectoryAbsolute + shard + "/")) + " \n");
+                checkpointOutputs(runShard, Arrays.asList(dkfzSnvShardDirectoryAbsolute + shard));
+                readsInputs(runShard, analysisIds);
+                if (lanes[lane] == null) {
+                    runShard.addParent(generateIni);
+                    runShard.addParent(getDKFZReferenceDataJob);
+                    runShard.addParent(downloadJoinJob);
+                } else {
+                    runShard.addParent(lanes[lane]);
+                }
+                lanes[lane] = runShard;
+            }
+
+            Job gatherJob = createJob("runDKFZ_snv_gather");
+            for (Job lastShard : lanes) {
+                gatherJob.addParent(lastShard);
+            }
+            gatherDKFZSnvShards(gatherJob);
+            dkfzJobs.add(gatherJob);
+        }
+
+        // the runs write to directories of their own so their Roddy stores and cleanups stay apart, the join links their results
+        // where a single run leaves them, the files stay in place so the checkpoints of the runs remain valid
+        Job dkfzJoin = createJob("runDKFZ_join");
+        List<String> joined = new ArrayList<>();
+        for (String run : dkfzSplitRun ? Arrays.asList("snv_indel", "cnv") : Arrays.asList("indel_cnv")) {
+            for (String tumorAliquotId : tumorAliquotIds) {
+                dkfzJoin.getCommand().addArgument(
+                        "find " + dkfzRunDirectoryAbsolute + run + " -maxdepth 1 -name '" + tumorAliquotId + ".dkfz-*' -exec ln -f -t "
+                                + dkfzResultDirectoryAbsolute + " {} + \n");
+            }
+        }
+        for (String tumorAliquotId : tumorAliquotIds) {
+            joined.add(dkfzResultDirectoryAbsolute + tumorAliquotId + ".dkfz-*");
+        }
+        checkpointOutputs(dkfzJoin, joined);
+        for (Job dkfzJob : dkfzJobs) {
+            dkfzJoin.addParent(dkfzJob);
+        }
+
+        return dkfzJoin;
+    }
+
+    /**
+     * The shards cover contiguous chromosome ranges in reference order, so their VCFs are concatenated in shard order with the header
+     * of the first shard. The tarballs are unpacked and merged into the layout of an unsharded run before they are repacked, see
+     * merge_shard_trees.pl, and the QC documents are aggregated into the document of an unsharded run.
+     *
+     * @param gatherJob
+     */
+    private void gatherDKFZSnvShards(Job gatherJob) {
+        List<String> outputs = new ArrayList<>();
+        for (String tumorAliquotId : tumorAliquotIds) {
+            String baseFile = tumorAliquotId + ".dkfz-snvCalling_" + Version.DKFZ_SNV_INDEL_WORKFLOW_VERSION_UNDERSCORE + "." + formattedDate;
+            outputs.add(dkfzResultDirectoryAbsolute + baseFile + ".*");
+
+            // the block copying concatenation also writes the tabix index and both md5 sidecars
+            for (String vcf : new String[] { baseFile + ".somatic.snv_mnv.vcf.gz", baseFile + ".germline.snv_mnv.vcf.gz" }) {
+                StringBuilder vcfShards = new StringBuilder();
+                for (int shard = 0; shard < dkfzSnvShards; shard++) {
+                    vcfShards.append(" ").append(dkfzSnvShardDirectoryAbsolute).append(shard).append("/").append(vcf);
+                }
+                gatherJob.getCommand().addArgument(
+                        javaTool("VcfConcat") + " " + dkfzResultDirectoryAbsolute
+                                + vcf + vcfShards + " \n");
+            }
+
+            String tar = baseFile + ".somatic.snv_mnv.tar.gz";
+            String json = baseFile + ".snv_mnv.json";
+            String tarDirectory = dkfzSnvShardDirectoryAbsolute + "tar/";
+            List<String> qcShards = new ArrayList<>();
+            List<String> tarShards = new ArrayList<>();
+            gatherJob.getCommand().addArgument("rm -rf " + tarDirectory + " \n");
+            for (int shard = 0; shard < dkfzSnvShards; shard++) {
+                gatherJob.getCommand().addArgument("mkdir -p " + tarDirectory + shard + " \n");
+                gatherJob.getCommand().addArgument(
+                        "tar xzf " + dkfzSnvShardDirectoryAbsolute + shard + "/" + tar + " -C " + tarDirectory + shard + " \n");
+                tarShards.add(tarDirectory + shard);
+                qcShards.add(dkfzSnvShardDirectoryAbsolute + shard + "/" + json);
+            }
+            gatherJob.getCommand().addArgument(
+                    "perl " + this.getWorkflowBaseDir() + "/scripts/merge_shard_trees.pl " + tarDirectory + "merged "
+                            + Joiner.on(" ").join(tarShards) + " \n");
+            // its .md5 is written by the checksum pass before the upload
+            if (archiveThreads > 0) {
+                gatherJob.getCommand().addArgument(
+                        javaTool("TarArchive") + " -t " + archiveThreads + " -name . " + tarDirectory + "merged "
+                                + dkfzResultDirectoryAbsolute + tar + " \n");
+            } else {
+                gatherJob.getCommand().addArgument("tar czf " + dkfzResultDirectoryAbsolute + tar + " -C " + tarDirectory + "merged . \n");
+            }
+            gatherJob.getCommand().addArgument(
+                    javaTool("JsonMerge") + " -aggregate -o " + dkfzResultDirectoryAbsolute + json + " " + Joiner.on(" ").join(qcShards)
+                            + " \n");
+        }
+        checkpointOutputs(gatherJob, outputs);
+    }
 
+    /**
+     *
+     * @param iniFile
+     *            name of the ini in the settings directory
+     * @param tumorBams
+     *            tumour BAM paths inside the container
+     * @param tumorDelly
+     *            Delly bedpe paths inside the container
+     * @param runACEeq
+     * @param runSNVCalling
+     * @param runIndelCalling
+     * @return the command writing the Roddy run settings
+     */
+    private String dkfzIniCommand(String iniFile, List<String> tumorBams, List<String> tumorDelly, boolean runACEeq,
+            boolean runSNVCalling, boolean runIndelCalling) {
+        return "echo \"#!/bin/bash\n" + "tumorBams=( " + Joiner.on(" ").join(tumorBams) + " )\n" + "aliquotIDs=( "
+                + Joiner.on(" ").join(tumorAliquotIds) + " )\n" + "controlBam=/mnt/datastore/workflow_data/inputdata/"
+                + controlAnalysisId + "/" + controlBam + "\n" + "dellyFiles=( " + Joiner.on(" ").join(tumorDelly) + " )\n"
+                + "runACEeq=" + runACEeq + "\n" + "runSNVCalling=" + runSNVCalling + "\n" + "runIndelCalling=" + runIndelCalling + "\n"
+                + "date=" + this.formattedDate + "\" > " + workspace + "/settings/" + iniFile + " \n";
+    }
+
+    /**
+     *
+     * @param iniFile
+     *            name of the ini in the settings directory
+     * @param mountDellyFiles
+     *            only mount the Delly bedpe files once they exist, otherwise Docker creates directories in their place. The runs
+     *            mounting them start after Delly and take over its share of the node.
+     * @param resultDirectory
+     *            host directory receiving the Roddy results
+     * @param container
+     *            which of the DKFZ containers running next to Delly this is, see dkfzContainers(), ignored for the runs after Delly
+     * @return the docker command running Roddy
+     */
+    private String dkfzDockerCommand(String iniFile, boolean mountDellyFiles, String resultDirectory, int container) {
         // prepare file mount paths
-        StringBuffer mounts = new StringBuffer();
+        StringBuilder mounts = new StringBuilder();
         for (int i = 0; i < tumorAliquotIds.size(); i++) {
             String aliquotId = tumorAliquotIds.get(i);
             String analysisId = tumorAnalysisIds.get(i);
-            mounts.append(" -v " + SHARED_WORKSPACE_ABSOLUTE + "/inputs/").append(analysisId)
+            mounts.append(" -v " + workspaceAbsolute + "/inputs/").append(analysisId)
                     .append(":/mnt/datastore/workflow_data/inputdata/").append(analysisId).append(" ");
-            mounts.append(" -v " + SHARED_WORKSPACE_ABSOLUTE + "/").append(aliquotId).append("."+Version.EMBL_WORKFLOW_SHORT_NAME_VERSION+".")
-                    .append(formattedDate).append(".somatic.sv.bedpe.txt:/mnt/datastore/workflow_data/inputdata/").append(aliquotId)
-                    .append("." + Version.EMBL_WORKFLOW_SHORT_NAME_VERSION + ".").append(formattedDate).append(".somatic.sv.bedpe.txt ");
+            if (mountDellyFiles) {
+                mounts.append(" -v " + workspaceAbsolute + "/").append(aliquotId).append("." + Version.EMBL_WORKFLOW_SHORT_NAME_VERSION + ".")
+                        .append(formattedDate).append(".somatic.sv.bedpe.txt:/mnt/datastore/workflow_data/inputdata/").append(aliquotId)
+                        .append("." + Version.EMBL_WORKFLOW_SHORT_NAME_VERSION + ".").append(formattedDate).append(".somatic.sv.bedpe.txt ");
+            }
         }
         // now deal with the control
-        mounts.append(" -v " + SHARED_WORKSPACE_ABSOLUTE + "/inputs/").append(controlAnalysisId)
+        mounts.append(" -v " + workspaceAbsolute + "/inputs/").append(controlAnalysisId)
                 .append(":/mnt/datastore/workflow_data/inputdata/").append(controlAnalysisId).append(" ");
 
-        // run the docker for DKFZ
-        Job runWorkflow = this.getWorkflow().createBashJob("runDKFZ");
-        runWorkflow.getCommand().addArgument("date +%s > dkfz_timing.txt \n");
-        runWorkflow.getCommand().addArgument(
-                "docker run "
-                        // container seems to assume that the host is called master
-                        + "-h master "
-                        // mount shared directories
-                        + "-v " + commonDataDir + "/dkfz/" + dkfzDataBundleUUID
-                        + "/bundledFiles:/mnt/datastore/bundledFiles "
-                        // this path does not look right
-                        + mounts + "-v " + SHARED_WORKSPACE_ABSOLUTE + "/testdata:/mnt/datastore/testdata " + "-v "
-                        + SHARED_WORKSPACE_ABSOLUTE + "/settings/dkfz.ini:/mnt/datastore/workflow_data/workflow.ini " + "-v "
-                        + SHARED_WORKSPACE_ABSOLUTE + "/results:/mnt/datastore/resultdata "
-                        // the DKFZ image and the command we feed into it follow
-                        + dkfzDockerName + " /bin/bash -c '/roddy/bin/runwrapper.sh' \n");
-        runWorkflow.getCommand().addArgument("date +%s >> dkfz_timing.txt \n");
-
-        // summarize timing info since DKFZ does not provide a timing.json
-        runWorkflow.getCommand().addArgument(
-                "perl " + this.getWorkflowBaseDir() + "/scripts/timing.pl > " + SHARED_WORKSPACE_ABSOLUTE + "/results/timing.json");
-
-        runWorkflow.addParent(generateIni);
-
-        return runWorkflow;
+        return loadResourceProfile()
+                + utils.dockerRun()
+                // container seems to assume that the host is called master
+                + "-h master "
+                // the runs next to Delly share the DKFZ slice of the node, the run after Delly gets the EMBL slice
+                + (mountDellyFiles ? dockerResources(dkfzContainers() == 0 ? "DKFZ" : "DKFZ_LATE", 1, 0)
+                        : dockerResources("DKFZ", dkfzContainers(), container))
+                // mount shared directories
+                + "-v " + commonDataDir + "/dkfz/" + dkfzDataBundleUUID
+                + "/bundledFiles:/mnt/datastore/bundledFiles "
+                // this path does not look right
+                + mounts + "-v " + workspaceAbsolute + "/testdata:/mnt/datastore/testdata " + "-v "
+                + workspaceAbsolute + "/settings/" + iniFile + ":/mnt/datastore/workflow_data/workflow.ini " + "-v "
+                + resultDirectory + ":/mnt/datastore/resultdata "
+                // the DKFZ image and the command we feed into it follow
+                + dkfzDockerName + " /bin/bash -c '/roddy/bin/runwrapper.sh' \n";
     }
 
     private Job uploadDKFZJob() throws RuntimeException {
@@ -735,12 +1925,12 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
 
         }
 
-        Job uploadJob = this.getWorkflow().createBashJob("uploadDKFZ");
+        Job uploadJob = createJob("uploadDKFZ");
 
         // have to do this to cleanupJob the multi-line JSON
         uploadJob.getCommand().addArgument(
-                "cat " + SHARED_WORKSPACE + "/results/" + qcJson + " | perl -p -e 's/\\n/ /g' > " + SHARED_WORKSPACE + "/results/"
-                        + qcJsonSingle + " \n");
+                javaTool("JsonMerge") + " -compact -o " + workspace + "/results/" + qcJsonSingle + " " + workspace + "/results/"
+                        + qcJson + " \n");
 
         StringBuilder overrideTxt = new StringBuilder();
         if (this.studyRefnameOverride != null) {
@@ -750,12 +1940,17 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
             overrideTxt.append(" --analysis-center-override ").append(this.analysisCenterOverride);
         }
 
+        // admitted before the checksum pass, which is chained to the upload command
+        String uploadPaths = uploadPaths(dkfzResultDirectoryAbsolute, vcfs, tbis, tars);
+        admitTransfer(uploadJob, "upload", uploadPaths);
+        verifyChecksums(uploadJob, dkfzResultDirectoryAbsolute, vcfs, tbis, tars);
+
         // Now do the upload based on the destination chosen
         // NOTE: I'm using the wrapper workflow version here so it's immediately obvious what wrapper was used
         if (LOCAL.equalsIgnoreCase(uploadDestination)) {
 
             // using hard links so it spans multiple exported filesystems to Docker
-            uploadJob = utils.localUploadJob(uploadJob, DKFZ_RESULT_DIRECTORY_ABSOLUTE, pemFile, metadataURLs, vcfs, vcfmd5s, tbis,
+            uploadJob = utils.localUploadJob(uploadJob, dkfzResultDirectoryAbsolute, pemFile, metadataURLs, vcfs, vcfmd5s, tbis,
                     tbimd5s, tars, tarmd5s, uploadServer, Version.SEQWARE_VERSION, vmInstanceType, vmLocationCode, overrideTxt.toString(),
                     UPLOAD_ARCHIVE_IN_CONTAINER, gnosTimeoutMin, gnosRetries, qcJsonSingle, timingJson, Version.DKFZ_WORKFLOW_SRC_URL,
                     Version.DKFZ_WORKFLOW_URL, Version.DKFZ_WORKFLOW_NAME, Version.WORKFLOW_VERSION, gnosDownloadName,
@@ -763,14 +1958,14 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
 
         } else if (GNOS.equalsIgnoreCase(uploadDestination)) {
 
-            uploadJob = utils.gnosUploadJob(uploadJob, DKFZ_RESULT_DIRECTORY_ABSOLUTE, pemFile, metadataURLs, vcfs, vcfmd5s, tbis, tbimd5s,
+            uploadJob = utils.gnosUploadJob(uploadJob, dkfzResultDirectoryAbsolute, pemFile, metadataURLs, vcfs, vcfmd5s, tbis, tbimd5s,
                     tars, tarmd5s, uploadServer, Version.SEQWARE_VERSION, vmInstanceType, vmLocationCode, overrideTxt.toString(),
                     gnosTimeoutMin, gnosRetries, qcJsonSingle, timingJson, Version.DKFZ_WORKFLOW_SRC_URL, Version.DKFZ_WORKFLOW_URL,
                     Version.DKFZ_WORKFLOW_NAME, Version.WORKFLOW_VERSION, gnosDownloadName);
 
         } else if (S3.equalsIgnoreCase(uploadDestination)) {
 
-            uploadJob = utils.s3UploadJob(uploadJob, DKFZ_RESULT_DIRECTORY_ABSOLUTE, pemFile, metadataURLs, vcfs, vcfmd5s, tbis, tbimd5s,
+            uploadJob = utils.s3UploadJob(uploadJob, dkfzResultDirectoryAbsolute, pemFile, metadataURLs, vcfs, vcfmd5s, tbis, tbimd5s,
                     tars, tarmd5s, uploadServer, Version.SEQWARE_VERSION, vmInstanceType, vmLocationCode, overrideTxt.toString(),
                     UPLOAD_ARCHIVE_IN_CONTAINER, s3Key, s3SecretKey, uploadS3BucketPath, gnosTimeoutMin, gnosRetries, qcJsonSingle,
                     timingJson, Version.DKFZ_WORKFLOW_SRC_URL, Version.DKFZ_WORKFLOW_URL, Version.DKFZ_WORKFLOW_NAME,
@@ -779,33 +1974,242 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
         } else {
             throw new RuntimeException("Don't know what download Type " + downloadSource + " is!");
         }
+        releaseTransfer(uploadJob, uploadPaths);
         return uploadJob;
     }
 
+    /**
+     *
+     * @return the command loading the container resource limits written by create_dirs, empty without resource partitioning
+     */
+    private String loadResourceProfile() {
+        return resourcePartitioning ? ". " + RESOURCE_PROFILE + " \n" : "";
+    }
+
+    /**
+     *
+     * @param caller
+     *            EMBL or DKFZ
+     * @param containers
+     *            how many containers of the caller run at the same time
+     * @param container
+     *            which of them this is
+     * @return the docker run options pinning the container to its part of the share of the caller on the host, or on the slot of
+     *         the donor in a batch
+     */
+    private String dockerResources(String caller, int containers, int container) {
+        if (!resourcePartitioning) {
+            return "";
+        }
+        return "$" + caller + resourceSlot + (containers > 1 ? "_" + container : "") + "_DOCKER_RESOURCES ";
+    }
+
+    /**
+     *
+     * @return how many Delly containers run at the same time, the lanes of the per-aliquot runs
+     */
+    private int emblContainers() {
+        if (!emblPerAliquot) {
+            return 1;
+        }
+        // the donors of a batch are read after the host is sized
+        return batchDonors == null ? Math.min(emblParallelism, tumorAliquotIds.size()) : emblParallelism;
+    }
+
+    /**
+     *
+     * @return how many Roddy containers run at the same time as Delly: the SNV and indel run of a split run followed by the SNV
+     *         shards. The single run, the copy number run and the run next to the shards wait for Delly.
+     */
+    private int dkfzContainers() {
+        return (dkfzSplitRun ? 1 : 0) + (dkfzSnvShards > 1 ? dkfzSnvLanes() : 0);
+    }
+
+    /**
+     *
+     * @return how many SNV shards run at the same time
+     */
+    private int dkfzSnvLanes() {
+        return Math.min(dkfzSnvParallelism, dkfzSnvShards);
+    }
+
+    /**
+     *
+     * @param directory
+     *            result directory of a shard, with its trailing slash
+     * @return the somatic and germline SNV VCFs of every tumour aliquot in the directory
+     */
+    private List<String> dkfzSnvShardVcfs(String directory) {
+        List<String> vcfs = new ArrayList<>();
+        for (String tumorAliquotId : tumorAliquotIds) {
+            String baseFile = tumorAliquotId + ".dkfz-snvCalling_" + Version.DKFZ_SNV_INDEL_WORKFLOW_VERSION_UNDERSCORE + "." + formattedDate;
+            vcfs.add(directory + baseFile + ".somatic.snv_mnv.vcf.gz");
+            vcfs.add(directory + baseFile + ".germline.snv_mnv.vcf.gz");
+        }
+        return vcfs;
+    }
+
     private Job createDirectoriesJob() {
-        Job createSharedWorkSpaceJob = this.getWorkflow().createBashJob("create_dirs");
-        createSharedWorkSpaceJob.getCommand().addArgument("mkdir -m 0777 -p " + SHARED_WORKSPACE + " \n");
-        createSharedWorkSpaceJob.getCommand().addArgument("mkdir -m 0777 -p " + SHARED_WORKSPACE + "/settings \n");
-        createSharedWorkSpaceJob.getCommand().addArgument("mkdir -m 0777 -p " + SHARED_WORKSPACE + "/results \n");
-        createSharedWorkSpaceJob.getCommand().addArgument("mkdir -m 0777 -p " + SHARED_WORKSPACE + "/working \n");
-        createSharedWorkSpaceJob.getCommand().addArgument("mkdir -m 0777 -p " + SHARED_WORKSPACE + "/downloads/dkfz \n");
-        createSharedWorkSpaceJob.getCommand().addArgument("mkdir -m 0777 -p " + SHARED_WORKSPACE + "/downloads/embl \n");
-        createSharedWorkSpaceJob.getCommand().addArgument("mkdir -m 0777 -p " + SHARED_WORKSPACE + "/inputs \n");
-        createSharedWorkSpaceJob.getCommand().addArgument("mkdir -m 0777 -p " + SHARED_WORKSPACE + "/testdata \n");
-        createSharedWorkSpaceJob.getCommand().addArgument("mkdir -m 0777 -p " + SHARED_WORKSPACE + "/uploads \n");
-        createSharedWorkSpaceJob.getCommand().addArgument("mkdir -m 0777 -p " + SHARED_WORKSPACE + "/data \n"); // deprecated, using data
-                                                                                                                // dirs below
+        // a single donor links the shared workspace before the start event creates it
+        Job createSharedWorkSpaceJob = createJob("create_dirs", null, checkpointDir != null && batchDonors == null ? checkpointWorkspace()
+                : "");
+        if (batchDonors == null) {
+            addWorkspaceDirectories(createSharedWorkSpaceJob);
+        } else {
+            // the donors create their own workspaces below this one
+            createSharedWorkSpaceJob.getCommand().addArgument("mkdir -m 0777 -p " + SHARED_WORKSPACE + "/" + DONOR_WORKSPACES + " \n");
+            createSharedWorkSpaceJob.getCommand().addArgument("mkdir -m 0777 -p " + SHARED_WORKSPACE + "/settings \n");
+        }
         createSharedWorkSpaceJob.getCommand().addArgument("mkdir -m 0777 -p " + commonDataDir + "/dkfz \n");
         createSharedWorkSpaceJob.getCommand().addArgument("mkdir -m 0777 -p " + commonDataDir + "/embl \n");
+        // the host is sized once here, the caller jobs source the result
+        if (resourcePartitioning) {
+            StringBuilder callers = new StringBuilder();
+            // the node is only split between the callers when DKFZ containers run next to Delly, the Roddy run after Delly takes
+            // over its slice. Each slice is split again between the containers of the caller running at the same time.
+            List<String> slots = new ArrayList<>();
+            if (batchDonors == null) {
+                slots.add("");
+            } else {
+                // one slice per donor running at the same time
+                for (int slot = 0; slot < Math.min(donorParallelism, batchDonors.size()); slot++) {
+                    slots.add("_" + slot);
+                }
+            }
+            for (String slot : slots) {
+                callers.append(" EMBL").append(slot).append('=').append(emblResourceWeight).append(':').append(emblContainers());
+                if (dkfzContainers() == 0) {
+                    callers.append(" DKFZ").append(slot).append("=@EMBL").append(slot);
+                } else {
+                    callers.append(" DKFZ").append(slot).append('=').append(dkfzResourceWeight).append(':').append(dkfzContainers());
+                    callers.append(" DKFZ_LATE").append(slot).append("=@EMBL").append(slot);
+                }
+            }
+            createSharedWorkSpaceJob.getCommand().addArgument(
+                    "perl " + this.getWorkflowBaseDir() + "/scripts/resource_profile.pl " + resourceReservedMemGb + callers + " > "
+                            + RESOURCE_PROFILE + " \n");
+        }
 
         return createSharedWorkSpaceJob;
     }
 
+    /**
+     *
+     * @param job
+     *            the job creating the workspace of the donor being built
+     */
+    private void addWorkspaceDirectories(Job job) {
+        job.getCommand().addArgument("mkdir -m 0777 -p " + workspace + " \n");
+        job.getCommand().addArgument("mkdir -m 0777 -p " + workspace + "/settings \n");
+        job.getCommand().addArgument("mkdir -m 0777 -p " + workspace + "/results \n");
+        job.getCommand().addArgument("mkdir -m 0777 -p " + workspace + "/working \n");
+        job.getCommand().addArgument("mkdir -m 0777 -p " + workspace + "/downloads/dkfz \n");
+        job.getCommand().addArgument("mkdir -m 0777 -p " + workspace + "/downloads/embl \n");
+        job.getCommand().addArgument("mkdir -m 0777 -p " + workspace + "/inputs \n");
+        job.getCommand().addArgument("mkdir -m 0777 -p " + workspace + "/embl \n");
+        job.getCommand().addArgument("mkdir -m 0777 -p " + workspace + "/testdata \n");
+        job.getCommand().addArgument("mkdir -m 0777 -p " + workspace + "/uploads \n");
+        job.getCommand().addArgument("mkdir -m 0777 -p " + workspace + "/data \n"); // deprecated, using the common data dirs
+        if (containerSampling) {
+            job.getCommand().addArgument("mkdir -m 0777 -p " + workspace + "/" + RESOURCE_SAMPLES + " \n");
+        }
+    }
+
+    /**
+     * Pulls an image unless it is on the host already. With a digest the local image has to carry it, an image present under a
+     * different digest is pulled again and checked once more. Images configured twice are pulled once.
+     *
+     * @param name
+     *            names the job
+     * @param image
+     * @param digest
+     *            sha256:... expected among the repo digests of the image, null to not check
+     * @param createSharedWorkSpaceJob
+     */
+    private void imagePullJob(String name, String image, String digest, Job createSharedWorkSpaceJob) {
+        if (imagePullJobs.containsKey(image)) {
+            return;
+        }
+        Job pullJob = createJob("pull_" + name);
+        pullJob.getCommand().addArgument(imagePullCommand(image, digest));
+        pullJob.addParent(createSharedWorkSpaceJob);
+        imagePullJobs.put(image, pullJob);
+    }
+
+    /**
+     *
+     * @param image
+     * @param digest
+     *            null to not check
+     * @return the shell lines of the pull job
+     */
+    static String imagePullCommand(String image, String digest) {
+        String present = digest == null ? "docker inspect " + image + " > /dev/null 2>&1"
+                : "docker inspect --format '{{range .RepoDigests}}{{.}} {{end}}' " + image + " 2>/dev/null | grep -q '@" + digest + "'";
+        String command = "if " + present + "; then echo '" + image + " is present, not pulled'; else docker pull " + image
+                + " || exit 1; fi \n";
+        if (digest != null) {
+            command += present + " || { echo '" + image + " does not match " + digest + "' >&2; exit 1; } \n";
+        }
+        return command;
+    }
+
+    /**
+     *
+     * @param job
+     * @param image
+     *            the image the job runs, it waits for the pull if there is one
+     */
+    private void waitForImage(Job job, String image) {
+        if (imagePullJobs.containsKey(image)) {
+            job.addParent(imagePullJobs.get(image));
+        }
+    }
+
+    /**
+     * Starts the metrics exporter in the background, an exporter left over from an earlier attempt on the same workspace is stopped
+     * first.
+     *
+     * @param createSharedWorkSpaceJob
+     * @return the job
+     */
+    private Job metricsStartJob(Job createSharedWorkSpaceJob) {
+        Job metricsStartJob = createJob("metrics_start");
+        metricsStartJob.getCommand().addArgument("mkdir -m 0777 -p " + METRICS + "/reports \n");
+        metricsStartJob.getCommand().addArgument("if [ -f " + METRICS + "/exporter.pid ]; then kill `cat " + METRICS + "/exporter.pid` 2>/dev/null || true; fi \n");
+        metricsStartJob.getCommand().addArgument(
+                "nohup " + javaTool("MetricsExporter") + " -i " + metricsIntervalSec + (metricsPort > 0 ? " -port " + metricsPort : "")
+                        + (donorId == null ? "" : " -donor " + donorId) + " " + SHARED_WORKSPACE_ABSOLUTE + " " + commonDataDir + " " + SHARED_WORKSPACE_ABSOLUTE
+                        + "/metrics/pancancer.prom < /dev/null > " + METRICS + "/exporter.log 2>&1 & \n");
+        metricsStartJob.getCommand().addArgument("echo $! > " + METRICS + "/exporter.pid \n");
+        metricsStartJob.addParent(createSharedWorkSpaceJob);
+        return metricsStartJob;
+    }
+
+    /**
+     *
+     * @param parents
+     *            the metrics start and the last job reporting progress
+     * @return the job stopping the exporter, the metrics file keeps the last values
+     */
+    private Job metricsStopJob(Job... parents) {
+        Job metricsStopJob = createJob("metrics_stop");
+        metricsStopJob.getCommand().addArgument("kill `cat " + METRICS + "/exporter.pid` 2>/dev/null || true \n");
+        metricsStopJob.getCommand().addArgument("rm -f " + METRICS + "/exporter.pid \n");
+        for (Job parent : parents) {
+            metricsStopJob.addParent(parent);
+        }
+        return metricsStopJob;
+    }
+
     private Job createReferenceDataJob(Job createSharedWorkSpaceJob) {
 
-        Job getReferenceDataJob = this.getWorkflow().createBashJob("getEMBLDataFiles");
-        getReferenceDataJob.getCommand().addArgument("date +%s > reference_timing.txt \n");
+        Job getReferenceDataJob = createJob("getEMBLDataFiles");
         getReferenceDataJob.getCommand().addArgument("cd " + commonDataDir + "/embl \n");
+        admitTransfer(getReferenceDataJob, "reference", commonDataDir + "/embl");
+        if (transferScheduling) {
+            getReferenceDataJob.getCommand().addArgument("wget() { command wget --limit-rate=$TRANSFER_RATE \"$@\"; } \n");
+        }
         getReferenceDataJob
                 .getCommand()
                 .addArgument(
@@ -815,17 +2219,34 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
                 .getCommand()
                 .addArgument(
                         "if [ ! -f hs37d5_1000GP.gc ]; then wget https://s3.amazonaws.com/pan-cancer-data/pan-cancer-reference/hs37d5_1000GP.gc \n fi \n");
+        releaseTransfer(getReferenceDataJob, commonDataDir + "/embl");
         getReferenceDataJob.getCommand().addArgument("cd - \n");
-        getReferenceDataJob.getCommand().addArgument("date +%s >> reference_timing.txt \n");
         getReferenceDataJob.addParent(createSharedWorkSpaceJob);
         return getReferenceDataJob;
 
     }
 
-    private Job createDkfzReferenceDataJob(Job getReferenceDataJob) {
-        Job getDKFZReferenceDataJob = this.getWorkflow().createBashJob("getDKFZDataFiles");
-        getDKFZReferenceDataJob.getCommand().addArgument("date +%s > dkfz_reference_timing.txt \n");
+    private Job createDkfzReferenceDataJob(Job createSharedWorkSpaceJob) {
+        Job getDKFZReferenceDataJob = createJob("getDKFZDataFiles");
+        // only the bundle is transferred, not what is unpacked from it
+        String bundle = commonDataDir + "/dkfz/" + dkfzDataBundleUUID + "/" + dkfzDataBundleFile;
+        if (gnosHttpDownload) {
+            getDKFZReferenceDataJob.getCommand().addArgument("cd " + commonDataDir + "/dkfz \n");
+            admitTransfer(getDKFZReferenceDataJob, "reference", bundle);
+            getDKFZReferenceDataJob.getCommand().addArgument(
+                    "if [ ! -d " + dkfzDataBundleUUID + "/bundledFiles ]; then " + gnosHttpTool(dkfzDataBundleDownloadKey)
+                            + " -metadata " + dkfzDataBundleServer + "/cghub/metadata/analysisFull/" + dkfzDataBundleUUID + " "
+                            + dkfzDataBundleServer + "/cghub/data/analysis/download/" + dkfzDataBundleUUID + "/" + dkfzDataBundleFile
+                            + " " + dkfzDataBundleUUID + "/" + dkfzDataBundleFile + " \n (cd " + dkfzDataBundleUUID + " && tar zxf "
+                            + dkfzDataBundleFile + ") \n fi \n");
+            releaseTransfer(getDKFZReferenceDataJob, bundle);
+            getDKFZReferenceDataJob.getCommand().addArgument("cd - \n");
+            getDKFZReferenceDataJob.addParent(createSharedWorkSpaceJob);
+            return getDKFZReferenceDataJob;
+        }
+        waitForImage(getDKFZReferenceDataJob, gnosDownloadName);
         getDKFZReferenceDataJob.getCommand().addArgument("cd " + commonDataDir + "/dkfz \n");
+        admitTransfer(getDKFZReferenceDataJob, "reference", bundle);
         getDKFZReferenceDataJob
                 .getCommand()
                 .addArgument(
@@ -846,33 +2267,125 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
                                 + dkfzDataBundleFile + " --retries " + gnosRetries + " --timeout-min " + gnosTimeoutMin + " "
                                 + "  --pem /gnos_icgc_keyfile.pem && " + "cd " + dkfzDataBundleUUID + " && " + "tar zxf "
                                 + dkfzDataBundleFile + "' \n fi \n ");
+        releaseTransfer(getDKFZReferenceDataJob, bundle);
         getDKFZReferenceDataJob.getCommand().addArgument("cd - \n");
-        getDKFZReferenceDataJob.getCommand().addArgument("date +%s >> dkfz_reference_timing.txt \n");
-        getDKFZReferenceDataJob.getCommand().addArgument("date +%s > download_timing.txt \n");
-        getDKFZReferenceDataJob.addParent(getReferenceDataJob);
+        getDKFZReferenceDataJob.addParent(createSharedWorkSpaceJob);
         return getDKFZReferenceDataJob;
     }
 
+    /**
+     * Predicts the peak footprint of the donor from the BAM sizes, the caller expansion factors and the reference data still missing,
+     * and reserves it in the ledger of the node. The BAM sizes come from the GNOS metadata, a listing of the S3 object or the local
+     * files. A batch admits its donors one by one as their lanes reach them, a donor that does not fit waits or fails.
+     *
+     * @param previousJob
+     * @return the admission job
+     */
+    private Job diskAdmissionJob(Job previousJob) {
+        Job admissionJob = createJob("disk_admission");
+        StringBuilder sizes = new StringBuilder();
+        for (int i = 0; i < analysisIds.size(); i++) {
+            if (LOCAL.equalsIgnoreCase(downloadSource)) {
+                sizes.append(' ').append(bams.get(i));
+            } else if (S3.equalsIgnoreCase(downloadSource) && s3ParallelDownload) {
+                sizes.append(" bytes:`").append(s3Tool("S3Download")).append(" -size ").append(allBamS3Urls.get(i)).append('`');
+            } else if (S3.equalsIgnoreCase(downloadSource)) {
+                sizes.append(" bytes:`aws s3 ls ").append(allBamS3Urls.get(i)).append(" | awk '{ print $3 }'`");
+            } else {
+                sizes.append(" xml:").append(analysisMetadata(i)).append('#').append(bams.get(i));
+            }
+        }
+        if (S3.equalsIgnoreCase(downloadSource) && !s3ParallelDownload) {
+            admissionJob.getCommand().addArgument(utils.s3ConfigCommand(s3Key, s3SecretKey));
+        }
+        // local BAMs are linked into the workspace, only what the callers write takes space there, staged ones may be copied
+        double expansion = (LOCAL.equalsIgnoreCase(downloadSource) && !localStaging ? 0 : 1) + emblDiskFactor + dkfzDiskFactor;
+        admissionJob.getCommand().addArgument(
+                javaTool("DiskAdmission") + " -wait " + diskAdmissionWaitMin * 60 + " -margin " + diskAdmissionMarginGb * GB
+                        + " -expansion " + expansion + " -reference " + commonDataDir + "/embl/genome.fa " + emblReferenceGb * GB
+                        + " -reference " + commonDataDir + "/dkfz/" + dkfzDataBundleUUID + " " + dkfzReferenceGb * GB + " "
+                        + commonDataDir + "/" + DISK_RESERVATIONS + " " + donorId + " " + workspaceAbsolute + sizes + " \n");
+        admissionJob.addParent(previousJob);
+        return admissionJob;
+    }
+
+    /**
+     * Gives the space of the donor back once it is uploaded, a failed donor keeps it until it is admitted again.
+     *
+     * @param uploadJob
+     * @return the release job
+     */
+    private Job diskReleaseJob(Job uploadJob) {
+        Job releaseJob = createJob("disk_release");
+        releaseJob.getCommand().addArgument(
+                javaTool("DiskAdmission") + " -release " + commonDataDir + "/" + DISK_RESERVATIONS + " " + donorId + " \n");
+        releaseJob.addParent(uploadJob);
+        return releaseJob;
+    }
+
+    /**
+     * Downloads fan out from the previous job in at most downloadParallelism lanes, each lane runs its downloads one after the other.
+     * The control is started first since every caller reads it, the tumours follow in the order given in the ini. With disk admission
+     * the downloads wait for the donor to be admitted.
+     *
+     * @param previousJob
+     * @return a join job that completes once every input is downloaded
+     */
     private Job createDownloadDataJobs(Job previousJob) {
 
-        Job previousJobPointer = previousJob;
+        if (diskAdmission) {
+            previousJob = diskAdmissionJob(previousJob);
+        }
 
-        for (int i = 0; i < analysisIds.size(); i++) {
+        List<Integer> downloadOrder = new ArrayList<>();
+        downloadOrder.add(analysisIds.size() - 1);
+        for (int i = 0; i < analysisIds.size() - 1; i++) {
+            downloadOrder.add(i);
+        }
 
-            Job downloadJob = this.getWorkflow().createBashJob("download_" + i);
+        Job[] lanes = new Job[Math.min(downloadParallelism, downloadOrder.size())];
 
-            if (LOCAL.equalsIgnoreCase(downloadSource)) {
+        for (int n = 0; n < downloadOrder.size(); n++) {
+
+            int i = downloadOrder.get(n);
+            Job downloadJob = createJob("download_" + i, i < tumorAliquotIds.size() ? tumorAliquotIds.get(i) : null);
+            // local BAMs are not fetched over the network, the others wait for their turn on the node
+            boolean transfer = !LOCAL.equalsIgnoreCase(downloadSource);
+            String transferPaths = S3.equalsIgnoreCase(downloadSource) ? "./" + analysisIds.get(i) : workspaceAbsolute + "/inputs/"
+                    + analysisIds.get(i);
+            if (transfer) {
+                admitTransfer(downloadJob, i == analysisIds.size() - 1 ? "control" : "download", transferPaths);
+            }
+
+            if (LOCAL.equalsIgnoreCase(downloadSource) && localStaging) {
+
+                downloadJob = utils.localStageJob(downloadJob, javaTool("LocalStage") + " -t " + localStageStreams
+                        + (localStageVerify ? " -verify" : ""), workspaceAbsolute + "/inputs/" + analysisIds.get(i), analysisIds.get(i),
+                        bams.get(i));
+
+            } else if (LOCAL.equalsIgnoreCase(downloadSource)) {
 
                 // using hard links so it spans multiple exported filesystems to Docker
-                downloadJob = utils.localDownloadJob(downloadJob, SHARED_WORKSPACE_ABSOLUTE + "/inputs/" + analysisIds.get(i), bams.get(i));
+                downloadJob = utils.localDownloadJob(downloadJob, workspaceAbsolute + "/inputs/" + analysisIds.get(i), bams.get(i));
+
+            } else if (GNOS.equalsIgnoreCase(downloadSource) && gnosHttpDownload) {
+
+                downloadJob = utils.gnosHttpDownloadJob(downloadJob, gnosHttpTool(pemFile), workspaceAbsolute + "/inputs", gnosServer,
+                        analysisIds.get(i), bams.get(i), analysisMetadata(i));
 
             } else if (GNOS.equalsIgnoreCase(downloadSource)) {
 
                 // GET FROM INI
 
-                downloadJob = utils.gnosDownloadJob(downloadJob, SHARED_WORKSPACE_ABSOLUTE + "/inputs", pemFile, gnosTimeoutMin,
+                waitForImage(downloadJob, gnosDownloadName);
+                downloadJob = utils.gnosDownloadJob(downloadJob, workspaceAbsolute + "/inputs", pemFile, gnosTimeoutMin,
                         gnosRetries, gnosServer, analysisIds.get(i), bams.get(i), gnosDownloadName);
 
+            } else if (S3.equalsIgnoreCase(downloadSource) && s3ParallelDownload) {
+
+                downloadJob = utils.s3ParallelDownloadJob(downloadJob, s3Tool("S3Download") + " -part-mb " + s3PartMb + " -streams "
+                        + s3DownloadStreams, analysisIds.get(i), bams.get(i), allBamS3Urls.get(i));
+
             } else if (S3.equalsIgnoreCase(downloadSource)) {
 
                 downloadJob = utils.s3DownloadJob(downloadJob, analysisIds.get(i), bams.get(i), allBamS3Urls.get(i), s3Key, s3SecretKey);
@@ -880,12 +2393,27 @@ public class DEWrapperWorkflow extends AbstractWorkflowDataModel {
             } else {
                 throw new RuntimeException("Don't know what download Type " + downloadSource + " is!");
             }
+            if (transfer) {
+                releaseTransfer(downloadJob, transferPaths);
+            }
+            // S3 downloads land in the working directory, a new run downloads them again. Released BAMs must not make the download
+            // run again while the jobs reading them are skipped, so with cleanupBams nothing is recorded.
+            if (!cleanupBams) {
+                checkpointOutputs(downloadJob, Arrays.asList(S3.equalsIgnoreCase(downloadSource) ? "./" + analysisIds.get(i)
+                        : workspaceAbsolute + "/inputs/" + analysisIds.get(i)));
+            }
+
+            // the lane bounds how many downloads run at once
+            int lane = n % lanes.length;
+            downloadJob.addParent(lanes[lane] == null ? previousJob : lanes[lane]);
+            lanes[lane] = downloadJob;
+        }
 
-            downloadJob.addParent(previousJobPointer);
-            // for now, make these sequential
-            previousJobPointer = downloadJob;
+        Job downloadJoinJob = createJob("download_join");
+        for (Job lastDownloadJob : lanes) {
+            downloadJoinJob.addParent(lastDownloadJob);
         }
-        return previousJobPointer;
+        return downloadJoinJob;
     }
 
 }
@@ -0,0 +1,372 @@
+package io.seqware.pancancer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Admits a donor only if the filesystems of its workspace and of the reference data have room for its predicted peak footprint. The
+ * donors admitted on the node are kept in a ledger locked while it is read and rewritten, the space a donor reserved and has not
+ * used yet counts as taken for the next one.
+ *
+ * <pre>
+ * DiskAdmission [-wait seconds] [-margin bytes] [-expansion factor] [-reference path bytes]... &lt;ledger&gt; &lt;id&gt; &lt;workspace&gt; [bam]...
+ * DiskAdmission -release &lt;ledger&gt; &lt;id&gt;
+ * </pre>
+ *
+ * A BAM is given as a local file, as bytes:&lt;size&gt;, or as xml:&lt;GNOS analysis XML file or URL&gt;#&lt;BAM name&gt; for the
+ * file size in the metadata. The workspace needs the BAM sizes times the expansion factor, a reference needs its bytes only while
+ * its path does not exist and only once on the node. A reservation stops counting once the space is in use, the peak use seen at
+ * each admission is kept, and is dropped when released, when the same id is admitted again or after a week. Without -wait a donor
+ * that does not fit is refused at once, with it the check is repeated every minute until the wait is over. The exit status is 1
+ * when refused.
+ */
+public class DiskAdmission {
+
+    private static final String USAGE = "Usage: DiskAdmission [-wait seconds] [-margin bytes] [-expansion factor] [-reference path bytes]... "
+            + "<ledger> <id> <workspace> [bam]...\n" + "       DiskAdmission -release <ledger> <id>";
+    private static final long POLL_MILLIS = 60000;
+    private static final long MAX_AGE_MILLIS = 7L * 24 * 3600 * 1000;
+    private static final Pattern FILE_NAME = Pattern.compile("<filename>\\s*([^<]*?)\\s*</filename>");
+    private static final Pattern FILE_SIZE = Pattern.compile("<filesize>\\s*(\\d+)\\s*</filesize>");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long waitSeconds = 0;
+        long margin = 0;
+        double expansion = 1;
+        Map<String, Long> references = new LinkedHashMap<>();
+        boolean release = false;
+        List<String> operands = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-wait".equals(args[i]) && i + 1 < args.length) {
+                    waitSeconds = Long.parseLong(args[++i]);
+                } else if ("-margin".equals(args[i]) && i + 1 < args.length) {
+                    margin = Long.parseLong(args[++i]);
+                } else if ("-expansion".equals(args[i]) && i + 1 < args.length) {
+                    expansion = Double.parseDouble(args[++i]);
+                } else if ("-reference".equals(args[i]) && i + 2 < args.length) {
+                    references.put(args[i + 1], Long.parseLong(args[i + 2]));
+                    i += 2;
+                } else if ("-release".equals(args[i])) {
+                    release = true;
+                } else {
+                    operands.add(args[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            operands.clear();
+        }
+        if (release ? operands.size() != 2 : operands.size() < 3) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        File ledger = new File(operands.get(0));
+        String id = operands.get(1);
+        if (release) {
+            release(ledger, id);
+            return;
+        }
+
+        long bamBytes = 0;
+        for (String bam : operands.subList(3, operands.size())) {
+            long size = bamSize(bam);
+            System.out.println(bam + ": " + gb(size));
+            bamBytes += size;
+        }
+        Map<String, Long> demands = new LinkedHashMap<>();
+        demands.put(operands.get(2), Math.round(bamBytes * expansion));
+        for (Map.Entry<String, Long> reference : references.entrySet()) {
+            if (!new File(reference.getKey()).exists()) {
+                demands.put(reference.getKey(), reference.getValue());
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + waitSeconds * 1000;
+        while (true) {
+            String refusal = admit(ledger, id, demands, margin);
+            if (refusal == null) {
+                return;
+            }
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                System.err.println(id + " refused: " + refusal);
+                System.exit(1);
+            }
+            System.out.println(id + " waiting: " + refusal);
+            Thread.sleep(Math.min(POLL_MILLIS, left));
+        }
+    }
+
+    /**
+     * Reserves the demands if every filesystem has room for them besides what the other reservations still need.
+     *
+     * @param ledger
+     * @param id
+     * @param demands
+     *            paths and the bytes needed below them, the reference paths of the node are reserved once
+     * @param margin
+     *            bytes kept free on every filesystem
+     * @return why the donor does not fit, null once reserved
+     * @throws IOException
+     */
+    public static String admit(File ledger, String id, Map<String, Long> demands, long margin) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(ledger, "rw"); FileChannel channel = file.getChannel()) {
+            FileLock lock = channel.lock();
+            try {
+                List<Reservation> reservations = read(channel);
+                Map<FileStore, Long> committed = new LinkedHashMap<>();
+                List<String> reserved = new ArrayList<>();
+                long now = System.currentTimeMillis();
+                for (Reservation reservation : new ArrayList<>(reservations)) {
+                    if (reservation.id.equals(id) || now - reservation.created > MAX_AGE_MILLIS) {
+                        reservations.remove(reservation);
+                        continue;
+                    }
+                    reservation.peak = Math.max(reservation.peak, usage(reservation.path));
+                    add(committed, fileStore(reservation.path), Math.max(0, reservation.bytes - reservation.peak));
+                    reserved.add(reservation.path);
+                }
+
+                Map<FileStore, Long> needed = new LinkedHashMap<>();
+                List<Reservation> admitted = new ArrayList<>();
+                for (Map.Entry<String, Long> demand : demands.entrySet()) {
+                    String path = canonical(demand.getKey());
+                    if (reserved.contains(path)) {
+                        // a reference another donor is staging
+                        continue;
+                    }
+                    // a donor admitted again has part of its footprint on disk already
+                    long used = usage(path);
+                    add(needed, fileStore(path), Math.max(0, demand.getValue() - used));
+                    admitted.add(new Reservation(id, demand.getValue(), used, now, path));
+                }
+
+                StringBuilder refusal = new StringBuilder();
+                for (Map.Entry<FileStore, Long> need : needed.entrySet()) {
+                    FileStore store = need.getKey();
+                    long others = committed.containsKey(store) ? committed.get(store) : 0;
+                    long free = store.getUsableSpace() - others - margin;
+                    String line = store + ": needs " + gb(need.getValue()) + ", " + gb(store.getUsableSpace()) + " free, " + gb(others)
+                            + " reserved by others, " + gb(margin) + " margin";
+                    System.out.println(id + " " + line);
+                    if (need.getValue() > free) {
+                        refusal.append(refusal.length() > 0 ? "; " : "").append(line);
+                    }
+                }
+                if (refusal.length() > 0) {
+                    // the peaks seen are kept either way
+                    write(channel, reservations);
+                    return refusal.toString();
+                }
+                reservations.addAll(admitted);
+                write(channel, reservations);
+                System.out.println(id + " admitted");
+                return null;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Drops the reservations of the id.
+     *
+     * @param ledger
+     * @param id
+     * @throws IOException
+     */
+    public static void release(File ledger, String id) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(ledger, "rw"); FileChannel channel = file.getChannel()) {
+            FileLock lock = channel.lock();
+            try {
+                List<Reservation> reservations = read(channel);
+                List<Reservation> kept = new ArrayList<>();
+                for (Reservation reservation : reservations) {
+                    if (!reservation.id.equals(id)) {
+                        kept.add(reservation);
+                    }
+                }
+                write(channel, kept);
+                System.out.println(id + ": " + (reservations.size() - kept.size()) + " reservations released");
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     *
+     * @param bam
+     *            a file, bytes:&lt;size&gt; or xml:&lt;file or URL&gt;#&lt;BAM name&gt;
+     * @return the size of the BAM
+     * @throws IOException
+     *             if the size cannot be found
+     */
+    static long bamSize(String bam) throws IOException {
+        if (bam.startsWith("bytes:")) {
+            try {
+                return Long.parseLong(bam.substring("bytes:".length()).trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("no size in '" + bam + "'", e);
+            }
+        }
+        if (bam.startsWith("xml:")) {
+            int hash = bam.lastIndexOf('#');
+            if (hash < 0) {
+                throw new IOException("no BAM name after # in " + bam);
+            }
+            String location = bam.substring("xml:".length(), hash);
+            String name = bam.substring(hash + 1);
+            String xml;
+            try (InputStream in = location.contains("://") ? new URL(location).openStream() : new FileInputStream(location);
+                    Scanner scanner = new Scanner(in, "UTF-8")) {
+                xml = scanner.useDelimiter("\\A").hasNext() ? scanner.next() : "";
+            }
+            // the size follows the name within the file entry
+            Matcher fileName = FILE_NAME.matcher(xml);
+            while (fileName.find()) {
+                if (fileName.group(1).equals(name)) {
+                    Matcher fileSize = FILE_SIZE.matcher(xml);
+                    if (fileSize.find(fileName.end())) {
+                        return Long.parseLong(fileSize.group(1));
+                    }
+                }
+            }
+            throw new IOException("no size of " + name + " in " + location);
+        }
+        File file = new File(bam);
+        if (!file.isFile()) {
+            throw new IOException(bam + " does not exist");
+        }
+        return file.length();
+    }
+
+    /**
+     * @return the bytes below the paths, those that do not exist count 0
+     */
+    static long usage(List<String> paths) throws IOException {
+        long bytes = 0;
+        for (String path : paths) {
+            bytes += usage(path);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the bytes below the path, 0 if it does not exist yet
+     */
+    private static long usage(String path) throws IOException {
+        Path root = new File(path).toPath();
+        if (!Files.exists(root)) {
+            return 0;
+        }
+        final long[] bytes = { 0 };
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                bytes[0] += attributes.size();
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // removed while walking
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return bytes[0];
+    }
+
+    /**
+     * @return the filesystem the path is or will be created on
+     */
+    private static FileStore fileStore(String path) throws IOException {
+        File existing = new File(path).getAbsoluteFile();
+        while (!existing.exists()) {
+            existing = existing.getParentFile();
+        }
+        return Files.getFileStore(existing.toPath());
+    }
+
+    private static String canonical(String path) throws IOException {
+        return new File(path).getCanonicalPath();
+    }
+
+    private static void add(Map<FileStore, Long> bytes, FileStore store, long value) {
+        bytes.put(store, (bytes.containsKey(store) ? bytes.get(store) : 0) + value);
+    }
+
+    private static String gb(long bytes) {
+        return String.format(Locale.ROOT, "%.1f GB", bytes / 1e9);
+    }
+
+    /**
+     * One line per reservation: id, bytes reserved, peak bytes seen, creation in epoch milliseconds and the path.
+     */
+    private static List<Reservation> read(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        channel.read(buffer, 0);
+        List<Reservation> reservations = new ArrayList<>();
+        for (String line : new String(buffer.array(), StandardCharsets.UTF_8).split("\n")) {
+            String[] fields = line.split("\t");
+            if (fields.length == 5) {
+                reservations.add(new Reservation(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long
+                        .parseLong(fields[3]), fields[4]));
+            }
+        }
+        return reservations;
+    }
+
+    private static void write(FileChannel channel, List<Reservation> reservations) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (Reservation reservation : reservations) {
+            text.append(reservation.id).append('\t').append(reservation.bytes).append('\t').append(reservation.peak).append('\t')
+                    .append(reservation.created).append('\t').append(reservation.path).append('\n');
+        }
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)), 0);
+        channel.force(true);
+    }
+
+    /**
+     * Space one donor reserved below a path.
+     */
+    private static class Reservation {
+        private final String id;
+        private final long bytes;
+        private long peak;
+        private final long created;
+        private final String path;
+
+        Reservation(String id, long bytes, long peak, long created, String path) {
+            this.id = id;
+            this.bytes = bytes;
+            this.peak = peak;
+            this.created = created;
+            this.path = path;
+        }
+    }
+}
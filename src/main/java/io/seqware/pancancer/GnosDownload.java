@@ -0,0 +1,496 @@
+package io.seqware.pancancer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads files from a GNOS style HTTPS endpoint with parallel ranged GETs. Each file is cut into segments that share one pool of
+ * streams over all the files, and is written in place into a preallocated file with positional writes. How far every segment got is
+ * recorded in a journal next to the file, file.gnosparts, after the bytes are forced to disk, so a dropped connection resumes its
+ * segment from the last recorded offset and a restarted download continues where the last one stopped, as long as the file on the
+ * server kept its size and ETag or modification time. A segment is retried with a growing pause, or the pause the server asks for
+ * when it throttles, until it fails a number of times in a row without getting further. With metadata each completed file is
+ * checked against the MD5 of the analysis, a file that does not match is removed.
+ *
+ * <pre>
+ * GnosDownload [-segment-mb n] [-streams n] [-retries n] [-token file] [-metadata xml] &lt;url&gt; &lt;file&gt; [&lt;url&gt; &lt;file&gt;]...
+ * </pre>
+ *
+ * The token file holds the download key sent as a bearer token, the metadata is the analysis XML of GNOS as a file or URL, its file
+ * entries are looked up by the name of each file. A transfer admitted by the {@link TransferScheduler} keeps to its share of the
+ * bandwidth.
+ */
+public class GnosDownload {
+
+    private static final String USAGE = "Usage: GnosDownload [-segment-mb n] [-streams n] [-retries n] [-token file] [-metadata xml] "
+            + "<url> <file> [<url> <file>]...";
+    private static final String JOURNAL = ".gnosparts";
+    private static final Pattern FILE_ENTRY = Pattern.compile("<file>(.*?)</file>", Pattern.DOTALL);
+    private static final Pattern FILE_NAME = Pattern.compile("<filename>\\s*([^<]*?)\\s*</filename>");
+    private static final Pattern FILE_SIZE = Pattern.compile("<filesize>\\s*(\\d+)\\s*</filesize>");
+    private static final Pattern CHECKSUM = Pattern.compile("<checksum[^>]*>\\s*([0-9a-fA-F]{32})\\s*</checksum>");
+    // progress of a segment is recorded every this many bytes
+    private static final long CHECKPOINT = 16L << 20;
+    private static final int TIMEOUT_MS = 120000;
+    private static final long MAX_PAUSE_MS = 120000;
+
+    private final String token;
+    private final int retries;
+    private final TransferThrottle throttle = TransferThrottle.fromEnvironment();
+
+    /**
+     *
+     * @param token
+     *            null to send no Authorization header
+     * @param retries
+     *            failures in a row without progress before a segment gives up
+     */
+    public GnosDownload(String token, int retries) {
+        this.token = token;
+        this.retries = retries;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long segmentSize = 64L << 20;
+        int streams = 8;
+        int retries = 5;
+        String tokenFile = null;
+        String metadata = null;
+        List<String> operands = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-segment-mb".equals(args[i]) && i + 1 < args.length) {
+                segmentSize = Long.parseLong(args[++i]) << 20;
+            } else if ("-streams".equals(args[i]) && i + 1 < args.length) {
+                streams = Integer.parseInt(args[++i]);
+            } else if ("-retries".equals(args[i]) && i + 1 < args.length) {
+                retries = Integer.parseInt(args[++i]);
+            } else if ("-token".equals(args[i]) && i + 1 < args.length) {
+                tokenFile = args[++i];
+            } else if ("-metadata".equals(args[i]) && i + 1 < args.length) {
+                metadata = args[++i];
+            } else {
+                operands.add(args[i]);
+            }
+        }
+        if (operands.isEmpty() || operands.size() % 2 != 0 || segmentSize < 1 || streams < 1 || retries < 0) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        try {
+            String token = tokenFile == null ? null : new String(Files.readAllBytes(new File(tokenFile).toPath()),
+                    StandardCharsets.UTF_8).trim();
+            String xml = metadata == null ? null : read(metadata);
+            List<String[]> files = new ArrayList<>();
+            for (int i = 0; i < operands.size(); i += 2) {
+                files.add(new String[] { operands.get(i), operands.get(i + 1) });
+            }
+            new GnosDownload(token, retries).download(files, xml, segmentSize, streams);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static String read(String location) throws IOException {
+        try (InputStream in = location.contains("://") ? new URL(location).openStream() : new FileInputStream(location);
+                Scanner scanner = new Scanner(in, "UTF-8")) {
+            return scanner.useDelimiter("\\A").hasNext() ? scanner.next() : "";
+        }
+    }
+
+    /**
+     *
+     * @param xml
+     *            the analysis metadata
+     * @param name
+     * @return the size and the MD5 of the file of the analysis with the name, null if it has no such file
+     */
+    static String[] fileEntry(String xml, String name) {
+        Matcher entry = FILE_ENTRY.matcher(xml);
+        while (entry.find()) {
+            Matcher fileName = FILE_NAME.matcher(entry.group(1));
+            if (fileName.find() && fileName.group(1).equals(name)) {
+                Matcher fileSize = FILE_SIZE.matcher(entry.group(1));
+                Matcher checksum = CHECKSUM.matcher(entry.group(1));
+                return new String[] { fileSize.find() ? fileSize.group(1) : null,
+                        checksum.find() ? checksum.group(1).toLowerCase(Locale.ROOT) : null };
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Downloads every file, the smallest first so the indexes do not wait behind the segments of a BAM.
+     *
+     * @param files
+     *            pairs of a URL and the file to write
+     * @param xml
+     *            the analysis metadata to check the files against, null to check only their size
+     * @param segmentSize
+     * @param streams
+     *            parallel GETs over all the files
+     * @throws IOException
+     *             if any segment still fails after its retries, the progress stays recorded
+     * @throws InterruptedException
+     */
+    public void download(List<String[]> files, String xml, long segmentSize, int streams) throws IOException, InterruptedException {
+        final List<Target> targets = new ArrayList<>();
+        for (String[] file : files) {
+            String[] head = head(file[0]);
+            Target target = new Target(file[0], new File(file[1]), Long.parseLong(head[0]), head[1], segmentSize);
+            if (xml != null) {
+                String[] entry = fileEntry(xml, target.file.getName());
+                if (entry == null || entry[1] == null) {
+                    throw new IOException("no MD5 of " + target.file.getName() + " in the metadata");
+                }
+                if (entry[0] != null && Long.parseLong(entry[0]) != target.size) {
+                    throw new IOException(file[0] + " has " + target.size + " bytes, the metadata gives " + entry[0]);
+                }
+                target.md5 = entry[1];
+            }
+            targets.add(target);
+        }
+        Collections.sort(targets, new Comparator<Target>() {
+            @Override
+            public int compare(Target a, Target b) {
+                return Long.compare(a.size, b.size);
+            }
+        });
+
+        ExecutorService pool = Executors.newFixedThreadPool(streams);
+        List<Future<Void>> segments = new ArrayList<>();
+        try {
+            for (final Target target : targets) {
+                target.open();
+                for (int segment = 0; segment < target.offsets.length; segment++) {
+                    if (target.offsets[segment] == target.end(segment)) {
+                        continue;
+                    }
+                    final int number = segment;
+                    segments.add(pool.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException, InterruptedException {
+                            fetch(target, number);
+                            return null;
+                        }
+                    }));
+                }
+            }
+            pool.shutdown();
+            IOException failure = null;
+            for (Future<Void> segment : segments) {
+                try {
+                    segment.get();
+                } catch (ExecutionException e) {
+                    failure = failure != null ? failure : new IOException(e.getCause().getMessage(), e.getCause());
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            pool.shutdownNow();
+            for (Target target : targets) {
+                target.close();
+            }
+        }
+        for (Target target : targets) {
+            target.finish();
+        }
+    }
+
+    /**
+     * @return the size and the ETag, or else the modification time, of the file on the server
+     */
+    private String[] head(String url) throws IOException {
+        HttpURLConnection connection = open("HEAD", url);
+        try {
+            check(connection, HttpURLConnection.HTTP_OK, "HEAD " + url);
+            if (connection.getContentLengthLong() < 0) {
+                throw new IOException("HEAD " + url + " gives no size");
+            }
+            String version = connection.getHeaderField("ETag");
+            version = version != null ? version : connection.getHeaderField("Last-Modified");
+            return new String[] { String.valueOf(connection.getContentLengthLong()), version == null ? "" : version };
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Writes the rest of a segment into the file, recording its progress. After a failure the segment continues from what it
+     * received, it gives up once it failed the given number of times in a row without receiving anything.
+     */
+    private void fetch(Target target, int segment) throws IOException, InterruptedException {
+        long end = target.end(segment);
+        String request = "GET " + target.url + " segment " + segment;
+        byte[] buffer = new byte[1 << 20];
+        int failures = 0;
+        while (true) {
+            long from = target.offsets[segment];
+            long position = from;
+            try {
+                HttpURLConnection connection = open("GET", target.url);
+                connection.setRequestProperty("Range", "bytes=" + from + "-" + (end - 1));
+                try {
+                    boolean whole = from == 0 && end == target.size;
+                    if (!whole && connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                        throw new HttpStatusException(request + " got the whole file, the server does not serve ranges",
+                                HttpURLConnection.HTTP_OK, 0);
+                    }
+                    if (!(whole && connection.getResponseCode() == HttpURLConnection.HTTP_OK)) {
+                        check(connection, HttpURLConnection.HTTP_PARTIAL, request);
+                    }
+                    try (InputStream in = connection.getInputStream()) {
+                        int read;
+                        while (position < end && (read = in.read(buffer)) > 0) {
+                            if (throttle != null) {
+                                throttle.acquire(read);
+                            }
+                            ByteBuffer data = ByteBuffer.wrap(buffer, 0, (int) Math.min(read, end - position));
+                            while (data.hasRemaining()) {
+                                position += target.channel.write(data, position);
+                            }
+                            if (position - target.offsets[segment] >= CHECKPOINT) {
+                                target.record(segment, position);
+                            }
+                        }
+                    }
+                    if (position != end) {
+                        throw new IOException(request + " ended after " + (position - from) + " of " + (end - from) + " bytes");
+                    }
+                } finally {
+                    connection.disconnect();
+                }
+                target.record(segment, end);
+                return;
+            } catch (IOException e) {
+                // what arrived before the failure is kept
+                if (position > target.offsets[segment]) {
+                    target.record(segment, position);
+                }
+                failures = position > from ? 1 : failures + 1;
+                String message = e.getMessage() != null && e.getMessage().startsWith(request) ? e.getMessage() : request + ": " + e;
+                long pause = Math.min(MAX_PAUSE_MS, 1000L << Math.min(failures, 16));
+                if (e instanceof HttpStatusException) {
+                    HttpStatusException status = (HttpStatusException) e;
+                    if (!status.retryable()) {
+                        throw new IOException(message, e);
+                    }
+                    pause = Math.max(pause, status.retryAfterMs);
+                }
+                if (failures > retries) {
+                    throw new IOException(message, e);
+                }
+                System.err.println(message + ", retrying at byte " + target.offsets[segment] + " in " + pause / 1000 + " s");
+                Thread.sleep(pause);
+            }
+        }
+    }
+
+    private HttpURLConnection open(String method, String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        if (token != null) {
+            connection.setRequestProperty("Authorization", "Bearer " + token);
+        }
+        return connection;
+    }
+
+    /**
+     * @throws HttpStatusException
+     *             if the response is not the expected one
+     */
+    private static void check(HttpURLConnection connection, int expected, String request) throws IOException {
+        int status = connection.getResponseCode();
+        if (status == expected) {
+            return;
+        }
+        String body = "";
+        InputStream error = connection.getErrorStream();
+        if (error != null) {
+            try (InputStream in = error) {
+                byte[] buffer = new byte[512];
+                int read = in.read(buffer);
+                body = read > 0 ? ": " + new String(buffer, 0, read, StandardCharsets.UTF_8).replaceAll("\\s+", " ") : "";
+            }
+        }
+        long retryAfterMs = 0;
+        try {
+            String retryAfter = connection.getHeaderField("Retry-After");
+            retryAfterMs = retryAfter == null ? 0 : Math.min(MAX_PAUSE_MS, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            // an HTTP date, the pause grows as usual
+        }
+        throw new HttpStatusException(request + " failed with HTTP " + status + body, status, retryAfterMs);
+    }
+
+    /**
+     * An unexpected response. Throttling, timeouts and server errors are retried, other errors and a range the server ignored are
+     * not.
+     */
+    private static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+        final int status;
+        final long retryAfterMs;
+
+        HttpStatusException(String message, int status, long retryAfterMs) {
+            super(message);
+            this.status = status;
+            this.retryAfterMs = retryAfterMs;
+        }
+
+        boolean retryable() {
+            return status == 408 || status == 429 || status >= 500;
+        }
+    }
+
+    /**
+     * A file being downloaded and its journal.
+     */
+    private static class Target {
+        final String url;
+        final File file;
+        final File journal;
+        final long size;
+        final String version;
+        final long segmentSize;
+        // the end of what every segment has on disk
+        final long[] offsets;
+        final long start = System.nanoTime();
+        String md5;
+        long resumedBytes = 0;
+        FileChannel channel;
+        Writer journalWriter;
+
+        Target(String url, File file, long size, String version, long segmentSize) {
+            this.url = url;
+            this.file = file;
+            this.journal = new File(file.getPath() + JOURNAL);
+            this.size = size;
+            this.version = version;
+            this.segmentSize = segmentSize;
+            this.offsets = new long[(int) ((size + segmentSize - 1) / segmentSize)];
+            for (int segment = 0; segment < offsets.length; segment++) {
+                offsets[segment] = segment * segmentSize;
+            }
+        }
+
+        long end(int segment) {
+            return Math.min(size, (segment + 1) * segmentSize);
+        }
+
+        /**
+         * Takes up the journal if it is for this version of the file and segment size, else starts the file over.
+         */
+        void open() throws IOException {
+            String header = "download " + size + " " + segmentSize + " " + version;
+            if (journal.isFile() && file.length() == size) {
+                List<String> lines = Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8);
+                if (!lines.isEmpty() && lines.get(0).equals(header)) {
+                    // the last offset recorded for a segment is the furthest
+                    for (String line : lines.subList(1, lines.size())) {
+                        String[] fields = line.split(" ");
+                        if (fields.length == 3 && "segment".equals(fields[0])) {
+                            int segment = Integer.parseInt(fields[1]);
+                            offsets[segment] = Math.max(offsets[segment], Long.parseLong(fields[2]));
+                        }
+                    }
+                }
+            } else if (!journal.isFile() && file.isFile() && file.length() == size) {
+                // the journal goes last, so a file of the right size without one is complete
+                System.out.println(file + ": present");
+                for (int segment = 0; segment < offsets.length; segment++) {
+                    offsets[segment] = end(segment);
+                }
+                return;
+            }
+            for (int segment = 0; segment < offsets.length; segment++) {
+                resumedBytes += offsets[segment] - segment * segmentSize;
+            }
+            if (resumedBytes == 0) {
+                File directory = file.getAbsoluteFile().getParentFile();
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("cannot create " + directory);
+                }
+                Files.write(journal.toPath(), (header + "\n").getBytes(StandardCharsets.UTF_8));
+                try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                    out.setLength(size);
+                }
+            } else {
+                System.out.println(file + ": resuming with " + resumedBytes + " of " + size + " bytes");
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            journalWriter = new OutputStreamWriter(new FileOutputStream(journal, true), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * The offset of a segment is recorded once the bytes before it are on disk.
+         */
+        synchronized void record(int segment, long offset) throws IOException {
+            channel.force(false);
+            journalWriter.write("segment " + segment + " " + offset + "\n");
+            journalWriter.flush();
+            offsets[segment] = offset;
+        }
+
+        void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                journalWriter.close();
+            }
+        }
+
+        void finish() throws IOException {
+            if (channel == null) {
+                return;
+            }
+            if (file.length() != size) {
+                throw new IOException(file + " has " + file.length() + " bytes instead of " + size);
+            }
+            if (md5 != null) {
+                String actual = Checksums.hex(Checksums.md5(file));
+                if (!actual.equals(md5)) {
+                    // a later attempt starts it over
+                    Files.delete(journal.toPath());
+                    Files.delete(file.toPath());
+                    throw new IOException(file + " has MD5 " + actual + " instead of " + md5 + " from the metadata, removed it");
+                }
+            }
+            Files.delete(journal.toPath());
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format(Locale.ROOT, "%s: %d bytes in %d segments, %d resumed, %s%.1f s, %.1f MB/s", file, size,
+                    offsets.length, resumedBytes, md5 != null ? "MD5 verified, " : "", seconds, seconds > 0 ? (size - resumedBytes)
+                            / seconds / 1e6 : 0));
+        }
+    }
+}
@@ -8,6 +8,7 @@ package io.seqware.pancancer;
 
 import com.google.common.base.Joiner;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import net.sourceforge.seqware.pipeline.workflowV2.model.Job;
 
@@ -18,6 +19,107 @@ import net.sourceforge.seqware.pipeline.workflowV2.model.Job;
  */
 public class JobUtilities {
 
+    /**
+     * Shell function the jobs define when container sampling is on, it runs docker run with a name and samples the container
+     */
+    public static final String SAMPLED_DOCKER_RUN = "sampled_docker_run";
+
+    private boolean containerSampling = false;
+    private String progressReporter = null;
+    private String s3Uploader = null;
+    private String archiver = null;
+
+    /**
+     *
+     * @param containerSampling
+     *            start the download and upload containers through the sampling function
+     */
+    public void setContainerSampling(boolean containerSampling) {
+        this.containerSampling = containerSampling;
+    }
+
+    /**
+     *
+     * @param progressReporter
+     *            command the download and upload jobs run with the direction, ID, start time and paths of a finished transfer,
+     *            null to not report
+     */
+    public void setProgressReporter(String progressReporter) {
+        this.progressReporter = progressReporter;
+    }
+
+    /**
+     *
+     * @param s3Uploader
+     *            S3Upload command with its environment and options the S3 upload jobs stream the submission with, null to write
+     *            the archive and copy it with the AWS CLI
+     */
+    public void setS3Uploader(String s3Uploader) {
+        this.s3Uploader = s3Uploader;
+    }
+
+    /**
+     *
+     * @param archiver
+     *            TarArchive command with its options the local and S3 upload jobs pack the submission with, null to leave the
+     *            archive to the upload tool
+     */
+    public void setArchiver(String archiver) {
+        this.archiver = archiver;
+    }
+
+    /**
+     * The upload tool leaves one directory per submission in uploads, with the metadata and links to the result files.
+     *
+     * @param workflowDataDir
+     * @return the command substitution giving the directory of the latest submission
+     */
+    private String latestSubmission(String workflowDataDir) {
+        return "$(ls -td " + workflowDataDir + "/uploads/*/ | head -1)";
+    }
+
+    /**
+     *
+     * @param workflowDataDir
+     * @param archiveDir
+     * @return the command packing the latest submission into the archive directory, chained to the upload tool
+     */
+    private String archiveSubmission(String workflowDataDir, String archiveDir) {
+        // the links in the submission point into the container
+        return " && mkdir -p " + archiveDir + " && " + archiver + " -map /workflow_data=" + workflowDataDir + " "
+                + latestSubmission(workflowDataDir) + " " + archiveDir + "/";
+    }
+
+    /**
+     *
+     * @return the start of a docker run command, sampled or not
+     */
+    public String dockerRun() {
+        return containerSampling ? SAMPLED_DOCKER_RUN + " " : "docker run ";
+    }
+
+    /**
+     * The transfer commands are chained with &&, so the start time is taken as part of the chain.
+     *
+     * @return the command recording when a transfer starts
+     */
+    private String transferStart() {
+        return progressReporter == null ? "" : "TRANSFER_START=`date +%s` && ";
+    }
+
+    /**
+     *
+     * @param direction
+     *            download or upload
+     * @param id
+     * @param paths
+     *            what was transferred
+     * @return the command reporting a finished transfer, chained to the transfer
+     */
+    private String transferReport(String direction, String id, String paths) {
+        return progressReporter == null ? "" : " && " + progressReporter + " " + direction + " " + id + " $TRANSFER_START " + paths;
+    }
+
     /**
      *
      * @param thisJob
@@ -36,8 +138,9 @@ public class JobUtilities {
 
         thisJob.getCommand()
                 .addArgument(
-                        "docker run "
-                        // link in the input directory
+                        transferStart()
+                                + dockerRun()
+                                // link in the input directory
                                 + "-v "
                                 + outputDir
                                 + ":/workflow_data "
@@ -51,7 +154,35 @@ public class JobUtilities {
                                 + " /bin/bash -c 'cd /workflow_data/ && perl -I /opt/gt-download-upload-wrapper/gt-download-upload-wrapper-2.0.11/lib "
                                 + "/opt/vcf-uploader/vcf-uploader-2.0.5/gnos_download_file.pl " + "--url " + gnosServer
                                 + "/cghub/data/analysis/download/" + analysisId + " " + "--pem /gnos_icgc_keyfile.pem --file " + analysisId
-                                + "/" + bam + " --retries " + retries + " --timeout-min " + timeout + "' \n");
+                                + "/" + bam + " --retries " + retries + " --timeout-min " + timeout + "'"
+                                + transferReport("download", analysisId, outputDir + "/" + analysisId) + " \n");
+
+        return thisJob;
+    }
+
+    /**
+     * Downloads the BAM and its index together with the bundled segmented HTTPS downloader, resuming from the progress of an
+     * earlier attempt and checking both against the MD5 of the analysis metadata.
+     *
+     * @param thisJob
+     * @param downloadCommand
+     *            the GnosDownload command with its options
+     * @param outputDir
+     * @param gnosServer
+     * @param analysisId
+     * @param bam
+     * @param metadata
+     *            the analysis XML as a file or URL
+     * @return
+     */
+    public Job gnosHttpDownloadJob(Job thisJob, String downloadCommand, String outputDir, String gnosServer, String analysisId,
+            String bam, String metadata) {
+
+        String url = gnosServer + "/cghub/data/analysis/download/" + analysisId + "/" + bam;
+        String file = outputDir + "/" + analysisId + "/" + bam;
+        thisJob.getCommand().addArgument(
+                transferStart() + downloadCommand + " -metadata " + metadata + " " + url + " " + file + " " + url + ".bai " + file
+                        + ".bai" + transferReport("download", analysisId, outputDir + "/" + analysisId) + " \n");
 
         return thisJob;
     }
@@ -70,16 +201,55 @@ public class JobUtilities {
 
         thisJob.getCommand()
                 .addArgument("mkdir -p " + analysisId + "; \n")
-                .addArgument("mkdir -p ~/.aws/; \n")
-                .addArgument(
-                        "echo '[default]\n" + "aws_access_key_id = " + S3DownloadKey + "\n" + "aws_secret_access_key = "
-                                + S3DownloadSecretKey + "' > ~/.aws/config; \n")
+                .addArgument(s3ConfigCommand(S3DownloadKey, S3DownloadSecretKey))
                 .addArgument("aws s3 cp " + s3Url + " " + analysisId + "/" + bamFile + " && ")
                 .addArgument("aws s3 cp " + s3Url + ".bai " + analysisId + "/" + bamFile + ".bai ");
 
         return thisJob;
     }
 
+    /**
+     * Downloads the BAM and its index together with the bundled ranged GET engine, resuming from the parts completed by an earlier
+     * attempt.
+     *
+     * @param thisJob
+     * @param downloadCommand
+     *            the S3Download command with its environment and options
+     * @param analysisId
+     * @param bamFile
+     * @param s3Url
+     * @return
+     */
+    public Job s3ParallelDownloadJob(Job thisJob, String downloadCommand, String analysisId, String bamFile, String s3Url) {
+
+        thisJob.getCommand().addArgument(
+                transferStart() + downloadCommand + " " + s3Url + " " + analysisId + "/" + bamFile + " " + s3Url + ".bai " + analysisId
+                        + "/" + bamFile + ".bai" + transferReport("download", analysisId, analysisId) + " \n");
+
+        return thisJob;
+    }
+
+    /**
+     *
+     * @param key
+     * @param secretKey
+     * @return the credentials as the environment of a command, for the bundled S3 tools
+     */
+    public String s3Environment(String key, String secretKey) {
+        return "AWS_ACCESS_KEY_ID='" + key + "' AWS_SECRET_ACCESS_KEY='" + secretKey + "' ";
+    }
+
+    /**
+     *
+     * @param key
+     * @param secretKey
+     * @return the commands writing the AWS CLI credentials
+     */
+    public String s3ConfigCommand(String key, String secretKey) {
+        return "mkdir -p ~/.aws/; \n" + "echo '[default]\n" + "aws_access_key_id = " + key + "\n" + "aws_secret_access_key = " + secretKey
+                + "' > ~/.aws/config; \n";
+    }
+
     /**
      *
      * @param thisJob
@@ -96,6 +266,26 @@ public class JobUtilities {
         return thisJob;
     }
 
+    /**
+     * Stages the BAM and its index without sudo, linked, cloned or copied depending on what the filesystems allow.
+     *
+     * @param thisJob
+     * @param stageCommand
+     *            the LocalStage command with its options
+     * @param outputDir
+     * @param analysisId
+     * @param bamFile
+     * @return
+     */
+    public Job localStageJob(Job thisJob, String stageCommand, String outputDir, String analysisId, String bamFile) {
+
+        thisJob.getCommand().addArgument(
+                transferStart() + stageCommand + " " + outputDir + " " + bamFile + " " + bamFile + ".bai"
+                        + transferReport("download", analysisId, outputDir) + " \n");
+
+        return thisJob;
+    }
+
     /**
      *
      * @param uploadJob
@@ -135,11 +325,17 @@ public class JobUtilities {
             final List<String> localXMLMetadataFiles) {
 
         StringBuilder sb = new StringBuilder(overrideTxt);
-        sb.append(" --upload-archive ").append(temp).append(" --skip-upload --skip-validate ");
+        if (archiver == null) {
+            sb.append(" --upload-archive ").append(temp);
+        }
+        sb.append(" --skip-upload --skip-validate ");
 
         uploadJob = vcfUpload(uploadJob, workflowDataDir, pemFile, metadataURLs, vcfs, vcfmd5s, tbis, tbimd5s, tars, tarmd5s, uploadServer,
                 seqwareVersion, vmInstanceType, vmLocationCode, sb.toString(), timeout, retries, qcJson, timingJson, workflowSrcUrl,
                 workflowUrl, workflowName, workflowVersion, dockerName, localXMLMetadataPath, localXMLMetadataFiles);
+        if (archiver != null) {
+            uploadJob.getCommand().addArgument(archiveSubmission(workflowDataDir, temp));
+        }
         return uploadJob;
 
     }
@@ -187,6 +383,10 @@ public class JobUtilities {
     /**
      * FIXME: need to know the archive filename
      *
+     * With an S3 uploader the upload tool only writes the metadata of the submission, in a directory of uploads that links the
+     * result files, and the uploader streams that directory to the bucket as a gzipped tar. With an archiver that directory is
+     * packed on the host before the copy.
+     *
      * @param uploadJob
      * @param workflowDataDir
      * @param pemFile
@@ -225,12 +425,26 @@ public class JobUtilities {
             String workflowVersion, String dockerName) {
 
         StringBuilder sb = new StringBuilder(overrideTxt);
-        sb.append(" --upload-archive ").append(temp).append(" --skip-upload --skip-validate ");
+        if (s3Uploader == null && archiver == null) {
+            sb.append(" --upload-archive ").append(temp);
+        }
+        sb.append(" --skip-upload --skip-validate ");
 
         uploadJob = vcfUpload(uploadJob, workflowDataDir, pemFile, metadataURLs, vcfs, vcfmd5s, tbis, tbimd5s, tars, tarmd5s, uploadServer,
                 seqwareVersion, vmInstanceType, vmLocationCode, sb.toString(), timeout, retries, qcJson, timingJson, workflowSrcUrl,
                 workflowUrl, workflowName, workflowVersion, dockerName, null, null);
 
+        if (s3Uploader != null) {
+            // the links in the submission point into the container
+            uploadJob.getCommand().addArgument(
+                    " && " + s3Uploader + " -map /workflow_data=" + workflowDataDir + " " + latestSubmission(workflowDataDir) + " "
+                            + uploadS3Bucket + "/;");
+            return uploadJob;
+        }
+        if (archiver != null) {
+            uploadJob.getCommand().addArgument(archiveSubmission(workflowDataDir, temp));
+        }
+
         uploadJob
                 .getCommand()
                 .addArgument(" && mkdir -p ~/.aws/; ")
@@ -292,8 +506,16 @@ public class JobUtilities {
             }
         }
 
+        StringBuilder uploaded = new StringBuilder();
+        for (List<String> files : Arrays.asList(vcfs, tbis, tars)) {
+            for (String file : files) {
+                uploaded.append(' ').append(workflowDataDir).append('/').append(file);
+            }
+        }
+
         uploadJob.getCommand().addArgument(
-                "docker run "
+                transferStart()
+                + dockerRun()
                 // link in the input directory
                         + "-v "
                         + workflowDataDir
@@ -321,7 +543,7 @@ public class JobUtilities {
                         + " --workflow-version " + workflowVersion + " --seqware-version " + seqwareVersion + " --vm-instance-type "
                         + vmInstanceType + " --vm-instance-cores `nproc` --vm-instance-mem-gb "
                         + "`free | grep \"Mem:\" | awk \"{print \\\\$2 / 1000000 }\"` " + " --vm-location-code " + vmLocationCode
-                        + overrideTxt + "' ");
+                        + overrideTxt + "'" + transferReport("upload", workflowName, uploaded.toString().trim()) + " ");
 
         return uploadJob;
 
@@ -0,0 +1,817 @@
+package io.seqware.pancancer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Combines the QC and timing documents of the callers into the summary documents passed to the upload tool. Documents are streamed
+ * token by token into a single line, so memory does not depend on their size, and every one is checked to be well formed JSON. A named
+ * file that is missing or malformed fails the merge with its name in the message.
+ *
+ * <pre>
+ * JsonMerge [-o output] name document [name document]...                       {"name":document,...}
+ * JsonMerge -timing [-donor id] [-o output] events name jobs [name jobs]...    {"timing_metrics":[{"workflow":{"name":seconds,...},"jobs":[...]}]}
+ * JsonMerge -compact [-o output] document                                      the document on one line
+ * JsonMerge -dir [-o output] directory                                         {"name":document,...} for every name.json in the directory
+ * JsonMerge -aggregate [-o output] document...                                 one document of the same shape with the metrics combined
+ * </pre>
+ *
+ * The timing summary is derived from the job event log written by job_event.pl. Each named stage spans from the first start to the
+ * last end of the jobs matching its pattern, a job name or a prefix ending in '*', and every finished job is listed with its own
+ * duration, exit code and bytes, plus the disk space it freed and the bytes, seconds and throughput of its transfer if it logged
+ * any. A batch of donors shares one log, -donor keeps the jobs of that donor and those of none.
+ *
+ * Aggregation combines the QC documents of runs over parts of the genome into the document a single run would write, see
+ * {@link #aggregate(List)}.
+ */
+public class JsonMerge {
+
+    private static final String USAGE = "Usage: JsonMerge [-timing [-donor id] events|-compact|-dir|-aggregate] [-o output] (name file|pattern|document|directory)...";
+
+    private final Writer out;
+
+    public JsonMerge(Writer out) {
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String mode = "merge";
+        String output = null;
+        String donor = null;
+        List<String> operands = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-timing".equals(args[i]) || "-compact".equals(args[i]) || "-dir".equals(args[i]) || "-aggregate".equals(args[i])) {
+                mode = args[i].substring(1);
+            } else if ("-o".equals(args[i]) && i + 1 < args.length) {
+                output = args[++i];
+            } else if ("-donor".equals(args[i]) && i + 1 < args.length) {
+                donor = args[++i];
+            } else {
+                operands.add(args[i]);
+            }
+        }
+        // the event log comes before the timing pairs
+        int leading = "timing".equals(mode) ? 1 : 0;
+        boolean valid = "compact".equals(mode) || "dir".equals(mode) ? operands.size() == 1 : "aggregate".equals(mode) ? !operands
+                .isEmpty() : operands.size() > leading && (operands.size() - leading) % 2 == 0;
+        if (!valid) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        File outputFile = output == null ? null : new File(output);
+        File partial = output == null ? null : new File(output + ".partial");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(partial == null ? System.out : new FileOutputStream(partial),
+                StandardCharsets.UTF_8));
+        try {
+            JsonMerge merge = new JsonMerge(writer);
+            if ("merge".equals(mode)) {
+                merge.merge(operands);
+            } else if ("timing".equals(mode)) {
+                merge.timing(new File(operands.get(0)), donor, operands.subList(1, operands.size()));
+            } else if ("dir".equals(mode)) {
+                merge.mergeDirectory(new File(operands.get(0)));
+            } else if ("aggregate".equals(mode)) {
+                List<File> documents = new ArrayList<>();
+                for (String operand : operands) {
+                    documents.add(new File(operand));
+                }
+                merge.aggregate(documents);
+            } else {
+                merge.copy(new File(operands.get(0)));
+            }
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("JsonMerge: " + e.getMessage());
+            writer.close();
+            if (partial != null) {
+                partial.delete();
+            }
+            System.exit(1);
+        }
+        writer.close();
+        // a summary is either complete or absent
+        if (partial != null && !partial.renameTo(outputFile)) {
+            throw new IOException("cannot rename " + partial + " to " + outputFile);
+        }
+    }
+
+    /**
+     * Writes an object with each document under its name.
+     *
+     * @param pairs
+     *            names and document paths, alternating
+     * @throws IOException
+     */
+    public void merge(List<String> pairs) throws IOException {
+        out.write('{');
+        for (int i = 0; i < pairs.size(); i += 2) {
+            if (i > 0) {
+                out.write(',');
+            }
+            writeString(pairs.get(i));
+            out.write(':');
+            copy(new File(pairs.get(i + 1)));
+        }
+        out.write('}');
+    }
+
+    /**
+     * Writes an object with every .json document of a directory under its name without the extension, in name order. Used where
+     * the documents present depend on what ran, an empty or missing directory gives an empty object.
+     *
+     * @param directory
+     * @throws IOException
+     */
+    public void mergeDirectory(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        List<String> names = new ArrayList<>();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.isFile() && file.getName().endsWith(".json")) {
+                names.add(file.getName());
+            }
+        }
+        Collections.sort(names);
+        List<String> pairs = new ArrayList<>();
+        for (String name : names) {
+            pairs.add(name.substring(0, name.length() - ".json".length()));
+            pairs.add(new File(directory, name).getPath());
+        }
+        merge(pairs);
+    }
+
+    /**
+     * Writes one document combining documents of the same shape. Members are matched by name, whole numbers are summed and
+     * fractional numbers are taken as ratios: a ratio that is, in every document, one whole number member of its object divided by
+     * another, possibly as a percentage, is recomputed from their sums. Other fractional numbers are averaged. Strings, booleans and
+     * nulls are kept when the documents agree, otherwise the first is kept with a warning, and arrays that differ are concatenated.
+     *
+     * @param documents
+     * @throws IOException
+     */
+    public void aggregate(List<File> documents) throws IOException {
+        List<Object> values = new ArrayList<>();
+        for (File document : documents) {
+            if (!document.isFile()) {
+                throw new IOException("document " + document + " does not exist");
+            }
+            StringWriter compact = new StringWriter();
+            try (Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(document), StandardCharsets.UTF_8))) {
+                new Copier(in, compact, document.getPath()).copyDocument();
+            }
+            values.add(new TreeReader(compact.toString()).value());
+        }
+        writeValue(combine("", values));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object combine(String path, List<Object> values) throws IOException {
+        Object first = values.get(0);
+        for (Object value : values) {
+            if ((value == null) != (first == null) || value != null && value.getClass() != first.getClass()) {
+                throw new IOException("documents disagree on the type of " + (path.isEmpty() ? "the document" : path));
+            }
+        }
+        if (first instanceof Map) {
+            Map<String, List<Object>> members = new LinkedHashMap<>();
+            for (Object value : values) {
+                for (Map.Entry<String, Object> member : ((Map<String, Object>) value).entrySet()) {
+                    if (!members.containsKey(member.getKey())) {
+                        members.put(member.getKey(), new ArrayList<>());
+                    }
+                    members.get(member.getKey()).add(member.getValue());
+                }
+            }
+            Map<String, Object> combined = new LinkedHashMap<>();
+            for (Map.Entry<String, List<Object>> member : members.entrySet()) {
+                if (!isRatio(member.getValue())) {
+                    combined.put(member.getKey(), combine(path + "/" + member.getKey(), member.getValue()));
+                }
+            }
+            // the ratios are computed from the combined counts of their object
+            for (Map.Entry<String, List<Object>> member : members.entrySet()) {
+                if (isRatio(member.getValue())) {
+                    combined.put(member.getKey(),
+                            ratio(path + "/" + member.getKey(), member.getKey(), (List<Map<String, Object>>) (List<?>) values, combined));
+                }
+            }
+            // keep the member order of the documents
+            Map<String, Object> ordered = new LinkedHashMap<>();
+            for (String key : members.keySet()) {
+                ordered.put(key, combined.get(key));
+            }
+            return ordered;
+        }
+        if (first instanceof BigDecimal) {
+            if (isRatio(values)) {
+                return mean(values);
+            }
+            BigDecimal sum = BigDecimal.ZERO;
+            for (Object value : values) {
+                sum = sum.add((BigDecimal) value);
+            }
+            return sum;
+        }
+        boolean same = true;
+        for (Object value : values) {
+            same &= first == null ? value == null : first.equals(value);
+        }
+        if (same) {
+            return first;
+        }
+        if (first instanceof List) {
+            List<Object> concatenated = new ArrayList<>();
+            for (Object value : values) {
+                concatenated.addAll((List<Object>) value);
+            }
+            return concatenated;
+        }
+        System.err.println("JsonMerge: documents disagree on " + path + ", keeping the first value");
+        return first;
+    }
+
+    private static boolean isRatio(List<Object> values) {
+        for (Object value : values) {
+            if (value instanceof BigDecimal && ((BigDecimal) value).scale() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds two whole number members of the object whose quotient, or percentage, is the ratio to the precision it is written with in
+     * every document, and divides their sums. The mean of the documents is used when there are none.
+     */
+    private static BigDecimal ratio(String path, String key, List<Map<String, Object>> objects, Map<String, Object> combined) {
+        List<BigDecimal> ratios = new ArrayList<>();
+        int scale = 0;
+        for (Map<String, Object> object : objects) {
+            Object value = object.get(key);
+            if (value instanceof BigDecimal) {
+                ratios.add((BigDecimal) value);
+                scale = Math.max(scale, ((BigDecimal) value).scale());
+            }
+        }
+        List<String> counts = new ArrayList<>();
+        for (Map.Entry<String, Object> member : combined.entrySet()) {
+            if (member.getValue() instanceof BigDecimal && ((BigDecimal) member.getValue()).scale() <= 0) {
+                counts.add(member.getKey());
+            }
+        }
+        for (BigDecimal percent : new BigDecimal[] { BigDecimal.ONE, BigDecimal.valueOf(100) }) {
+            for (String numerator : counts) {
+                for (String denominator : counts) {
+                    if (!numerator.equals(denominator) && quotientOf(objects, key, numerator, denominator, percent)) {
+                        BigDecimal total = (BigDecimal) combined.get(denominator);
+                        if (total.signum() == 0) {
+                            return BigDecimal.ZERO.setScale(scale);
+                        }
+                        return ((BigDecimal) combined.get(numerator)).multiply(percent).divide(total, scale, RoundingMode.HALF_UP);
+                    }
+                }
+            }
+        }
+        System.err.println("JsonMerge: no counts found for the ratio " + path + ", averaging it");
+        return mean(new ArrayList<Object>(ratios));
+    }
+
+    private static boolean quotientOf(List<Map<String, Object>> objects, String key, String numerator, String denominator,
+            BigDecimal percent) {
+        boolean defined = false;
+        for (Map<String, Object> object : objects) {
+            Object ratio = object.get(key);
+            Object top = object.get(numerator);
+            Object bottom = object.get(denominator);
+            if (!(ratio instanceof BigDecimal)) {
+                continue;
+            }
+            if (!(top instanceof BigDecimal) || !(bottom instanceof BigDecimal) || ((BigDecimal) top).scale() > 0
+                    || ((BigDecimal) bottom).scale() > 0) {
+                return false;
+            }
+            if (((BigDecimal) bottom).signum() == 0) {
+                continue;
+            }
+            BigDecimal written = (BigDecimal) ratio;
+            BigDecimal quotient = ((BigDecimal) top).multiply(percent).divide((BigDecimal) bottom, written.scale(), RoundingMode.HALF_UP);
+            // rounded either way by whoever wrote the document
+            if (quotient.subtract(written).abs().compareTo(BigDecimal.ONE.movePointLeft(written.scale())) > 0) {
+                return false;
+            }
+            defined = true;
+        }
+        return defined;
+    }
+
+    private static BigDecimal mean(List<Object> values) {
+        BigDecimal sum = BigDecimal.ZERO;
+        int scale = 0;
+        int count = 0;
+        for (Object value : values) {
+            if (value instanceof BigDecimal) {
+                sum = sum.add((BigDecimal) value);
+                scale = Math.max(scale, ((BigDecimal) value).scale());
+                count++;
+            }
+        }
+        return sum.divide(BigDecimal.valueOf(count), Math.max(scale, 1), RoundingMode.HALF_UP);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeValue(Object value) throws IOException {
+        if (value instanceof Map) {
+            out.write('{');
+            boolean first = true;
+            for (Map.Entry<String, Object> member : ((Map<String, Object>) value).entrySet()) {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                writeString(member.getKey());
+                out.write(':');
+                writeValue(member.getValue());
+            }
+            out.write('}');
+        } else if (value instanceof List) {
+            out.write('[');
+            boolean first = true;
+            for (Object element : (List<Object>) value) {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                writeValue(element);
+            }
+            out.write(']');
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof BigDecimal) {
+            out.write(((BigDecimal) value).toPlainString());
+        } else {
+            out.write(String.valueOf(value));
+        }
+    }
+
+    /**
+     * Writes the timing summary of the job event log.
+     *
+     * @param events
+     *            the NDJSON event log
+     * @param donor
+     *            only the jobs of this donor and the shared ones, null for all jobs
+     * @param stages
+     *            metric names and job patterns, alternating
+     * @throws IOException
+     */
+    public void timing(File events, String donor, List<String> stages) throws IOException {
+        Map<String, JobTiming> jobs = readEvents(events, donor);
+        out.write("{\"timing_metrics\":[{\"workflow\":{");
+        for (int i = 0; i < stages.size(); i += 2) {
+            String pattern = stages.get(i + 1);
+            double start = Double.MAX_VALUE;
+            double end = -1;
+            for (JobTiming job : jobs.values()) {
+                if (job.finished() && matches(pattern, job.name)) {
+                    start = Math.min(start, job.start);
+                    end = Math.max(end, job.end);
+                }
+            }
+            if (end < 0) {
+                throw new IOException("no finished job matching " + pattern + " in " + events + " for " + stages.get(i));
+            }
+            if (i > 0) {
+                out.write(',');
+            }
+            writeString(stages.get(i));
+            out.write(':');
+            out.write(Long.toString(Math.round(end - start)));
+        }
+        out.write("},\"jobs\":[");
+        boolean first = true;
+        for (JobTiming job : jobs.values()) {
+            if (!job.finished()) {
+                continue;
+            }
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            out.write("{\"job\":");
+            writeString(job.name);
+            out.write(",\"aliquot\":");
+            writeString(job.aliquot);
+            out.write(",\"start\":" + Math.round(job.start) + ",\"seconds\":" + Math.round(job.end - job.start) + ",\"exit_code\":"
+                    + job.exitCode + ",\"bytes_in\":" + job.bytesIn + ",\"bytes_out\":" + job.bytesOut + ",\"attempts\":" + job.attempts
+                    + (job.freedBytes > 0 ? ",\"freed_bytes\":" + job.freedBytes : "")
+                    + (job.transfers > 0 ? ",\"transfer_bytes\":" + job.transferBytes + ",\"transfer_seconds\":" + job.transferSeconds
+                            + ",\"transfer_bytes_per_second\":" + (job.transferSeconds > 0 ? job.transferBytes / job.transferSeconds : 0)
+                            : "")
+                    + "}");
+        }
+        out.write("]}]}");
+    }
+
+    private static boolean matches(String pattern, String name) {
+        if (pattern.endsWith("*")) {
+            return name.startsWith(pattern.substring(0, pattern.length() - 1));
+        }
+        return name.equals(pattern);
+    }
+
+    /**
+     * Pairs up the start and end events of each job, a job that was retried keeps its last attempt.
+     */
+    private static Map<String, JobTiming> readEvents(File events, String donor) throws IOException {
+        if (!events.isFile()) {
+            throw new IOException("job event log " + events + " does not exist");
+        }
+        Map<String, JobTiming> jobs = new LinkedHashMap<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(events), StandardCharsets.UTF_8))) {
+            String line;
+            int number = 0;
+            while ((line = in.readLine()) != null) {
+                number++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String event = field(line, "event");
+                String name = field(line, "job");
+                String time = field(line, "time");
+                if (event == null || name == null || time == null) {
+                    throw new IOException("malformed event at " + events + " line " + number);
+                }
+                String eventDonor = field(line, "donor");
+                if (donor != null && eventDonor != null && !eventDonor.isEmpty() && !donor.equals(eventDonor)) {
+                    continue;
+                }
+                JobTiming job = jobs.get(name);
+                if ("start".equals(event)) {
+                    if (job == null) {
+                        job = new JobTiming(name);
+                        jobs.put(name, job);
+                    }
+                    job.attempts++;
+                    job.start = Double.parseDouble(time);
+                    job.end = -1;
+                    String aliquot = field(line, "aliquot");
+                    job.aliquot = aliquot == null ? "" : aliquot;
+                    job.startBytesIn = parseLong(field(line, "bytes_in"));
+                    job.startBytesOut = parseLong(field(line, "bytes_out"));
+                    job.freedBytes = 0;
+                    job.transfers = 0;
+                    job.transferBytes = 0;
+                    job.transferSeconds = 0;
+                } else if ("freed".equals(event)) {
+                    if (job != null) {
+                        job.freedBytes += parseLong(field(line, "freed_bytes"));
+                    }
+                } else if ("transfer".equals(event)) {
+                    if (job != null) {
+                        job.transfers++;
+                        job.transferBytes += parseLong(field(line, "transfer_bytes"));
+                        job.transferSeconds += parseLong(field(line, "transfer_seconds"));
+                    }
+                } else if (job != null) {
+                    job.end = Double.parseDouble(time);
+                    job.exitCode = (int) parseLong(field(line, "exit_code"));
+                    job.bytesIn = parseLong(field(line, "bytes_in")) - job.startBytesIn;
+                    job.bytesOut = parseLong(field(line, "bytes_out")) - job.startBytesOut;
+                }
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * The events are flat objects written by job_event.pl, so a value is found by its key without a full parse.
+     */
+    static String field(String line, String key) {
+        Matcher matcher = Pattern.compile("\"" + key + "\":(\"((?:[^\"\\\\]|\\\\.)*)\"|[-0-9.eE+]+)").matcher(line);
+        if (!matcher.find()) {
+            return null;
+        }
+        return matcher.group(2) != null ? matcher.group(2).replace("\\\"", "\"").replace("\\\\", "\\") : matcher.group(1);
+    }
+
+    private static long parseLong(String value) {
+        return value == null ? 0 : Long.parseLong(value);
+    }
+
+    /**
+     * The last attempt of one job.
+     */
+    private static class JobTiming {
+        private final String name;
+        private String aliquot = "";
+        private double start;
+        private double end = -1;
+        private int exitCode;
+        private long startBytesIn;
+        private long startBytesOut;
+        private long bytesIn;
+        private long bytesOut;
+        private long freedBytes;
+        private int transfers;
+        private long transferBytes;
+        private long transferSeconds;
+        private int attempts;
+
+        JobTiming(String name) {
+            this.name = name;
+        }
+
+        boolean finished() {
+            return end >= 0;
+        }
+    }
+
+    /**
+     * Copies one document without its insignificant whitespace.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void copy(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("document " + file + " does not exist");
+        }
+        try (Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+            new Copier(in, out, file.getPath()).copyDocument();
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+
+    /**
+     * Reads a document compacted by the {@link Copier}, which has checked it, into maps, lists, strings, numbers, booleans and nulls.
+     */
+    private static class TreeReader {
+
+        private final String text;
+        private int position;
+
+        TreeReader(String text) {
+            this.text = text;
+        }
+
+        Object value() {
+            char c = text.charAt(position);
+            if (c == '{') {
+                Map<String, Object> object = new LinkedHashMap<>();
+                position++;
+                while (text.charAt(position) != '}') {
+                    String key = string();
+                    position++;
+                    object.put(key, value());
+                    if (text.charAt(position) == ',') {
+                        position++;
+                    }
+                }
+                position++;
+                return object;
+            }
+            if (c == '[') {
+                List<Object> array = new ArrayList<>();
+                position++;
+                while (text.charAt(position) != ']') {
+                    array.add(value());
+                    if (text.charAt(position) == ',') {
+                        position++;
+                    }
+                }
+                position++;
+                return array;
+            }
+            if (c == '"') {
+                return string();
+            }
+            for (String literal : new String[] { "true", "false", "null" }) {
+                if (text.startsWith(literal, position)) {
+                    position += literal.length();
+                    return "null".equals(literal) ? null : Boolean.valueOf(literal);
+                }
+            }
+            int start = position;
+            while (position < text.length() && "+-.eE0123456789".indexOf(text.charAt(position)) >= 0) {
+                position++;
+            }
+            return new BigDecimal(text.substring(start, position));
+        }
+
+        private String string() {
+            StringBuilder value = new StringBuilder();
+            position++;
+            while (text.charAt(position) != '"') {
+                char c = text.charAt(position++);
+                if (c == '\\') {
+                    char escaped = text.charAt(position++);
+                    if (escaped == 'u') {
+                        c = (char) Integer.parseInt(text.substring(position, position + 4), 16);
+                        position += 4;
+                    } else {
+                        c = escaped == 'b' ? '\b' : escaped == 'f' ? '\f' : escaped == 'n' ? '\n' : escaped == 'r' ? '\r'
+                                : escaped == 't' ? '\t' : escaped;
+                    }
+                }
+                value.append(c);
+            }
+            position++;
+            return value.toString();
+        }
+    }
+
+    /**
+     * Validating tokenizer that writes each token as it is read, nesting is tracked with a stack of the open containers.
+     */
+    private static class Copier {
+
+        private final Reader in;
+        private final Writer out;
+        private final String name;
+        private final StringBuilder containers = new StringBuilder();
+        private int peeked = -2;
+        private int line = 1;
+        private int column = 0;
+
+        Copier(Reader in, Writer out, String name) {
+            this.in = in;
+            this.out = out;
+            this.name = name;
+        }
+
+        void copyDocument() throws IOException {
+            value(nextToken());
+            if (nextToken() != -1) {
+                throw error("content after the end of the document");
+            }
+        }
+
+        private void value(int c) throws IOException {
+            if (c == '{') {
+                container('{', '}');
+            } else if (c == '[') {
+                container('[', ']');
+            } else if (c == '"') {
+                string();
+            } else if (c == '-' || (c >= '0' && c <= '9')) {
+                number(c);
+            } else if (c == 't') {
+                literal("true");
+            } else if (c == 'f') {
+                literal("false");
+            } else if (c == 'n') {
+                literal("null");
+            } else {
+                throw error(c == -1 ? "unexpected end of the document" : "unexpected '" + (char) c + "'");
+            }
+        }
+
+        private void container(char open, char close) throws IOException {
+            out.write(open);
+            containers.append(open);
+            int c = nextToken();
+            if (c != close) {
+                while (true) {
+                    if (open == '{') {
+                        if (c != '"') {
+                            throw error("expected a member name");
+                        }
+                        string();
+                        if (nextToken() != ':') {
+                            throw error("expected ':'");
+                        }
+                        out.write(':');
+                        c = nextToken();
+                    }
+                    value(c);
+                    c = nextToken();
+                    if (c == close) {
+                        break;
+                    }
+                    if (c != ',') {
+                        throw error("expected ',' or '" + close + "'");
+                    }
+                    out.write(',');
+                    c = nextToken();
+                }
+            }
+            containers.setLength(containers.length() - 1);
+            out.write(close);
+        }
+
+        private void string() throws IOException {
+            out.write('"');
+            while (true) {
+                int c = read();
+                if (c == -1) {
+                    throw error("unterminated string");
+                }
+                if (c == '"') {
+                    break;
+                }
+                if (c == '\\') {
+                    int escaped = read();
+                    if (escaped == -1 || "\"\\/bfnrtu".indexOf(escaped) < 0) {
+                        throw error("bad escape in string");
+                    }
+                    out.write(c);
+                    c = escaped;
+                } else if (c == '\n' || c == '\r') {
+                    // documents written by hand sometimes break long strings, the old merge joined lines with a space
+                    c = ' ';
+                }
+                out.write(c);
+            }
+            out.write('"');
+        }
+
+        private void number(int c) throws IOException {
+            out.write(c);
+            while (true) {
+                int next = peek();
+                if ((next >= '0' && next <= '9') || next == '.' || next == 'e' || next == 'E' || next == '+' || next == '-') {
+                    out.write(read());
+                } else {
+                    break;
+                }
+            }
+        }
+
+        private void literal(String literal) throws IOException {
+            out.write(literal.charAt(0));
+            for (int i = 1; i < literal.length(); i++) {
+                if (read() != literal.charAt(i)) {
+                    throw error("expected " + literal);
+                }
+                out.write(literal.charAt(i));
+            }
+        }
+
+        private int nextToken() throws IOException {
+            int c = read();
+            while (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                c = read();
+            }
+            return c;
+        }
+
+        private int peek() throws IOException {
+            if (peeked == -2) {
+                peeked = in.read();
+            }
+            return peeked;
+        }
+
+        private int read() throws IOException {
+            int c = peek();
+            peeked = -2;
+            if (c == '\n') {
+                line++;
+                column = 0;
+            } else {
+                column++;
+            }
+            return c;
+        }
+
+        private IOException error(String message) {
+            return new IOException("malformed document " + name + " at line " + line + " column " + column + ": " + message
+                    + (containers.length() > 0 ? " (inside " + containers + ")" : ""));
+        }
+    }
+}
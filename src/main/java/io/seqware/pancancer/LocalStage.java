@@ -0,0 +1,219 @@
+package io.seqware.pancancer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Stages local input files into a directory without sudo, whatever filesystem the directory is on. Each file is hard linked if
+ * possible, else cloned with a reflink where the filesystem shares extents, else copied with several streams, each transferring its
+ * own range of the file.
+ *
+ * <pre>
+ * LocalStage [-t streams] [-verify] &lt;directory&gt; &lt;file&gt;...
+ * </pre>
+ *
+ * A copy is written next to its target and renamed once complete, so a file already staged under its name with the size of the
+ * source is kept. Every staged file is checked to have the size of the source, with -verify a copy is also compared by MD5. The
+ * method, size and throughput of each file are printed.
+ */
+public class LocalStage {
+
+    private static final String USAGE = "Usage: LocalStage [-t streams] [-verify] <directory> <file>...";
+    // files smaller than this are copied with one stream
+    private static final long MIN_RANGE = 64L << 20;
+
+    public static void main(String[] args) throws InterruptedException {
+        int streams = 4;
+        boolean verify = false;
+        List<String> operands = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-t".equals(args[i]) && i + 1 < args.length) {
+                streams = Integer.parseInt(args[++i]);
+            } else if ("-verify".equals(args[i])) {
+                verify = true;
+            } else {
+                operands.add(args[i]);
+            }
+        }
+        if (operands.size() < 2 || streams < 1) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        File directory = new File(operands.get(0));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("cannot create " + directory);
+            System.exit(1);
+        }
+        for (String source : operands.subList(1, operands.size())) {
+            try {
+                stage(new File(source), directory, streams, verify);
+            } catch (IOException e) {
+                System.err.println(source + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     *
+     * @param source
+     * @param directory
+     * @param streams
+     *            parallel streams of a copy
+     * @param verify
+     *            compare the MD5 of a copy with that of the source
+     * @return how the file was staged: present, link, reflink or copy
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static String stage(File source, File directory, int streams, boolean verify) throws IOException, InterruptedException {
+        if (!source.isFile()) {
+            throw new IOException("does not exist");
+        }
+        File target = new File(directory, source.getName());
+        long start = System.nanoTime();
+        String method;
+        if (target.isFile() && target.length() == source.length()) {
+            method = "present";
+        } else {
+            Files.deleteIfExists(target.toPath());
+            method = link(source, target) ? "link" : reflink(source, target) ? "reflink" : "copy";
+            if ("copy".equals(method)) {
+                copy(source, target, streams);
+            }
+        }
+
+        if (target.length() != source.length()) {
+            throw new IOException(target + " has " + target.length() + " bytes instead of " + source.length());
+        }
+        if (verify && "copy".equals(method)) {
+            verify(source, target);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.ROOT, "%s: %s, %d bytes in %.1f s, %.1f MB/s", target, method, source.length(), seconds,
+                seconds > 0 ? source.length() / seconds / 1e6 : 0));
+        return method;
+    }
+
+    /**
+     * Fails across filesystems and, with protected hard links, for files of other users that are not writable.
+     */
+    private static boolean link(File source, File target) {
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            System.out.println(source + ": no hard link, " + e);
+            return false;
+        }
+    }
+
+    /**
+     * The JDK has no FICLONE, GNU cp issues it and fails where the filesystem cannot share extents.
+     */
+    private static boolean reflink(File source, File target) throws InterruptedException {
+        File partial = new File(target.getPath() + ".partial");
+        try {
+            Process cp = new ProcessBuilder(Arrays.asList("cp", "--reflink=always", source.getPath(), partial.getPath()))
+                    .redirectErrorStream(true).start();
+            cp.getInputStream().close();
+            if (cp.waitFor() == 0) {
+                Files.move(partial.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                return true;
+            }
+            System.out.println(source + ": no reflink");
+        } catch (IOException e) {
+            System.out.println(source + ": no reflink, " + e);
+        }
+        partial.delete();
+        return false;
+    }
+
+    /**
+     * Each stream transfers its own range into the preallocated copy, the kernel moves the bytes where the JDK supports it.
+     */
+    private static void copy(final File source, File target, int streams) throws IOException, InterruptedException {
+        final File partial = new File(target.getPath() + ".partial");
+        final long size = source.length();
+        try (RandomAccessFile out = new RandomAccessFile(partial, "rw")) {
+            out.setLength(size);
+        }
+        int ranges = (int) Math.max(1, Math.min(streams, size / MIN_RANGE));
+        final long rangeSize = (size + ranges - 1) / ranges;
+        ExecutorService pool = Executors.newFixedThreadPool(ranges);
+        List<Future<Void>> copies = new ArrayList<>();
+        for (int i = 0; i < ranges; i++) {
+            final long from = i * rangeSize;
+            final long to = Math.min(size, from + rangeSize);
+            copies.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                            FileChannel out = FileChannel.open(partial.toPath(), StandardOpenOption.WRITE)) {
+                        long position = from;
+                        out.position(position);
+                        while (position < to) {
+                            long transferred = in.transferTo(position, to - position, out);
+                            if (transferred <= 0 && in.size() <= position) {
+                                throw new IOException(source + " shrank while being copied");
+                            }
+                            position += transferred;
+                        }
+                        out.force(false);
+                    }
+                    return null;
+                }
+            }));
+        }
+        pool.shutdown();
+        try {
+            for (Future<Void> copy : copies) {
+                copy.get();
+            }
+        } catch (ExecutionException e) {
+            pool.shutdownNow();
+            partial.delete();
+            throw new IOException("copy failed: " + e.getCause().getMessage(), e.getCause());
+        }
+        partial.setLastModified(source.lastModified());
+        Files.move(partial.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Hashes the source and the copy at the same time.
+     */
+    private static void verify(final File source, File target) throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Future<byte[]> sourceDigest = pool.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return Checksums.md5(source);
+            }
+        });
+        pool.shutdown();
+        String copied = Checksums.hex(Checksums.md5(target));
+        try {
+            if (!Checksums.hex(sourceDigest.get()).equals(copied)) {
+                target.delete();
+                throw new IOException(target + " does not match the MD5 of " + source + ", removed");
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("cannot hash " + source + ": " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
@@ -0,0 +1,492 @@
+package io.seqware.pancancer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the progress of a donor run in Prometheus text format, in a file for the node exporter textfile collector and optionally on
+ * an HTTP endpoint. Every few seconds it updates the running jobs from the job event log, the bytes downloaded so far per analysis ID
+ * and their rate, the host network throughput, the free space of the shared workspace and the common data directory, the uptime of
+ * the running containers and the transfer reports the download and upload jobs leave in the reports directory.
+ *
+ * <pre>
+ * MetricsExporter [-i seconds] [-port port] [-donor id] &lt;workspace&gt; &lt;common data dir&gt; &lt;metrics file&gt;
+ * MetricsExporter -report &lt;reports dir&gt; &lt;download|upload&gt; &lt;id&gt; &lt;start epoch seconds&gt; &lt;path&gt;...
+ * </pre>
+ *
+ * A batch of donors runs one exporter without -donor, the jobs and downloads are then labelled with the donor they belong to.
+ *
+ * The exporter stops when it is terminated or the workspace is removed. The report mode is run by a job once its transfer is done
+ * and records the bytes, duration and throughput of the given files or directories.
+ */
+public class MetricsExporter {
+
+    private static final String USAGE = "Usage: MetricsExporter [-i seconds] [-port port] [-donor id] <workspace> <common data dir> <metrics file>\n"
+            + "       MetricsExporter -report <reports dir> <download|upload> <id> <start epoch seconds> <path>...";
+    private static final String PREFIX = "pancancer_";
+    // donor workspaces of a batch run, below the shared workspace
+    private static final String DONOR_WORKSPACES = "donors";
+
+    private final Path workspace;
+    private final Path commonDataDir;
+    private final String donor;
+    private volatile String text = "";
+    private volatile boolean running = true;
+
+    // job event log read so far, the running jobs by donor and name
+    private long eventsOffset = 0;
+    private final Map<String, Double> runningJobs = new LinkedHashMap<>();
+    private final Map<String, String> runningAliquots = new HashMap<>();
+    private int jobsSucceeded = 0;
+    private int jobsFailed = 0;
+
+    private final Map<String, Long> downloadBytes = new HashMap<>();
+    private final Map<String, String> downloadLabels = new HashMap<>();
+    private long[] network;
+    private long lastUpdate;
+    private boolean docker = true;
+
+    /**
+     *
+     * @param workspace
+     *            the shared workspace
+     * @param commonDataDir
+     *            the reference data directory
+     * @param donor
+     *            label of every metric, may be null
+     */
+    public MetricsExporter(Path workspace, Path commonDataDir, String donor) {
+        this.workspace = workspace;
+        this.commonDataDir = commonDataDir;
+        this.donor = donor;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && "-report".equals(args[0])) {
+            if (args.length < 6) {
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+            report(Paths.get(args[1]), args[2], args[3], Long.parseLong(args[4]), Arrays.asList(args).subList(5, args.length));
+            return;
+        }
+
+        long interval = 5;
+        int port = 0;
+        String donor = null;
+        List<String> operands = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-i".equals(args[i]) && i + 1 < args.length) {
+                interval = Long.parseLong(args[++i]);
+            } else if ("-port".equals(args[i]) && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if ("-donor".equals(args[i]) && i + 1 < args.length) {
+                donor = args[++i];
+            } else {
+                operands.add(args[i]);
+            }
+        }
+        if (operands.size() != 3 || interval < 1) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        final MetricsExporter exporter = new MetricsExporter(Paths.get(operands.get(0)), Paths.get(operands.get(1)), donor);
+        Path metrics = Paths.get(operands.get(2));
+        HttpServer server = port > 0 ? exporter.serve(port) : null;
+
+        final Thread main = Thread.currentThread();
+        final CountDownLatch done = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                exporter.running = false;
+                main.interrupt();
+                try {
+                    done.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // exiting anyway
+                }
+            }
+        });
+
+        try {
+            while (exporter.running && Files.isDirectory(exporter.workspace)) {
+                try {
+                    exporter.update();
+                    exporter.write(metrics);
+                } catch (IOException e) {
+                    // keep reporting, a file may have gone away under us
+                    System.err.println("MetricsExporter: " + e.getMessage());
+                }
+                try {
+                    Thread.sleep(interval * 1000);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        } finally {
+            if (server != null) {
+                server.stop(0);
+            }
+            done.countDown();
+        }
+    }
+
+    /**
+     * Serves the latest metrics on /metrics.
+     *
+     * @param port
+     * @return the started server
+     * @throws IOException
+     */
+    public HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = text.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * Collects all metrics once.
+     *
+     * @throws IOException
+     */
+    public void update() throws IOException {
+        long now = System.currentTimeMillis();
+        double elapsed = lastUpdate == 0 ? 0 : (now - lastUpdate) / 1000.0;
+        StringBuilder out = new StringBuilder();
+        String donorLabel = donor == null ? "" : "donor=\"" + escape(donor) + "\"";
+
+        gauge(out, "info", "the donor of this run", donorLabel, 1);
+
+        // current stage
+        readEvents(workspace.resolve("job_events.ndjson"));
+        help(out, "job_running_seconds", "gauge", "jobs started and not yet ended");
+        for (Map.Entry<String, Double> job : runningJobs.entrySet()) {
+            String[] donorAndName = job.getKey().split("\t", 2);
+            String jobLabel = "job=\"" + escape(donorAndName[1]) + "\",aliquot=\"" + escape(runningAliquots.get(job.getKey())) + "\"";
+            if (donor == null && !donorAndName[0].isEmpty()) {
+                jobLabel = "donor=\"" + escape(donorAndName[0]) + "\"," + jobLabel;
+            }
+            sample(out, "job_running_seconds", labels(donorLabel, jobLabel), now / 1000.0 - job.getValue());
+        }
+        help(out, "jobs_finished", "gauge", "jobs ended by exit status");
+        sample(out, "jobs_finished", labels(donorLabel, "status=\"ok\""), jobsSucceeded);
+        sample(out, "jobs_finished", labels(donorLabel, "status=\"failed\""), jobsFailed);
+
+        // downloads as they land in the inputs, those of a batch in the workspace of each donor
+        help(out, "download_bytes", "gauge", "bytes downloaded so far per analysis ID");
+        Map<String, Long> previous = new HashMap<>(downloadBytes);
+        Map<File, String> inputDirectories = new LinkedHashMap<>();
+        inputDirectories.put(workspace.resolve("inputs").toFile(), donorLabel);
+        File[] donorWorkspaces = workspace.resolve(DONOR_WORKSPACES).toFile().listFiles();
+        for (File donorWorkspace : donorWorkspaces == null ? new File[0] : donorWorkspaces) {
+            inputDirectories.put(new File(donorWorkspace, "inputs"), donor == null ? "donor=\"" + escape(donorWorkspace.getName()) + "\""
+                    : donorLabel);
+        }
+        for (Map.Entry<File, String> inputDirectory : inputDirectories.entrySet()) {
+            File[] inputs = inputDirectory.getKey().listFiles();
+            for (File input : inputs == null ? new File[0] : inputs) {
+                if (input.isDirectory()) {
+                    long bytes = size(input.toPath());
+                    downloadBytes.put(input.getName(), bytes);
+                    downloadLabels.put(input.getName(), inputDirectory.getValue());
+                    sample(out, "download_bytes", labels(inputDirectory.getValue(), "analysis_id=\"" + escape(input.getName()) + "\""),
+                            bytes);
+                }
+            }
+        }
+        help(out, "download_bytes_per_second", "gauge", "download rate since the previous update per analysis ID");
+        for (Map.Entry<String, Long> input : downloadBytes.entrySet()) {
+            Long before = previous.get(input.getKey());
+            double rate = elapsed > 0 && before != null ? Math.max(0, input.getValue() - before) / elapsed : 0;
+            sample(out, "download_bytes_per_second", labels(downloadLabels.get(input.getKey()), "analysis_id=\"" + escape(input.getKey())
+                    + "\""), rate);
+        }
+
+        // the host interfaces carry the downloads and uploads of all containers
+        long[] counters = readNetwork();
+        help(out, "network_bytes_per_second", "gauge", "host network throughput since the previous update, loopback excluded");
+        for (int i = 0; i < 2; i++) {
+            double rate = elapsed > 0 && network != null ? Math.max(0, counters[i] - network[i]) / elapsed : 0;
+            sample(out, "network_bytes_per_second", labels(donorLabel, "direction=\"" + (i == 0 ? "receive" : "transmit") + "\""), rate);
+        }
+        network = counters;
+
+        help(out, "filesystem_free_bytes", "gauge", "space available to the workflow");
+        sample(out, "filesystem_free_bytes", labels(donorLabel, "path=\"shared_workspace\""), workspace.toFile().getUsableSpace());
+        sample(out, "filesystem_free_bytes", labels(donorLabel, "path=\"common_data_dir\""), commonDataDir.toFile().getUsableSpace());
+
+        help(out, "container_uptime_seconds", "gauge", "running docker containers");
+        for (Map.Entry<String, Long> container : containers().entrySet()) {
+            sample(out, "container_uptime_seconds", labels(donorLabel, "container=\"" + escape(container.getKey()) + "\""),
+                    (now - container.getValue()) / 1000.0);
+        }
+
+        // finished transfers, the samples of one metric have to stay together
+        Map<String, StringBuilder> transfers = new TreeMap<>();
+        File[] reports = workspace.resolve("metrics").resolve("reports").toFile().listFiles();
+        for (File report : reports == null ? new File[0] : reports) {
+            if (report.getName().endsWith(".prom")) {
+                for (String line : Files.readAllLines(report.toPath(), StandardCharsets.UTF_8)) {
+                    String name = line.split("[{ ]", 2)[0];
+                    if (!transfers.containsKey(name)) {
+                        transfers.put(name, new StringBuilder());
+                    }
+                    transfers.get(name).append(line).append('\n');
+                }
+            }
+        }
+        for (Map.Entry<String, StringBuilder> transfer : transfers.entrySet()) {
+            out.append("# TYPE ").append(transfer.getKey()).append(" gauge\n").append(transfer.getValue());
+        }
+
+        lastUpdate = now;
+        text = out.toString();
+    }
+
+    /**
+     * Replaces the metrics file in one step so a scrape never sees half of it.
+     *
+     * @param metrics
+     * @throws IOException
+     */
+    public void write(Path metrics) throws IOException {
+        Path partial = Paths.get(metrics + ".partial");
+        Files.write(partial, text.getBytes(StandardCharsets.UTF_8));
+        if (!partial.toFile().renameTo(metrics.toFile())) {
+            throw new IOException("cannot rename " + partial + " to " + metrics);
+        }
+    }
+
+    /**
+     * Reads the events appended since the previous update.
+     */
+    private void readEvents(Path events) throws IOException {
+        if (!Files.exists(events)) {
+            return;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(events.toFile(), "r")) {
+            if (in.length() < eventsOffset) {
+                // a new log, the workspace was recreated
+                eventsOffset = 0;
+                runningJobs.clear();
+                jobsSucceeded = 0;
+                jobsFailed = 0;
+            }
+            byte[] appended = new byte[(int) (in.length() - eventsOffset)];
+            in.seek(eventsOffset);
+            in.readFully(appended);
+            String lines = new String(appended, StandardCharsets.UTF_8);
+            // a line still being written is read next time
+            int complete = lines.lastIndexOf('\n') + 1;
+            eventsOffset += lines.substring(0, complete).getBytes(StandardCharsets.UTF_8).length;
+            for (String line : lines.substring(0, complete).split("\n")) {
+                String event = JsonMerge.field(line, "event");
+                String job = JsonMerge.field(line, "job");
+                String time = JsonMerge.field(line, "time");
+                if (event == null || job == null || time == null) {
+                    continue;
+                }
+                // the donors of a batch run jobs of the same name
+                String eventDonor = JsonMerge.field(line, "donor");
+                String key = (eventDonor == null ? "" : eventDonor) + "\t" + job;
+                if ("start".equals(event)) {
+                    runningJobs.put(key, Double.parseDouble(time));
+                    String aliquot = JsonMerge.field(line, "aliquot");
+                    runningAliquots.put(key, aliquot == null ? "" : aliquot);
+                } else if ("end".equals(event) && runningJobs.remove(key) != null) {
+                    if ("0".equals(JsonMerge.field(line, "exit_code"))) {
+                        jobsSucceeded++;
+                    } else {
+                        jobsFailed++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return received and transmitted bytes of all interfaces but loopback
+     */
+    private static long[] readNetwork() throws IOException {
+        long[] counters = new long[2];
+        Path dev = Paths.get("/proc/net/dev");
+        if (!Files.exists(dev)) {
+            return counters;
+        }
+        for (String line : Files.readAllLines(dev, StandardCharsets.UTF_8)) {
+            int colon = line.indexOf(':');
+            if (colon < 0 || "lo".equals(line.substring(0, colon).trim())) {
+                continue;
+            }
+            String[] fields = line.substring(colon + 1).trim().split("\\s+");
+            if (fields.length >= 9) {
+                counters[0] += Long.parseLong(fields[0]);
+                counters[1] += Long.parseLong(fields[8]);
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * @return names of the running containers and when they were created in epoch milliseconds, none without docker
+     */
+    private Map<String, Long> containers() {
+        Map<String, Long> containers = new LinkedHashMap<>();
+        if (!docker) {
+            return containers;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z", Locale.ROOT);
+        try {
+            Process ps = new ProcessBuilder("docker", "ps", "--format", "{{.Names}}\t{{.CreatedAt}}").redirectErrorStream(true).start();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(ps.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length == 2) {
+                        try {
+                            containers.put(fields[0], format.parse(fields[1]).getTime());
+                        } catch (ParseException e) {
+                            // not a container line
+                        }
+                    }
+                }
+            }
+            ps.waitFor();
+        } catch (IOException e) {
+            // no docker on this host, stop asking
+            docker = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return containers;
+    }
+
+    private static long size(Path directory) throws IOException {
+        final long[] total = new long[1];
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                total[0] += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // partial downloads come and go
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return total[0];
+    }
+
+    /**
+     * Records a finished transfer in the reports directory, where the exporter picks it up.
+     *
+     * @param reports
+     * @param direction
+     *            download or upload
+     * @param id
+     *            what was transferred, the analysis ID of a download
+     * @param start
+     *            epoch seconds the transfer started
+     * @param paths
+     *            the files or directories transferred
+     * @throws IOException
+     */
+    public static void report(Path reports, String direction, String id, long start, List<String> paths) throws IOException {
+        long bytes = 0;
+        for (String path : paths) {
+            Path file = Paths.get(path);
+            bytes += Files.isDirectory(file) ? size(file) : Files.size(file);
+        }
+        double now = System.currentTimeMillis() / 1000.0;
+        double seconds = Math.max(0, now - start);
+        String labels = "direction=\"" + escape(direction) + "\",id=\"" + escape(id) + "\"";
+        StringBuilder out = new StringBuilder();
+        sample(out, "transfer_bytes", labels, bytes);
+        sample(out, "transfer_seconds", labels, seconds);
+        sample(out, "transfer_bytes_per_second", labels, seconds > 0 ? bytes / seconds : 0);
+        sample(out, "transfer_completed_timestamp_seconds", labels, now);
+
+        Files.createDirectories(reports);
+        Path report = reports.resolve(direction + "_" + id + ".prom");
+        Path partial = reports.resolve(direction + "_" + id + ".partial");
+        Files.write(partial, out.toString().getBytes(StandardCharsets.UTF_8));
+        if (!partial.toFile().renameTo(report.toFile())) {
+            throw new IOException("cannot rename " + partial + " to " + report);
+        }
+        System.out.println(direction + " of " + id + ": " + bytes + " bytes in " + String.format(Locale.ROOT, "%.0f", seconds) + " s");
+    }
+
+    private static void help(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, String labels, double value) {
+        help(out, name, "gauge", help);
+        sample(out, name, labels, value);
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(PREFIX).append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(String.format(Locale.ROOT, "%.3f", value));
+        }
+        out.append('\n');
+    }
+
+    private static String labels(String first, String second) {
+        return first.isEmpty() ? second : first + "," + second;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
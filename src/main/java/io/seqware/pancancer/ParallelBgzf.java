@@ -0,0 +1,175 @@
+package io.seqware.pancancer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses to BGZF on several threads. The input is cut into chunks of sixteen blocks, each chunk is deflated into its blocks on
+ * the pool and the blocks are written in input order. BGZF blocks are independent gzip members, so the output reads as ordinary gzip
+ * as well, with gunzip, tar or GZIPInputStream. At most twice as many chunks as threads are in flight, writing blocks while the
+ * output falls behind.
+ */
+public class ParallelBgzf extends OutputStream {
+
+    /** uncompressed bytes deflated by one task */
+    public static final int CHUNK = 16 * BgzfWriter.MAX_BLOCK_INPUT;
+
+    private final OutputStream out;
+    private final ExecutorService pool;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    // every thread of the pool reuses its writer, they are ended on close
+    private final List<BgzfWriter> writers = Collections.synchronizedList(new ArrayList<BgzfWriter>());
+    private final ThreadLocal<Compressor> compressors;
+    private byte[] chunk = new byte[CHUNK];
+    private int filled = 0;
+    private boolean finished = false;
+
+    public ParallelBgzf(OutputStream out, int threads) {
+        this(out, threads, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     *
+     * @param out
+     * @param threads
+     * @param level
+     *            deflate level
+     */
+    public ParallelBgzf(OutputStream out, int threads, final int level) {
+        this.out = out;
+        this.maxPending = 2 * threads;
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "bgzf");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.compressors = new ThreadLocal<Compressor>() {
+            @Override
+            protected Compressor initialValue() {
+                Compressor compressor = new Compressor(level);
+                writers.add(compressor.writer);
+                return compressor;
+            }
+        };
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        chunk[filled++] = (byte) b;
+        if (filled == CHUNK) {
+            submit();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, CHUNK - filled);
+            System.arraycopy(b, off, chunk, filled, n);
+            filled += n;
+            off += n;
+            len -= n;
+            if (filled == CHUNK) {
+                submit();
+            }
+        }
+    }
+
+    private void submit() throws IOException {
+        final byte[] data = chunk;
+        final int length = filled;
+        pending.add(pool.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return compressors.get().compress(data, length);
+            }
+        }));
+        chunk = new byte[CHUNK];
+        filled = 0;
+        while (pending.size() > maxPending) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        try {
+            out.write(pending.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("compression failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Writes the blocks of everything written so far and the end of file marker without closing the underlying stream.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (filled > 0) {
+            submit();
+        }
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        out.write(BgzfWriter.EOF_BLOCK);
+        out.flush();
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+            out.close();
+        } finally {
+            pool.shutdownNow();
+            synchronized (writers) {
+                for (BgzfWriter writer : writers) {
+                    writer.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A writer whose blocks are collected in memory.
+     */
+    private static class Compressor {
+        final ByteArrayOutputStream blocks = new ByteArrayOutputStream(CHUNK + CHUNK / 8);
+        final BgzfWriter writer;
+
+        Compressor(int level) {
+            writer = new BgzfWriter(blocks, level);
+        }
+
+        byte[] compress(byte[] data, int length) throws IOException {
+            blocks.reset();
+            writer.write(data, 0, length);
+            writer.flushBlock();
+            return blocks.toByteArray();
+        }
+    }
+}
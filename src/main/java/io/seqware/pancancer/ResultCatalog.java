@@ -0,0 +1,137 @@
+package io.seqware.pancancer;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Walks the shared workspace once and records where each expected result file ended up, so later steps look paths up in the manifest
+ * instead of running find over the whole working directory. The manifest has one tab separated line per file: name, path relative to
+ * the workspace, size in bytes and modification time in epoch milliseconds. Expected files that are not found are all reported and
+ * make the exit status non-zero.
+ *
+ * Usage: ResultCatalog &lt;workspace&gt; &lt;manifest&gt; [-x directory name to skip]... &lt;expected file name&gt;...
+ */
+public class ResultCatalog {
+
+    private final Path root;
+    private final Set<String> pruned = new HashSet<>();
+    private final Map<String, Path> found = new LinkedHashMap<>();
+
+    /**
+     *
+     * @param root
+     *            the workspace to walk
+     * @param expected
+     *            file names to look for
+     * @param pruned
+     *            names of directories not to descend into
+     */
+    public ResultCatalog(Path root, List<String> expected, List<String> pruned) {
+        this.root = root;
+        this.pruned.addAll(pruned);
+        for (String name : expected) {
+            found.put(name, null);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<String> expected = new ArrayList<>();
+        List<String> pruned = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            if ("-x".equals(args[i]) && i + 1 < args.length) {
+                pruned.add(args[++i]);
+            } else {
+                expected.add(args[i]);
+            }
+        }
+        if (expected.isEmpty()) {
+            System.err.println("Usage: ResultCatalog <workspace> <manifest> [-x directory name to skip]... <expected file name>...");
+            System.exit(1);
+        }
+        ResultCatalog catalog = new ResultCatalog(Paths.get(args[0]), expected, pruned);
+        catalog.walk();
+        List<String> missing = catalog.write(Paths.get(args[1]));
+        for (String name : missing) {
+            System.err.println("missing result file: " + name);
+        }
+        if (!missing.isEmpty()) {
+            System.err.println(missing.size() + " of " + expected.size() + " expected result files were not found under " + args[0]);
+            System.exit(1);
+        }
+        System.out.println("catalogued " + expected.size() + " result files in " + args[1]);
+    }
+
+    /**
+     * Walks the workspace, when a name occurs more than once the copy closest to the root wins.
+     *
+     * @throws IOException
+     */
+    public void walk() throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(root) && pruned.contains(dir.getFileName().toString())) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String name = file.getFileName().toString();
+                if (attrs.isRegularFile() && found.containsKey(name)) {
+                    Path previous = found.get(name);
+                    if (previous == null || file.getNameCount() < previous.getNameCount()
+                            || file.getNameCount() == previous.getNameCount() && file.compareTo(previous) < 0) {
+                        found.put(name, file);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // files removed while walking or unreadable container output do not stop the catalog
+                System.err.println("cannot read " + file + ": " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Writes the manifest.
+     *
+     * @param manifest
+     * @return the expected names that were not found
+     * @throws IOException
+     */
+    public List<String> write(Path manifest) throws IOException {
+        List<String> missing = new ArrayList<>();
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(manifest, StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, Path> entry : found.entrySet()) {
+                Path file = entry.getValue();
+                if (file == null) {
+                    missing.add(entry.getKey());
+                    continue;
+                }
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                out.print(entry.getKey() + "\t" + root.relativize(file) + "\t" + attrs.size() + "\t" + attrs.lastModifiedTime().toMillis()
+                        + "\n");
+            }
+        }
+        return missing;
+    }
+}
@@ -0,0 +1,381 @@
+package io.seqware.pancancer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads S3 objects with parallel ranged GETs, the parts of every object given sharing one pool of streams so an index is fetched
+ * alongside its BAM. Each object is written in place into a preallocated file with positional writes. The parts completed are recorded
+ * in a journal next to the file, file.s3parts, so a download that failed resumes with the parts still missing as long as the object
+ * has the same ETag. The journal is removed once the file is complete.
+ *
+ * <pre>
+ * S3Download [-part-mb n] [-streams n] [-region r] [-endpoint url] &lt;s3 url&gt; &lt;file&gt; [&lt;s3 url&gt; &lt;file&gt;]...
+ * S3Download -size [-region r] [-endpoint url] &lt;s3 url&gt;      prints the size of the object
+ * </pre>
+ *
+ * The credentials are taken from the environment, see {@link S3Signer}. A transfer admitted by the {@link TransferScheduler} keeps to
+ * its share of the bandwidth.
+ */
+public class S3Download {
+
+    private static final String USAGE = "Usage: S3Download [-part-mb n] [-streams n] [-region r] [-endpoint url] <s3 url> <file> "
+            + "[<s3 url> <file>]...\n       S3Download -size [-region r] [-endpoint url] <s3 url>";
+    private static final String JOURNAL = ".s3parts";
+    private static final int ATTEMPTS = 4;
+    private static final int TIMEOUT_MS = 120000;
+
+    private final S3Signer signer;
+    private final TransferThrottle throttle = TransferThrottle.fromEnvironment();
+
+    public S3Download(S3Signer signer) {
+        this.signer = signer;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long partSize = 64L << 20;
+        int streams = 8;
+        boolean size = false;
+        String region = null;
+        String endpoint = null;
+        List<String> operands = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-part-mb".equals(args[i]) && i + 1 < args.length) {
+                partSize = Long.parseLong(args[++i]) << 20;
+            } else if ("-streams".equals(args[i]) && i + 1 < args.length) {
+                streams = Integer.parseInt(args[++i]);
+            } else if ("-region".equals(args[i]) && i + 1 < args.length) {
+                region = args[++i];
+            } else if ("-endpoint".equals(args[i]) && i + 1 < args.length) {
+                endpoint = args[++i];
+            } else if ("-size".equals(args[i])) {
+                size = true;
+            } else {
+                operands.add(args[i]);
+            }
+        }
+        if (size ? operands.size() != 1 : operands.isEmpty() || operands.size() % 2 != 0 || partSize < 1 || streams < 1) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        S3Download download = new S3Download(S3Signer.fromEnvironment(region, endpoint));
+        try {
+            if (size) {
+                System.out.println(download.head(operands.get(0))[0]);
+            } else {
+                List<String[]> objects = new ArrayList<>();
+                for (int i = 0; i < operands.size(); i += 2) {
+                    objects.add(new String[] { operands.get(i), operands.get(i + 1) });
+                }
+                download.download(objects, partSize, streams);
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     *
+     * @param s3Url
+     * @return the size and the ETag of the object
+     * @throws IOException
+     */
+    public String[] head(String s3Url) throws IOException {
+        HttpURLConnection connection = open("HEAD", signer.objectUrl(s3Url, null), new TreeMap<String, String>());
+        try {
+            check(connection, HttpURLConnection.HTTP_OK, "HEAD " + s3Url);
+            String etag = connection.getHeaderField("ETag");
+            return new String[] { String.valueOf(connection.getContentLengthLong()), etag == null ? "" : etag };
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Downloads every object, the smallest first so the indexes do not wait behind the parts of a BAM.
+     *
+     * @param objects
+     *            pairs of an S3 URL and the file to write
+     * @param partSize
+     * @param streams
+     *            parallel GETs over all the objects
+     * @throws IOException
+     *             if any part still fails after its retries, the completed parts stay recorded
+     * @throws InterruptedException
+     */
+    public void download(List<String[]> objects, long partSize, int streams) throws IOException, InterruptedException {
+        final List<Target> targets = new ArrayList<>();
+        for (String[] object : objects) {
+            String[] head = head(object[0]);
+            targets.add(new Target(object[0], new File(object[1]), Long.parseLong(head[0]), head[1], partSize));
+        }
+        Collections.sort(targets, new Comparator<Target>() {
+            @Override
+            public int compare(Target a, Target b) {
+                return Long.compare(a.size, b.size);
+            }
+        });
+
+        ExecutorService pool = Executors.newFixedThreadPool(streams);
+        List<Future<Void>> parts = new ArrayList<>();
+        try {
+            for (final Target target : targets) {
+                target.open();
+                Set<Integer> resumed = new HashSet<>(target.completed);
+                for (int part = 0; part < target.parts; part++) {
+                    if (resumed.contains(part)) {
+                        continue;
+                    }
+                    final int number = part;
+                    parts.add(pool.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException, InterruptedException {
+                            fetch(target, number);
+                            return null;
+                        }
+                    }));
+                }
+            }
+            pool.shutdown();
+            IOException failure = null;
+            for (Future<Void> part : parts) {
+                try {
+                    part.get();
+                } catch (ExecutionException e) {
+                    failure = failure != null ? failure : new IOException(e.getCause().getMessage(), e.getCause());
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            pool.shutdownNow();
+            for (Target target : targets) {
+                target.close();
+            }
+        }
+        for (Target target : targets) {
+            target.finish();
+        }
+    }
+
+    /**
+     * Writes one part into the file at its offset and records it, retrying with a growing pause.
+     */
+    private void fetch(Target target, int part) throws IOException, InterruptedException {
+        long from = part * target.partSize;
+        long to = Math.min(target.size, from + target.partSize) - 1;
+        for (int attempt = 1;; attempt++) {
+            try {
+                Map<String, String> headers = new TreeMap<>();
+                headers.put("range", "bytes=" + from + "-" + to);
+                if (!target.etag.isEmpty()) {
+                    headers.put("if-match", target.etag);
+                }
+                HttpURLConnection connection = open("GET", signer.objectUrl(target.s3Url, null), headers);
+                try {
+                    boolean whole = from == 0 && to == target.size - 1;
+                    if (!(whole && connection.getResponseCode() == HttpURLConnection.HTTP_OK)) {
+                        check(connection, HttpURLConnection.HTTP_PARTIAL, "GET " + target.s3Url + " part " + part);
+                    }
+                    long position = from;
+                    byte[] buffer = new byte[1 << 20];
+                    try (InputStream in = connection.getInputStream()) {
+                        int read;
+                        while ((read = in.read(buffer)) > 0 && position <= to) {
+                            if (throttle != null) {
+                                throttle.acquire(read);
+                            }
+                            ByteBuffer data = ByteBuffer.wrap(buffer, 0, (int) Math.min(read, to + 1 - position));
+                            while (data.hasRemaining()) {
+                                position += target.channel.write(data, position);
+                            }
+                        }
+                    }
+                    if (position != to + 1) {
+                        throw new IOException("GET " + target.s3Url + " part " + part + " ended after " + (position - from) + " of "
+                                + (to + 1 - from) + " bytes");
+                    }
+                } finally {
+                    connection.disconnect();
+                }
+                target.record(part);
+                return;
+            } catch (IOException e) {
+                String request = "GET " + target.s3Url + " part " + part;
+                String message = e.getMessage() != null && e.getMessage().startsWith(request) ? e.getMessage() : request + ": " + e;
+                // 412: the object changed since the HEAD, the next run starts it over
+                if (attempt == ATTEMPTS || message.contains("HTTP 412")) {
+                    throw new IOException(message, e);
+                }
+                System.err.println(message + ", retrying");
+                Thread.sleep(1000L << attempt);
+            }
+        }
+    }
+
+    private HttpURLConnection open(String method, URL url, Map<String, String> headers) throws IOException {
+        signer.sign(method, url, headers, S3Signer.EMPTY_SHA256, new Date());
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        return connection;
+    }
+
+    /**
+     * @throws IOException
+     *             with the status and the start of the error document if the response is not the expected one
+     */
+    static void check(HttpURLConnection connection, int expected, String request) throws IOException {
+        int status = connection.getResponseCode();
+        if (status == expected) {
+            return;
+        }
+        String body = "";
+        InputStream error = connection.getErrorStream();
+        if (error != null) {
+            try (InputStream in = error) {
+                byte[] buffer = new byte[512];
+                int read = in.read(buffer);
+                body = read > 0 ? ": " + new String(buffer, 0, read, StandardCharsets.UTF_8).replaceAll("\\s+", " ") : "";
+            }
+        }
+        throw new IOException(request + " failed with HTTP " + status + body);
+    }
+
+    /**
+     * A file being downloaded and its journal.
+     */
+    private static class Target {
+        final String s3Url;
+        final File file;
+        final File journal;
+        final long size;
+        final String etag;
+        final long partSize;
+        final int parts;
+        final Set<Integer> completed = new HashSet<>();
+        final long start = System.nanoTime();
+        FileChannel channel;
+        Writer journalWriter;
+
+        Target(String s3Url, File file, long size, String etag, long partSize) {
+            this.s3Url = s3Url;
+            this.file = file;
+            this.journal = new File(file.getPath() + JOURNAL);
+            this.size = size;
+            this.etag = etag;
+            this.partSize = partSize;
+            this.parts = (int) ((size + partSize - 1) / partSize);
+        }
+
+        /**
+         * Takes up the journal if it is for this version of the object and part size, else starts the file over.
+         */
+        void open() throws IOException {
+            String header = "object " + size + " " + partSize + " " + etag;
+            if (journal.isFile() && file.length() == size) {
+                List<String> lines = Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8);
+                if (!lines.isEmpty() && lines.get(0).equals(header)) {
+                    for (String line : lines.subList(1, lines.size())) {
+                        if (line.startsWith("part ")) {
+                            completed.add(Integer.valueOf(line.substring(5)));
+                        }
+                    }
+                }
+            } else if (!journal.isFile() && file.isFile() && file.length() == size) {
+                // the journal goes last, so a file of the right size without one is complete
+                completed.addAll(partNumbers());
+            }
+            if (file.isFile() && completed.size() == parts && !journal.isFile()) {
+                System.out.println(file + ": present");
+                return;
+            }
+            if (completed.isEmpty()) {
+                File directory = file.getAbsoluteFile().getParentFile();
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("cannot create " + directory);
+                }
+                Files.write(journal.toPath(), (header + "\n").getBytes(StandardCharsets.UTF_8));
+                try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                    out.setLength(size);
+                }
+            } else {
+                System.out.println(file + ": resuming with " + completed.size() + " of " + parts + " parts");
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            journalWriter = new OutputStreamWriter(new FileOutputStream(journal, true), StandardCharsets.UTF_8);
+        }
+
+        private List<Integer> partNumbers() {
+            List<Integer> numbers = new ArrayList<>();
+            for (int part = 0; part < parts; part++) {
+                numbers.add(part);
+            }
+            return numbers;
+        }
+
+        /**
+         * A part is recorded once its bytes are on disk.
+         */
+        synchronized void record(int part) throws IOException {
+            channel.force(false);
+            journalWriter.write("part " + part + "\n");
+            journalWriter.flush();
+            completed.add(part);
+        }
+
+        void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                journalWriter.close();
+            }
+        }
+
+        void finish() throws IOException {
+            if (channel == null) {
+                return;
+            }
+            if (file.length() != size) {
+                throw new IOException(file + " has " + file.length() + " bytes instead of " + size);
+            }
+            Files.delete(journal.toPath());
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format(Locale.ROOT, "%s: %d bytes in %d parts, %.1f s, %.1f MB/s", file, size, parts, seconds,
+                    seconds > 0 ? size / seconds / 1e6 : 0));
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package io.seqware.pancancer;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs S3 requests with AWS Signature Version 4, so the transfer tools reach S3 or an S3 compatible store without the AWS CLI and
+ * its shared credentials file. The credentials come from the environment of the job: AWS_ACCESS_KEY_ID, AWS_SECRET_ACCESS_KEY and
+ * optionally AWS_SESSION_TOKEN. With no endpoint the objects are addressed on AWS as bucket.s3.region.amazonaws.com, with an
+ * endpoint such as http://localhost:9000 they are addressed by path below it.
+ */
+public class S3Signer {
+
+    /** the SHA-256 of an empty payload, as sent with a GET or HEAD */
+    public static final String EMPTY_SHA256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+    private final String accessKey;
+    private final String secretKey;
+    private final String sessionToken;
+    private final String region;
+    private final String endpoint;
+
+    /**
+     *
+     * @param accessKey
+     * @param secretKey
+     * @param sessionToken
+     *            null without temporary credentials
+     * @param region
+     * @param endpoint
+     *            null or empty for AWS
+     */
+    public S3Signer(String accessKey, String secretKey, String sessionToken, String region, String endpoint) {
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.sessionToken = sessionToken == null || sessionToken.isEmpty() ? null : sessionToken;
+        this.region = region;
+        this.endpoint = endpoint == null || endpoint.isEmpty() ? null : endpoint.replaceAll("/+$", "");
+    }
+
+    /**
+     *
+     * @param region
+     *            null to take AWS_DEFAULT_REGION, us-east-1 if that is not set either
+     * @param endpoint
+     * @return a signer with the credentials of the environment
+     */
+    public static S3Signer fromEnvironment(String region, String endpoint) {
+        String accessKey = System.getenv("AWS_ACCESS_KEY_ID");
+        String secretKey = System.getenv("AWS_SECRET_ACCESS_KEY");
+        if (accessKey == null || secretKey == null) {
+            throw new RuntimeException("AWS_ACCESS_KEY_ID and AWS_SECRET_ACCESS_KEY must be set");
+        }
+        if (region == null || region.isEmpty()) {
+            region = System.getenv("AWS_DEFAULT_REGION") == null ? "us-east-1" : System.getenv("AWS_DEFAULT_REGION");
+        }
+        return new S3Signer(accessKey, secretKey, System.getenv("AWS_SESSION_TOKEN"), region, endpoint);
+    }
+
+    /**
+     *
+     * @param s3Url
+     *            s3://bucket/key
+     * @param query
+     *            the encoded query string, null for none
+     * @return the HTTP URL of the object
+     */
+    public URL objectUrl(String s3Url, String query) {
+        if (!s3Url.startsWith("s3://") || s3Url.indexOf('/', 5) < 0) {
+            throw new RuntimeException("not an s3://bucket/key URL: " + s3Url);
+        }
+        String bucket = s3Url.substring(5, s3Url.indexOf('/', 5));
+        String key = uriEncode(s3Url.substring(s3Url.indexOf('/', 5) + 1), false);
+        String url = endpoint == null ? "https://" + bucket + ".s3." + region + ".amazonaws.com/" + key : endpoint + "/" + bucket + "/"
+                + key;
+        try {
+            return new URL(query == null ? url : url + "?" + query);
+        } catch (MalformedURLException e) {
+            throw new RuntimeException("cannot address " + s3Url + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Adds x-amz-date, x-amz-content-sha256, the session token and the Authorization header to the headers of a request. Every header
+     * already in the map is signed, so it has to be sent as given.
+     *
+     * @param method
+     * @param url
+     * @param headers
+     *            lower case names to values, the Host header is derived from the URL
+     * @param payloadSha256
+     *            the hex SHA-256 of the body, or UNSIGNED-PAYLOAD
+     * @param now
+     */
+    public void sign(String method, URL url, Map<String, String> headers, String payloadSha256, Date now) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String amzDate = format.format(now);
+        String date = amzDate.substring(0, 8);
+
+        headers.put("x-amz-date", amzDate);
+        headers.put("x-amz-content-sha256", payloadSha256);
+        if (sessionToken != null) {
+            headers.put("x-amz-security-token", sessionToken);
+        }
+        TreeMap<String, String> signed = new TreeMap<>(headers);
+        int port = url.getPort();
+        signed.put("host", url.getHost() + (port == -1 || port == url.getDefaultPort() ? "" : ":" + port));
+
+        StringBuilder canonicalHeaders = new StringBuilder();
+        StringBuilder signedHeaders = new StringBuilder();
+        for (Map.Entry<String, String> header : signed.entrySet()) {
+            canonicalHeaders.append(header.getKey()).append(':').append(header.getValue().trim()).append('\n');
+            signedHeaders.append(signedHeaders.length() > 0 ? ";" : "").append(header.getKey());
+        }
+        // URL keeps the path and query as they were encoded
+        String path = url.getPath().isEmpty() ? "/" : url.getPath();
+        String canonicalRequest = method + "\n" + path + "\n" + canonicalQuery(url.getQuery()) + "\n" + canonicalHeaders + "\n"
+                + signedHeaders + "\n" + payloadSha256;
+
+        String scope = date + "/" + region + "/s3/aws4_request";
+        String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n"
+                + sha256Hex(canonicalRequest.getBytes(StandardCharsets.UTF_8));
+        byte[] key = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        key = hmac(key, region);
+        key = hmac(key, "s3");
+        key = hmac(key, "aws4_request");
+        headers.put("authorization", "AWS4-HMAC-SHA256 Credential=" + accessKey + "/" + scope + ", SignedHeaders=" + signedHeaders
+                + ", Signature=" + Checksums.hex(hmac(key, stringToSign)));
+    }
+
+    /**
+     * Sorts the parameters by name, a parameter without a value gets an empty one.
+     */
+    private static String canonicalQuery(String query) {
+        if (query == null || query.isEmpty()) {
+            return "";
+        }
+        List<String> parameters = new ArrayList<>();
+        for (String parameter : query.split("&")) {
+            parameters.add(parameter.contains("=") ? parameter : parameter + "=");
+        }
+        Collections.sort(parameters);
+        StringBuilder canonical = new StringBuilder();
+        for (String parameter : parameters) {
+            canonical.append(canonical.length() > 0 ? "&" : "").append(parameter);
+        }
+        return canonical.toString();
+    }
+
+    /**
+     *
+     * @param value
+     * @param encodeSlash
+     *            false for object keys, whose slashes stay path separators
+     * @return the value percent encoded as Signature Version 4 expects
+     */
+    public static String uriEncode(String value, boolean encodeSlash) {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '-' || c == '~'
+                    || c == '.' || (c == '/' && !encodeSlash)) {
+                encoded.append(c);
+            } else {
+                encoded.append(String.format(Locale.ROOT, "%%%02X", b & 0xff));
+            }
+        }
+        return encoded.toString();
+    }
+
+    /**
+     *
+     * @param data
+     * @return the hex SHA-256 of the data
+     */
+    public static String sha256Hex(byte[] data) {
+        try {
+            return Checksums.hex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("SHA-256 is not available", e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("HmacSHA256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package io.seqware.pancancer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Uploads a directory to S3 as a gzipped tar archive without writing the archive anywhere. The tar stream is compressed as it is
+ * produced, on -t threads, and cut into the parts of a multipart upload, which are sent by parallel streams while the next parts are filled. At most
+ * streams + 1 parts are held in memory, the archive waits for a stream when they are all taken. A failed upload is aborted so its
+ * parts are not kept.
+ *
+ * <pre>
+ * S3Upload [-part-mb n] [-streams n] [-t threads] [-region r] [-endpoint url] [-map from=to]... &lt;directory&gt; &lt;s3 url&gt;
+ * </pre>
+ *
+ * The archive is written by {@link TarArchive}, -map resolves links into a container as it does. An S3 URL ending with a slash gets
+ * the name of the directory with .tar.gz appended. The credentials are taken from the environment, see {@link S3Signer}. A transfer
+ * admitted by the {@link TransferScheduler} keeps to its share of the bandwidth.
+ */
+public class S3Upload {
+
+    private static final String USAGE = "Usage: S3Upload [-part-mb n] [-streams n] [-t threads] [-region r] [-endpoint url] [-map from=to]... "
+            + "<directory> <s3 url>";
+    private static final int ATTEMPTS = 4;
+    private static final int TIMEOUT_MS = 120000;
+    // the S3 limits of a multipart upload
+    private static final long MIN_PART = 5L << 20;
+    private static final int MAX_PARTS = 10000;
+    private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>([^<]+)</UploadId>");
+
+    private final S3Signer signer;
+    private final Map<String, String> maps;
+    private final TransferThrottle throttle = TransferThrottle.fromEnvironment();
+
+    /**
+     *
+     * @param signer
+     * @param maps
+     *            prefixes of link targets to the host paths replacing them
+     */
+    public S3Upload(S3Signer signer, Map<String, String> maps) {
+        this.signer = signer;
+        this.maps = maps;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long partSize = 64L << 20;
+        int streams = 4;
+        int threads = 1;
+        String region = null;
+        String endpoint = null;
+        Map<String, String> maps = new LinkedHashMap<>();
+        List<String> operands = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-part-mb".equals(args[i]) && i + 1 < args.length) {
+                partSize = Long.parseLong(args[++i]) << 20;
+            } else if ("-streams".equals(args[i]) && i + 1 < args.length) {
+                streams = Integer.parseInt(args[++i]);
+            } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("-region".equals(args[i]) && i + 1 < args.length) {
+                region = args[++i];
+            } else if ("-endpoint".equals(args[i]) && i + 1 < args.length) {
+                endpoint = args[++i];
+            } else if ("-map".equals(args[i]) && i + 1 < args.length && args[i + 1].contains("=")) {
+                String map = args[++i];
+                maps.put(map.substring(0, map.indexOf('=')), map.substring(map.indexOf('=') + 1));
+            } else {
+                operands.add(args[i]);
+            }
+        }
+        if (operands.size() != 2 || partSize < MIN_PART || partSize > Integer.MAX_VALUE - 8 || streams < 1 || threads < 1) {
+            System.err.println(USAGE + "\n       parts are 5 to 2047 MB");
+            System.exit(1);
+        }
+
+        File directory = new File(operands.get(0));
+        String s3Url = operands.get(1);
+        if (s3Url.endsWith("/")) {
+            s3Url += directory.getAbsoluteFile().getName() + ".tar.gz";
+        }
+        try {
+            new S3Upload(S3Signer.fromEnvironment(region, endpoint), maps).upload(directory, s3Url, (int) partSize, streams, threads);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     *
+     * @param directory
+     * @param s3Url
+     *            where the archive goes
+     * @param partSize
+     * @param streams
+     *            parts sent at the same time
+     * @param threads
+     *            compressing the archive
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void upload(File directory, String s3Url, int partSize, int streams, int threads) throws IOException, InterruptedException {
+        if (!directory.isDirectory()) {
+            throw new IOException(directory + " is not a directory");
+        }
+        long start = System.nanoTime();
+        String uploadId = initiate(s3Url);
+        ExecutorService pool = Executors.newFixedThreadPool(streams);
+        PartStream parts = new PartStream(s3Url, uploadId, partSize, streams, pool);
+        long archived;
+        try {
+            try (ParallelBgzf compressed = new ParallelBgzf(parts, threads)) {
+                archived = new TarArchive(maps).write(directory, compressed);
+            }
+            complete(s3Url, uploadId, parts.etags());
+        } catch (IOException | RuntimeException e) {
+            pool.shutdownNow();
+            abort(s3Url, uploadId);
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.ROOT, "%s: %d bytes archived, %d uploaded in %d parts, %.1f s, %.1f MB/s", s3Url,
+                archived, parts.uploaded, parts.etags.size(), seconds, seconds > 0 ? parts.uploaded / seconds / 1e6 : 0));
+    }
+
+    private String initiate(String s3Url) throws IOException {
+        String response = request("POST", signer.objectUrl(s3Url, "uploads"), new byte[0], "initiate " + s3Url);
+        Matcher id = UPLOAD_ID.matcher(response);
+        if (!id.find()) {
+            throw new IOException("initiate " + s3Url + ": no upload ID in " + response);
+        }
+        return id.group(1);
+    }
+
+    private void complete(String s3Url, String uploadId, List<String> etags) throws IOException {
+        StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+        for (int i = 0; i < etags.size(); i++) {
+            xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>").append(etags.get(i)).append("</ETag></Part>");
+        }
+        xml.append("</CompleteMultipartUpload>");
+        String response = request("POST", signer.objectUrl(s3Url, "uploadId=" + S3Signer.uriEncode(uploadId, true)), xml.toString()
+                .getBytes(StandardCharsets.UTF_8), "complete " + s3Url);
+        // S3 reports some failures of the completion in a 200 response
+        if (response.contains("<Error>")) {
+            throw new IOException("complete " + s3Url + " failed: " + response);
+        }
+    }
+
+    private void abort(String s3Url, String uploadId) {
+        try {
+            HttpURLConnection connection = open("DELETE", signer.objectUrl(s3Url, "uploadId=" + S3Signer.uriEncode(uploadId, true)),
+                    new byte[0]);
+            connection.getResponseCode();
+            connection.disconnect();
+        } catch (IOException e) {
+            System.err.println("could not abort the upload " + uploadId + " of " + s3Url + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the response document
+     */
+    private String request(String method, URL url, byte[] body, String description) throws IOException {
+        HttpURLConnection connection = open(method, url, body);
+        try {
+            S3Download.check(connection, HttpURLConnection.HTTP_OK, description);
+            try (InputStream in = connection.getInputStream()) {
+                StringBuilder response = new StringBuilder();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    response.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+                }
+                return response.toString();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(String method, URL url, byte[] body) throws IOException {
+        return open(method, url, body, body.length);
+    }
+
+    /**
+     * Signs the body and sends it, the response is left to the caller.
+     */
+    private HttpURLConnection open(String method, URL url, byte[] body, int length) throws IOException {
+        Map<String, String> headers = new TreeMap<>();
+        byte[] payload = length == body.length ? body : Arrays.copyOf(body, length);
+        signer.sign(method, url, headers, S3Signer.sha256Hex(payload), new Date());
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        if (!"DELETE".equals(method)) {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body, 0, length);
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Cuts what is written into parts and sends each part from the pool, retrying with a growing pause. Buffers come from a fixed
+     * number of permits, so writing blocks while every buffer is taken.
+     */
+    private class PartStream extends OutputStream {
+        private final String s3Url;
+        private final String uploadId;
+        private final int partSize;
+        private final Semaphore buffers;
+        private final ExecutorService pool;
+        private final List<Future<String>> pending = new ArrayList<>();
+        private final List<String> etags = new ArrayList<>();
+        // the parts before this one were sent
+        private int confirmed;
+        private byte[] buffer;
+        private int filled;
+        private long uploaded;
+
+        PartStream(String s3Url, String uploadId, int partSize, int streams, ExecutorService pool) {
+            this.s3Url = s3Url;
+            this.uploadId = uploadId;
+            this.partSize = partSize;
+            this.buffers = new Semaphore(streams + 1);
+            this.pool = pool;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (buffer == null) {
+                    takeBuffer();
+                }
+                int copied = Math.min(length, partSize - filled);
+                System.arraycopy(data, offset, buffer, filled, copied);
+                filled += copied;
+                offset += copied;
+                length -= copied;
+                if (filled == partSize) {
+                    send();
+                }
+            }
+        }
+
+        private void takeBuffer() throws IOException {
+            try {
+                buffers.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for a part buffer", e);
+            }
+            // a part that already failed fails the archive early
+            while (confirmed < pending.size() && pending.get(confirmed).isDone()) {
+                result(pending.get(confirmed++));
+            }
+            buffer = new byte[partSize];
+            filled = 0;
+        }
+
+        private void send() throws IOException {
+            if (pending.size() == MAX_PARTS) {
+                throw new IOException("more than " + MAX_PARTS + " parts, use larger ones");
+            }
+            final byte[] part = buffer;
+            final int length = filled;
+            final int number = pending.size() + 1;
+            buffer = null;
+            uploaded += length;
+            pending.add(pool.submit(new Callable<String>() {
+                @Override
+                public String call() throws IOException, InterruptedException {
+                    try {
+                        return put(part, length, number);
+                    } finally {
+                        buffers.release();
+                    }
+                }
+            }));
+        }
+
+        private String put(byte[] part, int length, int number) throws IOException, InterruptedException {
+            URL url = signer.objectUrl(s3Url, "partNumber=" + number + "&uploadId=" + S3Signer.uriEncode(uploadId, true));
+            for (int attempt = 1;; attempt++) {
+                if (throttle != null) {
+                    // paced by the part, a part goes out at full speed after the pause its bytes cost
+                    throttle.acquire(length);
+                }
+                try {
+                    HttpURLConnection connection = open("PUT", url, part, length);
+                    try {
+                        S3Download.check(connection, HttpURLConnection.HTTP_OK, "PUT " + s3Url + " part " + number);
+                        return connection.getHeaderField("ETag");
+                    } finally {
+                        connection.disconnect();
+                    }
+                } catch (IOException e) {
+                    if (attempt == ATTEMPTS) {
+                        throw e;
+                    }
+                    System.err.println(e.getMessage() + ", retrying");
+                    Thread.sleep(1000L << attempt);
+                }
+            }
+        }
+
+        private String result(Future<String> part) throws IOException {
+            try {
+                return part.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while uploading", e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause().getMessage(), e.getCause());
+            }
+        }
+
+        /**
+         * Sends the last part, which may be short, even empty for an empty archive.
+         */
+        @Override
+        public void close() throws IOException {
+            if (buffer != null || pending.isEmpty()) {
+                if (buffer == null) {
+                    takeBuffer();
+                }
+                send();
+            }
+            for (Future<String> part : pending) {
+                etags.add(result(part));
+            }
+        }
+
+        List<String> etags() {
+            return etags;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package io.seqware.pancancer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Builds a tabix (.tbi) index for a coordinate sorted VCF from records fed in file order, the same binning and linear index that
+ * htslib writes so tabix, bcftools and the upload tool read it unchanged.
+ */
+public class TabixIndex {
+
+    private static final int MIN_SHIFT = 14;
+    private static final int META_BIN = 37450;
+    private static final int FORMAT_VCF = 2;
+
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Reference> references = new HashMap<>();
+    private Reference current = null;
+
+    /**
+     * One indexed sequence.
+     */
+    private static class Reference {
+        private final Map<Integer, List<long[]>> bins = new TreeMap<>();
+        private long[] linear = new long[0];
+        private int lastBeg = -1;
+        private long firstOffset = -1;
+        private long lastOffset = 0;
+        private long records = 0;
+    }
+
+    /**
+     * Adds a record, records must arrive grouped by sequence and sorted by start.
+     *
+     * @param chrom
+     * @param beg
+     *            zero-based start
+     * @param end
+     *            zero-based exclusive end
+     * @param startOffset
+     *            virtual offset of the first byte of the line
+     * @param endOffset
+     *            virtual offset just past the newline
+     */
+    public void add(String chrom, int beg, int end, long startOffset, long endOffset) {
+        if (current == null || !chrom.equals(names.get(names.size() - 1))) {
+            if (references.containsKey(chrom)) {
+                throw new IllegalStateException("records for " + chrom + " are not contiguous, the input is not sorted");
+            }
+            current = new Reference();
+            references.put(chrom, current);
+            names.add(chrom);
+        }
+        if (beg < current.lastBeg) {
+            throw new IllegalStateException("record at " + chrom + ":" + (beg + 1) + " follows " + chrom + ":" + (current.lastBeg + 1)
+                    + ", the input is not sorted");
+        }
+        current.lastBeg = beg;
+        if (end <= beg) {
+            end = beg + 1;
+        }
+
+        // binning index, neighbouring records in the same bin extend one chunk
+        int bin = reg2bin(beg, end);
+        List<long[]> chunks = current.bins.get(bin);
+        if (chunks == null) {
+            chunks = new ArrayList<>();
+            current.bins.put(bin, chunks);
+        }
+        long[] last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (last != null && (last[1] == startOffset || last[1] >>> 16 == startOffset >>> 16)) {
+            last[1] = endOffset;
+        } else {
+            chunks.add(new long[] { startOffset, endOffset });
+        }
+
+        // linear index, the first record overlapping each 16kb window
+        int firstWindow = beg >> MIN_SHIFT;
+        int lastWindow = (end - 1) >> MIN_SHIFT;
+        if (lastWindow >= current.linear.length) {
+            int size = current.linear.length;
+            current.linear = Arrays.copyOf(current.linear, Math.max(lastWindow + 1, size * 2));
+            Arrays.fill(current.linear, size, current.linear.length, -1);
+        }
+        for (int window = firstWindow; window <= lastWindow; window++) {
+            if (current.linear[window] == -1) {
+                current.linear[window] = startOffset;
+            }
+        }
+
+        if (current.firstOffset == -1) {
+            current.firstOffset = startOffset;
+        }
+        current.lastOffset = endOffset;
+        current.records++;
+    }
+
+    /**
+     * Writes the index, the stream is left open.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void write(OutputStream out) throws IOException {
+        BgzfWriter bgzf = new BgzfWriter(out);
+        bgzf.write(new byte[] { 'T', 'B', 'I', 1 });
+        writeInt(bgzf, names.size());
+        // format, sequence column, start column, end column, comment character, lines to skip
+        writeInt(bgzf, FORMAT_VCF);
+        writeInt(bgzf, 1);
+        writeInt(bgzf, 2);
+        writeInt(bgzf, 0);
+        writeInt(bgzf, '#');
+        writeInt(bgzf, 0);
+        int namesLength = 0;
+        for (String name : names) {
+            namesLength += name.getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+        writeInt(bgzf, namesLength);
+        for (String name : names) {
+            bgzf.write(name.getBytes(StandardCharsets.UTF_8));
+            bgzf.write(0);
+        }
+
+        for (String name : names) {
+            Reference reference = references.get(name);
+            writeInt(bgzf, reference.bins.size() + 1);
+            for (Entry<Integer, List<long[]>> bin : reference.bins.entrySet()) {
+                writeInt(bgzf, bin.getKey());
+                writeInt(bgzf, bin.getValue().size());
+                for (long[] chunk : bin.getValue()) {
+                    writeLong(bgzf, chunk[0]);
+                    writeLong(bgzf, chunk[1]);
+                }
+            }
+            // pseudo-bin with the span and record count of the sequence
+            writeInt(bgzf, META_BIN);
+            writeInt(bgzf, 2);
+            writeLong(bgzf, reference.firstOffset);
+            writeLong(bgzf, reference.lastOffset);
+            writeLong(bgzf, reference.records);
+            writeLong(bgzf, 0);
+
+            // windows before the first record point at it, later gaps repeat the previous window
+            int windows = 0;
+            for (int i = 0; i < reference.linear.length; i++) {
+                if (reference.linear[i] != -1) {
+                    windows = i + 1;
+                }
+            }
+            writeInt(bgzf, windows);
+            long previous = reference.firstOffset;
+            for (int i = 0; i < windows; i++) {
+                if (reference.linear[i] != -1) {
+                    previous = reference.linear[i];
+                }
+                writeLong(bgzf, previous);
+            }
+        }
+        writeLong(bgzf, 0);
+        bgzf.finish();
+    }
+
+    /**
+     * The smallest bin of the UCSC binning scheme that contains the region, as in the SAM specification.
+     *
+     * @param beg
+     * @param end
+     * @return the bin number
+     */
+    static int reg2bin(int beg, int end) {
+        --end;
+        if (beg >> 14 == end >> 14) {
+            return ((1 << 15) - 1) / 7 + (beg >> 14);
+        }
+        if (beg >> 17 == end >> 17) {
+            return ((1 << 12) - 1) / 7 + (beg >> 17);
+        }
+        if (beg >> 20 == end >> 20) {
+            return ((1 << 9) - 1) / 7 + (beg >> 20);
+        }
+        if (beg >> 23 == end >> 23) {
+            return ((1 << 6) - 1) / 7 + (beg >> 23);
+        }
+        if (beg >> 26 == end >> 26) {
+            return ((1 << 3) - 1) / 7 + (beg >> 26);
+        }
+        return 0;
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >> 8);
+        out.write(value >> 16);
+        out.write(value >> 24);
+    }
+
+    private static void writeLong(OutputStream out, long value) throws IOException {
+        writeInt(out, (int) value);
+        writeInt(out, (int) (value >>> 32));
+    }
+}
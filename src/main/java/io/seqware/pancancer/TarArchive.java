@@ -0,0 +1,265 @@
+package io.seqware.pancancer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes a directory as a tar archive, the entries named below the name of the directory in name order. Symbolic links are followed,
+ * and the maps resolve links that point into a container, such as those the upload tool leaves in its output directory, to the same
+ * files on the host. Paths longer than the 100 bytes of a ustar header are carried in pax headers.
+ *
+ * <pre>
+ * TarArchive [-t threads] [-map from=to]... [-name entry] &lt;directory&gt; &lt;archive&gt;
+ * </pre>
+ *
+ * -name replaces the name of the directory in the entries, -name . gives the entries tar -C directory . would write.
+ * The command line compresses the archive with {@link ParallelBgzf} on the threads given, all cores by default, and writes it next to
+ * its target before renaming it. An archive path ending with a slash gets the name of the directory with .tar.gz appended.
+ */
+public class TarArchive {
+
+    private static final String USAGE = "Usage: TarArchive [-t threads] [-map from=to]... [-name entry] <directory> <archive>";
+
+    private final Map<String, String> maps;
+
+    /**
+     *
+     * @param maps
+     *            prefixes of link targets to the host paths replacing them
+     */
+    public TarArchive(Map<String, String> maps) {
+        this.maps = maps;
+    }
+
+    public static void main(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        Map<String, String> maps = new LinkedHashMap<>();
+        String name = null;
+        List<String> operands = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-t".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("-map".equals(args[i]) && i + 1 < args.length && args[i + 1].contains("=")) {
+                String map = args[++i];
+                maps.put(map.substring(0, map.indexOf('=')), map.substring(map.indexOf('=') + 1));
+            } else if ("-name".equals(args[i]) && i + 1 < args.length) {
+                name = args[++i];
+            } else {
+                operands.add(args[i]);
+            }
+        }
+        if (operands.size() != 2 || threads < 1) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        File directory = new File(operands.get(0));
+        File archive = new File(operands.get(1).endsWith("/") ? operands.get(1) + directory.getAbsoluteFile().getName() + ".tar.gz"
+                : operands.get(1));
+        File partial = new File(archive.getPath() + ".partial");
+        long start = System.nanoTime();
+        try {
+            long archived;
+            try (ParallelBgzf out = new ParallelBgzf(new BufferedOutputStream(new FileOutputStream(partial), 1 << 16), threads)) {
+                archived = new TarArchive(maps).write(directory, name == null ? directory.getAbsoluteFile().getName() : name, out);
+            }
+            if (!partial.renameTo(archive)) {
+                throw new IOException("cannot rename " + partial + " to " + archive);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format(Locale.ROOT, "%s: %d bytes archived, %d compressed on %d threads, %.1f s, %.1f MB/s",
+                    archive, archived, archive.length(), threads, seconds, seconds > 0 ? archived / seconds / 1e6 : 0));
+        } catch (IOException e) {
+            partial.delete();
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     *
+     * @param directory
+     * @param out
+     *            receives the archive, left open
+     * @return the size of the archive
+     * @throws IOException
+     *             if a file is missing or changes while it is archived
+     */
+    public long write(File directory, OutputStream out) throws IOException {
+        return write(directory, directory.getAbsoluteFile().getName(), out);
+    }
+
+    /**
+     *
+     * @param directory
+     * @param name
+     *            the name of the directory in the entries
+     * @param out
+     *            receives the archive, left open
+     * @return the size of the archive
+     * @throws IOException
+     *             if a file is missing or changes while it is archived
+     */
+    public long write(File directory, String name, OutputStream out) throws IOException {
+        if (!directory.isDirectory()) {
+            throw new IOException(directory + " is not a directory");
+        }
+        CountingStream tar = new CountingStream(out);
+        archive(directory.getAbsoluteFile(), name, tar);
+        // two empty blocks end the archive
+        tar.write(new byte[1024]);
+        return tar.count;
+    }
+
+    /**
+     * Writes the entries of a directory in name order, the directory first.
+     */
+    private void archive(File file, String name, OutputStream tar) throws IOException {
+        File resolved = resolve(file);
+        if (resolved.isDirectory()) {
+            header(tar, name + "/", '5', 0, 0755, resolved.lastModified());
+            String[] children = resolved.list();
+            Arrays.sort(children);
+            for (String child : children) {
+                archive(new File(resolved, child), name + "/" + child, tar);
+            }
+        } else if (resolved.isFile()) {
+            long size = resolved.length();
+            header(tar, name, '0', size, 0644, resolved.lastModified());
+            long written = 0;
+            try (InputStream in = new BufferedInputStream(new FileInputStream(resolved), 1 << 16)) {
+                byte[] buffer = new byte[1 << 16];
+                int read;
+                while (written < size && (read = in.read(buffer, 0, (int) Math.min(buffer.length, size - written))) > 0) {
+                    tar.write(buffer, 0, read);
+                    written += read;
+                }
+            }
+            if (written != size) {
+                throw new IOException(resolved + " shrank while being archived");
+            }
+            tar.write(new byte[(int) ((512 - size % 512) % 512)]);
+        } else {
+            throw new IOException(file + " does not exist" + (resolved.equals(file) ? "" : " as " + resolved));
+        }
+    }
+
+    /**
+     * Follows a link whose target does not exist on the host through the maps.
+     */
+    private File resolve(File file) throws IOException {
+        if (file.exists() || !Files.isSymbolicLink(file.toPath())) {
+            return file;
+        }
+        String target = Files.readSymbolicLink(file.toPath()).toString();
+        for (Map.Entry<String, String> map : maps.entrySet()) {
+            if (target.startsWith(map.getKey())) {
+                return new File(map.getValue() + target.substring(map.getKey().length()));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Writes a ustar header, preceded by a pax header with the path or size if they do not fit.
+     */
+    private static void header(OutputStream tar, String name, char type, long size, int mode, long modified) throws IOException {
+        byte[] path = name.getBytes(StandardCharsets.UTF_8);
+        if (path.length > 100 || size > 077777777777L) {
+            StringBuilder records = new StringBuilder();
+            if (path.length > 100) {
+                records.append(paxRecord("path", name));
+            }
+            if (size > 077777777777L) {
+                records.append(paxRecord("size", String.valueOf(size)));
+            }
+            byte[] pax = records.toString().getBytes(StandardCharsets.UTF_8);
+            tar.write(block("././@PaxHeader", 'x', pax.length, 0644, modified));
+            tar.write(pax);
+            tar.write(new byte[(512 - pax.length % 512) % 512]);
+        }
+        tar.write(block(name, type, size, mode, modified));
+    }
+
+    /**
+     * A record is preceded by its own length in decimal, which counts its digits.
+     */
+    private static String paxRecord(String keyword, String value) {
+        int length = keyword.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int total = length + String.valueOf(length).length();
+        if (String.valueOf(total).length() > String.valueOf(length).length()) {
+            total++;
+        }
+        return total + " " + keyword + "=" + value + "\n";
+    }
+
+    private static byte[] block(String name, char type, long size, int mode, long modified) {
+        byte[] header = new byte[512];
+        byte[] path = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(path, 0, header, 0, Math.min(100, path.length));
+        octal(header, 100, 8, mode);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, size > 077777777777L ? 0 : size);
+        octal(header, 136, 12, modified / 1000);
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        header[156] = (byte) type;
+        System.arraycopy("ustar\00000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        octal(header, 148, 7, checksum);
+        return header;
+    }
+
+    /**
+     * Zero padded octal digits ending with a NUL.
+     */
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        while (digits.length() < length - 1) {
+            digits = "0" + digits;
+        }
+        System.arraycopy(digits.getBytes(StandardCharsets.US_ASCII), 0, header, offset, length - 1);
+        header[offset + length - 1] = 0;
+    }
+
+    /**
+     * Counts the bytes of the archive.
+     */
+    private static class CountingStream extends FilterOutputStream {
+        long count;
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            out.write(data, offset, length);
+            count += length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+    }
+}
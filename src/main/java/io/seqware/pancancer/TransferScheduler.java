@@ -0,0 +1,281 @@
+package io.seqware.pancancer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Admits the transfers of the workflows on a node in priority order and shares a bandwidth budget between them. The transfers are
+ * kept in a ledger locked while it is read and rewritten. A transfer waits while every slot is taken, or while a transfer of a higher
+ * class, or of its own class and registered before it, is waiting too. The classes are, highest first, control, reference,
+ * download and upload. An admitted transfer gets a share of the budget weighted by its class, 8, 4, 2 and 1, which the bundled
+ * transfer tools follow through {@link TransferThrottle} and which is printed at admission for the others, 0 without a budget.
+ *
+ * <pre>
+ * TransferScheduler [-slots n] [-budget bytes per second] &lt;ledger&gt; &lt;class&gt; &lt;id&gt; &lt;pid&gt; [path]...
+ * TransferScheduler -release &lt;ledger&gt; &lt;id&gt; [path]...
+ * </pre>
+ *
+ * The pid is the process of the job, a transfer whose process is gone or that is older than a day no longer counts. The paths are
+ * where a transfer writes, or what an upload sends. The release prints the bytes the transfer moved and the seconds since its
+ * admission: the bytes added below the paths, or their size for an upload.
+ */
+public class TransferScheduler {
+
+    private static final String USAGE = "Usage: TransferScheduler [-slots n] [-budget bytes per second] <ledger> <class> <id> <pid> "
+            + "[path]...\n       TransferScheduler -release <ledger> <id> [path]...";
+    /** the classes, highest priority first */
+    public static final List<String> CLASSES = Arrays.asList("control", "reference", "download", "upload");
+    private static final int[] WEIGHTS = { 8, 4, 2, 1 };
+    private static final long POLL_MILLIS = 5000;
+    private static final long MAX_AGE_MILLIS = 24L * 3600 * 1000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int slots = 2;
+        long budget = 0;
+        boolean release = false;
+        List<String> operands = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-slots".equals(args[i]) && i + 1 < args.length) {
+                    slots = Integer.parseInt(args[++i]);
+                } else if ("-budget".equals(args[i]) && i + 1 < args.length) {
+                    budget = Long.parseLong(args[++i]);
+                } else if ("-release".equals(args[i])) {
+                    release = true;
+                } else {
+                    operands.add(args[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            operands.clear();
+        }
+        if (release ? operands.size() < 2 : operands.size() < 4 || !CLASSES.contains(operands.get(1)) || slots < 1 || budget < 0) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        File ledger = new File(operands.get(0));
+        if (release) {
+            Transfer transfer = release(ledger, operands.get(1));
+            long bytes = DiskAdmission.usage(operands.subList(2, operands.size()));
+            long seconds = transfer == null || transfer.admitted == 0 ? 0 : (System.currentTimeMillis() - transfer.admitted) / 1000;
+            // what a download or reference fetch brought, what an upload sent
+            System.out.println((transfer == null || "upload".equals(transfer.transferClass) ? bytes : Math.max(0, bytes
+                    - transfer.initialBytes)) + " " + seconds);
+            return;
+        }
+
+        Transfer transfer = new Transfer(operands.get(2), operands.get(1), Long.parseLong(operands.get(3)), System.currentTimeMillis(), 0,
+                DiskAdmission.usage(operands.subList(4, operands.size())));
+        String reported = null;
+        while (true) {
+            String refusal = admit(ledger, transfer, slots);
+            if (refusal == null) {
+                System.out.println(share(ledger, transfer.id, budget));
+                return;
+            }
+            if (!refusal.equals(reported)) {
+                System.err.println(transfer.id + " waiting: " + refusal);
+                reported = refusal;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+
+    /**
+     * Registers the transfer if it is not yet and admits it if a slot is free and no transfer waiting before it.
+     *
+     * @param ledger
+     * @param transfer
+     * @param slots
+     *            transfers running at once on the node
+     * @return why the transfer waits, null once admitted
+     * @throws IOException
+     */
+    public static String admit(File ledger, Transfer transfer, int slots) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(ledger, "rw"); FileChannel channel = file.getChannel()) {
+            FileLock lock = channel.lock();
+            try {
+                List<Transfer> transfers = live(read(channel));
+                Transfer own = null;
+                for (Transfer other : transfers) {
+                    own = other.id.equals(transfer.id) ? other : own;
+                }
+                if (own == null) {
+                    own = transfer;
+                    transfers.add(own);
+                }
+                int running = 0;
+                Transfer ahead = null;
+                for (Transfer other : transfers) {
+                    if (other.admitted > 0) {
+                        running++;
+                    } else if (other != own && other.before(own) && (ahead == null || other.before(ahead))) {
+                        ahead = other;
+                    }
+                }
+                String refusal = null;
+                if (running >= slots) {
+                    refusal = running + " of " + slots + " transfers running";
+                } else if (ahead != null) {
+                    refusal = ahead.id + " (" + ahead.transferClass + ") goes first";
+                } else {
+                    own.admitted = System.currentTimeMillis();
+                    System.err.println(own.id + " admitted as " + own.transferClass + ", " + (running + 1) + " of " + slots
+                            + " transfers running");
+                }
+                write(channel, transfers);
+                return refusal;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     *
+     * @param ledger
+     * @param id
+     * @param budget
+     *            bytes per second for all the transfers of the node, 0 for no limit
+     * @return the bytes per second of the budget the transfer may use now, 0 for no limit
+     * @throws IOException
+     */
+    public static long share(File ledger, String id, long budget) throws IOException {
+        if (budget <= 0) {
+            return 0;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(ledger, "rw"); FileChannel channel = file.getChannel()) {
+            FileLock lock = channel.lock();
+            try {
+                int weights = 0;
+                int own = 0;
+                for (Transfer transfer : live(read(channel))) {
+                    if (transfer.admitted > 0) {
+                        weights += transfer.weight();
+                        own = transfer.id.equals(id) ? transfer.weight() : own;
+                    }
+                }
+                // a transfer missing from the ledger gets the budget it would have alone
+                return own == 0 ? budget : Math.max(1, budget * own / weights);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Drops the transfer.
+     *
+     * @param ledger
+     * @param id
+     * @return the transfer, null if it was not in the ledger
+     * @throws IOException
+     */
+    public static Transfer release(File ledger, String id) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(ledger, "rw"); FileChannel channel = file.getChannel()) {
+            FileLock lock = channel.lock();
+            try {
+                List<Transfer> transfers = live(read(channel));
+                Transfer released = null;
+                for (Transfer transfer : new ArrayList<>(transfers)) {
+                    if (transfer.id.equals(id)) {
+                        released = transfer;
+                        transfers.remove(transfer);
+                    }
+                }
+                write(channel, transfers);
+                return released;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * @return the transfers whose job is still running
+     */
+    private static List<Transfer> live(List<Transfer> transfers) {
+        List<Transfer> live = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        boolean processes = new File("/proc/self").exists();
+        for (Transfer transfer : transfers) {
+            if (now - transfer.registered < MAX_AGE_MILLIS && (!processes || new File("/proc/" + transfer.pid).exists())) {
+                live.add(transfer);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * One line per transfer: id, class, pid, registration and admission in epoch milliseconds, 0 while waiting, and the bytes below
+     * its paths when it registered.
+     */
+    private static List<Transfer> read(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        channel.read(buffer, 0);
+        List<Transfer> transfers = new ArrayList<>();
+        for (String line : new String(buffer.array(), StandardCharsets.UTF_8).split("\n")) {
+            String[] fields = line.split("\t");
+            if (fields.length == 6 && CLASSES.contains(fields[1])) {
+                transfers.add(new Transfer(fields[0], fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), Long
+                        .parseLong(fields[4]), Long.parseLong(fields[5])));
+            }
+        }
+        return transfers;
+    }
+
+    private static void write(FileChannel channel, List<Transfer> transfers) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (Transfer transfer : transfers) {
+            text.append(transfer.id).append('\t').append(transfer.transferClass).append('\t').append(transfer.pid).append('\t')
+                    .append(transfer.registered).append('\t').append(transfer.admitted).append('\t').append(transfer.initialBytes)
+                    .append('\n');
+        }
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)), 0);
+        channel.force(true);
+    }
+
+    /**
+     * A transfer waiting or running.
+     */
+    public static class Transfer {
+        private final String id;
+        private final String transferClass;
+        private final long pid;
+        private final long registered;
+        private long admitted;
+        private final long initialBytes;
+
+        Transfer(String id, String transferClass, long pid, long registered, long admitted, long initialBytes) {
+            this.id = id;
+            this.transferClass = transferClass;
+            this.pid = pid;
+            this.registered = registered;
+            this.admitted = admitted;
+            this.initialBytes = initialBytes;
+        }
+
+        int weight() {
+            return WEIGHTS[CLASSES.indexOf(transferClass)];
+        }
+
+        /**
+         * @return whether this transfer goes before the other, by class and then by registration
+         */
+        boolean before(Transfer other) {
+            int rank = CLASSES.indexOf(transferClass);
+            int otherRank = CLASSES.indexOf(other.transferClass);
+            return rank < otherRank || (rank == otherRank && registered < other.registered);
+        }
+    }
+}
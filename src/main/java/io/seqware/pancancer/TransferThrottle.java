@@ -0,0 +1,77 @@
+package io.seqware.pancancer;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Paces a transfer tool to the share of the node bandwidth budget its transfer is granted by the {@link TransferScheduler}. The ledger,
+ * the transfer and the budget in bytes per second come from the environment of the job, TRANSFER_SCHEDULE, TRANSFER_ID and
+ * TRANSFER_BUDGET. The share is looked up again every few seconds as other transfers start and end, and is spent from a bucket
+ * holding at most one second of it, shared by all the streams of the tool.
+ */
+public class TransferThrottle {
+
+    private static final long REFRESH_NANOS = 5000000000L;
+
+    private final File ledger;
+    private final String id;
+    private final long budget;
+    private long rate;
+    private double tokens = 0;
+    private long filled = System.nanoTime();
+    private long refreshed;
+
+    /**
+     *
+     * @param ledger
+     * @param id
+     * @param budget
+     *            bytes per second for all the transfers of the node
+     */
+    public TransferThrottle(File ledger, String id, long budget) {
+        this.ledger = ledger;
+        this.id = id;
+        this.budget = budget;
+        this.rate = budget;
+        this.refreshed = System.nanoTime() - 2 * REFRESH_NANOS;
+    }
+
+    /**
+     * @return the throttle of the transfer the job was admitted for, null if it is not scheduled or has no budget
+     */
+    public static TransferThrottle fromEnvironment() {
+        String ledger = System.getenv("TRANSFER_SCHEDULE");
+        String id = System.getenv("TRANSFER_ID");
+        String budget = System.getenv("TRANSFER_BUDGET");
+        if (ledger == null || id == null || budget == null || Long.parseLong(budget) <= 0) {
+            return null;
+        }
+        return new TransferThrottle(new File(ledger), id, Long.parseLong(budget));
+    }
+
+    /**
+     * Waits until the bytes may be sent or received.
+     *
+     * @param bytes
+     * @throws InterruptedException
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        long now = System.nanoTime();
+        if (now - refreshed > REFRESH_NANOS) {
+            try {
+                rate = TransferScheduler.share(ledger, id, budget);
+            } catch (IOException e) {
+                // the last share stays
+                System.err.println("cannot read the share of " + id + " from " + ledger + ": " + e.getMessage());
+            }
+            refreshed = now;
+        }
+        tokens = Math.min(rate, tokens + rate * ((now - filled) / 1e9));
+        filled = now;
+        tokens -= bytes;
+        if (tokens < 0) {
+            // the other streams wait behind this one
+            Thread.sleep((long) Math.ceil(-tokens * 1000 / rate));
+        }
+    }
+}
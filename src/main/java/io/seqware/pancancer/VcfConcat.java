@@ -0,0 +1,258 @@
+package io.seqware.pancancer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Concatenates coordinate sorted BGZF VCF shards into one VCF. Compressed blocks are copied as they are, only the block holding the
+ * end of a later shard's header is inflated and recompressed without it. The tabix index is built in the same pass and both the VCF
+ * and the index get the .md5 sidecars the upload tool expects.
+ *
+ * Usage: VcfConcat &lt;output.vcf.gz&gt; &lt;shard.vcf.gz&gt;...
+ */
+public class VcfConcat {
+
+    private static final int IO_BUFFER = 1 << 20;
+
+    private final BgzfWriter out;
+    private final TabixIndex index = new TabixIndex();
+    private byte[] line = new byte[4096];
+    private int lineLength = 0;
+    private boolean atLineStart = true;
+    private long lineStart = 0;
+    private long records = 0;
+
+    /**
+     *
+     * @param out
+     *            receives the concatenated VCF
+     */
+    public VcfConcat(BgzfWriter out) {
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: VcfConcat <output.vcf.gz> <shard.vcf.gz>...");
+            System.exit(1);
+        }
+        List<File> shards = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            shards.add(new File(args[i]));
+        }
+        long start = System.currentTimeMillis();
+        long records = concat(shards, new File(args[0]));
+        System.out.println("concatenated " + shards.size() + " shards, " + records + " records into " + args[0] + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Writes output, output.tbi, output.md5 and output.tbi.md5.
+     *
+     * @param shards
+     *            in genomic order, the header is taken from the first
+     * @param output
+     * @return the number of records written
+     * @throws IOException
+     */
+    public static long concat(List<File> shards, File output) throws IOException {
+        MessageDigest vcfDigest = Checksums.md5();
+        VcfConcat concat;
+        try (BgzfWriter bgzf = new BgzfWriter(new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(output), IO_BUFFER),
+                vcfDigest))) {
+            concat = new VcfConcat(bgzf);
+            for (int i = 0; i < shards.size(); i++) {
+                concat.append(shards.get(i), i == 0);
+            }
+            concat.finishShard(output.getName());
+        }
+        Checksums.writeMd5(output, Checksums.hex(vcfDigest.digest()));
+
+        File tbi = new File(output.getPath() + ".tbi");
+        MessageDigest tbiDigest = Checksums.md5();
+        try (OutputStream tbiOut = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(tbi)), tbiDigest)) {
+            concat.index.write(tbiOut);
+        }
+        Checksums.writeMd5(tbi, Checksums.hex(tbiDigest.digest()));
+        return concat.records;
+    }
+
+    /**
+     * Appends one shard.
+     *
+     * @param shard
+     * @param keepHeader
+     *            only the first shard contributes its header
+     * @throws IOException
+     */
+    public void append(File shard, boolean keepHeader) throws IOException {
+        BgzfReader reader = new BgzfReader(new BufferedInputStream(new FileInputStream(shard), IO_BUFFER), shard.getPath());
+        try {
+            boolean headerDone = false;
+            boolean shardLineStart = true;
+            while (reader.next()) {
+                byte[] data = reader.getData();
+                int length = reader.getDataLength();
+                if (length == 0) {
+                    // end of file markers of the shards are dropped, the output gets a single one
+                    continue;
+                }
+
+                // find where the header of this shard ends
+                int bodyStart = 0;
+                if (!headerDone) {
+                    bodyStart = length;
+                    for (int i = 0; i < length; i++) {
+                        if (shardLineStart && data[i] != '#') {
+                            headerDone = true;
+                            bodyStart = i;
+                            break;
+                        }
+                        shardLineStart = data[i] == '\n';
+                    }
+                }
+
+                if (keepHeader || bodyStart == 0) {
+                    // the common case, copy the compressed block and index its records in place
+                    long address = out.getAddress();
+                    out.writeRawBlock(reader.getRaw(), 0, reader.getRawLength());
+                    scan(data, 0, length, address, out.getAddress());
+                } else if (bodyStart < length) {
+                    // header and records share this block, recompress the records only
+                    writeAndScan(data, bodyStart, length);
+                    out.flushBlock();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        finishShard(shard.getPath());
+    }
+
+    private void finishShard(String name) {
+        if (!atLineStart) {
+            throw new IllegalStateException(name + " does not end with a newline");
+        }
+    }
+
+    /**
+     * Indexes the records of a block copied as it was.
+     */
+    private void scan(byte[] data, int from, int to, long address, long nextAddress) {
+        for (int i = from; i < to; i++) {
+            if (atLineStart) {
+                lineStart = (address << 16) | i;
+                atLineStart = false;
+            }
+            appendToLine(data[i]);
+            if (data[i] == '\n') {
+                endLine(i + 1 == to ? nextAddress << 16 : (address << 16) | (i + 1));
+            }
+        }
+    }
+
+    /**
+     * Writes bytes through the compressor, line by line so each record knows its virtual offsets.
+     */
+    private void writeAndScan(byte[] data, int from, int to) throws IOException {
+        int i = from;
+        while (i < to) {
+            if (atLineStart) {
+                lineStart = out.getVirtualOffset();
+                atLineStart = false;
+            }
+            int end = i;
+            while (end < to && data[end] != '\n') {
+                end++;
+            }
+            boolean complete = end < to;
+            if (complete) {
+                end++;
+            }
+            out.write(data, i, end - i);
+            for (int j = i; j < end; j++) {
+                appendToLine(data[j]);
+            }
+            if (complete) {
+                endLine(out.getVirtualOffset());
+            }
+            i = end;
+        }
+    }
+
+    private void appendToLine(byte b) {
+        if (lineLength == line.length) {
+            line = Arrays.copyOf(line, line.length * 2);
+        }
+        line[lineLength++] = b;
+    }
+
+    private void endLine(long lineEnd) {
+        if (lineLength > 0 && line[0] != '#') {
+            indexRecord(lineEnd);
+        }
+        lineLength = 0;
+        atLineStart = true;
+    }
+
+    /**
+     * Parses CHROM, POS, REF and an END in INFO the way tabix does for VCF.
+     */
+    private void indexRecord(long lineEnd) {
+        int[] tabs = new int[8];
+        int found = 0;
+        for (int i = 0; i < lineLength && found < tabs.length; i++) {
+            if (line[i] == '\t') {
+                tabs[found++] = i;
+            }
+        }
+        if (found < 4) {
+            throw new IllegalStateException("malformed VCF record: " + new String(line, 0, lineLength, StandardCharsets.UTF_8).trim());
+        }
+        String chrom = new String(line, 0, tabs[0], StandardCharsets.UTF_8);
+        int pos = parseInt(tabs[0] + 1, tabs[1]);
+        int beg = pos - 1;
+        int end = beg + (tabs[3] - tabs[2] - 1);
+        if (found >= 7) {
+            int infoStart = tabs[6] + 1;
+            int infoEnd = found == 8 ? tabs[7] : lineLength - 1;
+            for (int i = infoStart; i + 4 < infoEnd; i++) {
+                if ((i == infoStart || line[i - 1] == ';') && line[i] == 'E' && line[i + 1] == 'N' && line[i + 2] == 'D' && line[i + 3] == '=') {
+                    int valueEnd = i + 4;
+                    while (valueEnd < infoEnd && line[valueEnd] >= '0' && line[valueEnd] <= '9') {
+                        valueEnd++;
+                    }
+                    if (valueEnd > i + 4) {
+                        end = parseInt(i + 4, valueEnd);
+                    }
+                    break;
+                }
+            }
+        }
+        index.add(chrom, beg, end, lineStart, lineEnd);
+        records++;
+    }
+
+    private int parseInt(int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            if (line[i] < '0' || line[i] > '9') {
+                throw new IllegalStateException("bad position in VCF record: " + new String(line, 0, Math.min(lineLength, 200),
+                        StandardCharsets.UTF_8));
+            }
+            value = value * 10 + (line[i] - '0');
+        }
+        return value;
+    }
+}
@@ -0,0 +1,156 @@
+package io.seqware.pancancer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the sampler against stand-ins instead of a container: a cgroup directory written by the test, whose member process is a sleep
+ * the test ends, and a plain process followed through the command line.
+ */
+public class ContainerSamplerTest {
+
+    private Path directory;
+    private Process standIn;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("sampler");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (standIn != null) {
+            standIn.destroy();
+        }
+        TestFiles.delete(directory);
+    }
+
+    @Test
+    public void samplesCgroupStandIn() throws Exception {
+        Path cgroup = Files.createDirectory(directory.resolve("cgroup"));
+        standIn = new ProcessBuilder("sh", "-c", "echo $$; exec sleep 60").start();
+        int pid = readPid(standIn);
+        counters(cgroup, 1000000, 1000, 100, 200);
+        write(cgroup.resolve("cgroup.procs"), pid + "\n");
+
+        final ContainerSampler sampler = new ContainerSampler("stand-in", 100);
+        assertTrue(sampler.attachCgroup(cgroup));
+        StringWriter series = new StringWriter();
+        final PrintWriter out = new PrintWriter(series);
+        final IOException[] failure = new IOException[1];
+        Thread sampling = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sampler.sample(out);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        sampling.start();
+
+        waitForLines(series, 2);
+        counters(cgroup, 3000000, 5000, 1100, 2200);
+        // the new counters are the last sample once a line shows them
+        waitForRss(series, 5000);
+        standIn.destroy();
+        standIn.waitFor();
+        sampling.join(5000);
+        assertTrue("the sampler stops with the process of the cgroup", !sampling.isAlive());
+        assertEquals(null, failure[0]);
+
+        String[] lines = series.toString().split("\n");
+        assertEquals("# stand-in", lines[0]);
+        assertEquals("time_ms\tcpu_cores\trss_bytes\tread_bytes\twrite_bytes\trx_bytes\ttx_bytes", lines[1]);
+        for (int i = 2; i < lines.length; i++) {
+            assertEquals(lines[i], 7, lines[i].split("\t").length);
+        }
+
+        Path summary = directory.resolve("summary.json");
+        sampler.writeSummary(summary);
+        String json = new String(Files.readAllBytes(summary), StandardCharsets.UTF_8).trim();
+        assertEquals("stand-in", JsonMerge.field(json, "container"));
+        assertTrue(json, Long.parseLong(JsonMerge.field(json, "samples")) >= 2);
+        assertEquals(5000, Long.parseLong(JsonMerge.field(json, "rss_bytes_peak")));
+        assertEquals(1000, Long.parseLong(JsonMerge.field(json, "read_bytes")));
+        assertEquals(2000, Long.parseLong(JsonMerge.field(json, "write_bytes")));
+        assertTrue(json, Double.parseDouble(JsonMerge.field(json, "cpu_cores_peak")) > 0);
+        assertTrue(json, Double.parseDouble(JsonMerge.field(json, "cpu_cores_avg")) > 0);
+    }
+
+    @Test
+    public void samplesProcessStandIn() throws Exception {
+        standIn = new ProcessBuilder("sh", "-c", "echo $$; exec sleep 3").start();
+        int pid = readPid(standIn);
+        Path series = directory.resolve("series.tsv");
+        Path summary = directory.resolve("summary.json");
+
+        Process sampler = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java", "-cp",
+                System.getProperty("java.class.path"), ContainerSampler.class.getName(), "-i", "1", "-o", series.toString(),
+                "-summary", summary.toString(), "-pid", Integer.toString(pid)).redirectErrorStream(true).start();
+        assertEquals("the sampler exits with the process", 0, sampler.waitFor());
+
+        List<String> lines = Files.readAllLines(series, StandardCharsets.UTF_8);
+        assertEquals("# pid " + pid, lines.get(0));
+        assertTrue(lines.get(1).startsWith("time_ms\t"));
+        assertTrue("samples while the process runs", lines.size() > 2);
+        String json = new String(Files.readAllBytes(summary), StandardCharsets.UTF_8).trim();
+        assertEquals("pid " + pid, JsonMerge.field(json, "container"));
+        assertEquals(1, Long.parseLong(JsonMerge.field(json, "interval_seconds")));
+        assertEquals(lines.size() - 2, Long.parseLong(JsonMerge.field(json, "samples")));
+    }
+
+    private static int readPid(Process process) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        return Integer.parseInt(reader.readLine().trim());
+    }
+
+    /**
+     * Writes cgroup v2 counter files, each replaced in one step so the sampler never reads half a file.
+     */
+    private static void counters(Path cgroup, long cpuMicros, long rss, long read, long written) throws IOException {
+        write(cgroup.resolve("cpu.stat"), "usage_usec " + cpuMicros + "\nuser_usec " + cpuMicros + "\n");
+        write(cgroup.resolve("memory.stat"), "anon " + rss + "\nfile 0\n");
+        write(cgroup.resolve("io.stat"),
+                "8:0 rbytes=" + (read - 10) + " wbytes=" + (written - 20) + " rios=1 wios=1\n8:16 rbytes=10 wbytes=20\n");
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Path partial = file.resolveSibling(file.getFileName() + ".partial");
+        Files.write(partial, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void waitForLines(StringWriter series, int samples) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (series.toString().split("\n").length < samples + 2) {
+            assertTrue("no samples in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    private static void waitForRss(StringWriter series, long rss) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!series.toString().contains("\t" + rss + "\t")) {
+            assertTrue("the new counters were not sampled in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+}
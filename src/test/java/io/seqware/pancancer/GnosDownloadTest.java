@@ -0,0 +1,263 @@
+package io.seqware.pancancer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Downloads from a local GNOS stand-in that serves ranges and, where it is told to, throttles with 429, fails with an error or drops
+ * the connection part way through a range.
+ */
+public class GnosDownloadTest {
+
+    private static final String TOKEN = "stand-in-token";
+    private static final long SEGMENT = 1000;
+
+    private final byte[] content = new byte[4500];
+    private HttpServer server;
+    private Path directory;
+    private String url;
+    /** what to do instead of serving a range, by its first byte: a status, drop:n to send n bytes and close, or whole */
+    private final Map<Long, List<String>> actions = new ConcurrentHashMap<>();
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(24).nextBytes(content);
+        directory = Files.createTempDirectory("gnos");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new StandIn());
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/cghub/data/analysis/download/object.bam";
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        TestFiles.delete(directory);
+    }
+
+    @Test
+    public void downloadsAndVerifiesMd5() throws Exception {
+        File file = download(metadata(md5(content), content.length), 3);
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertFalse("the journal goes once the file is complete", new File(file + ".gnosparts").exists());
+        assertEquals(6, requests.size());
+        assertTrue(requests.contains("GET bytes=4000-4499"));
+    }
+
+    @Test
+    public void waitsOutThrottling() throws Exception {
+        actions.put(1000L, list("429"));
+        File file = download(null, 3);
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertEquals(2, Collections.frequency(requests, "GET bytes=1000-1999"));
+    }
+
+    @Test
+    public void resumesDroppedRange() throws Exception {
+        actions.put(0L, list("drop:300"));
+        File file = download(metadata(md5(content), content.length), 3);
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertEquals(1, Collections.frequency(requests, "GET bytes=0-999"));
+        assertTrue("the segment continues after the bytes it got", requests.contains("GET bytes=300-999"));
+    }
+
+    @Test
+    public void resumesAcrossRuns() throws Exception {
+        // the range drops, then the server refuses it, which is not retried
+        actions.put(2000L, list("drop:400", "403"));
+        try {
+            download(null, 3);
+            fail("the refused segment ends the download");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("segment 2") && e.getMessage().contains("HTTP 403"));
+        }
+        File journal = directory.resolve("object.bam.gnosparts").toFile();
+        assertTrue(journal.isFile());
+
+        requests.clear();
+        File file = download(metadata(md5(content), content.length), 3);
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertEquals(Arrays.asList("HEAD", "GET bytes=2400-2999"), requests);
+        assertFalse(journal.exists());
+    }
+
+    @Test
+    public void givesUpAfterRetries() throws Exception {
+        actions.put(3000L, list("503", "503", "503"));
+        try {
+            download(null, 1);
+            fail("the segment fails more often than it may");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("segment 3") && e.getMessage().contains("HTTP 503"));
+        }
+        assertEquals(2, Collections.frequency(requests, "GET bytes=3000-3999"));
+    }
+
+    @Test
+    public void refusesIgnoredRange() throws Exception {
+        actions.put(1000L, list("whole"));
+        try {
+            download(null, 3);
+            fail("a server that does not serve ranges cannot be used");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("does not serve ranges"));
+        }
+        assertEquals(1, Collections.frequency(requests, "GET bytes=1000-1999"));
+    }
+
+    @Test
+    public void removesFileWithWrongMd5() throws Exception {
+        byte[] other = content.clone();
+        other[0]++;
+        try {
+            download(metadata(md5(other), content.length), 3);
+            fail("the MD5 does not match");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("instead of " + md5(other)));
+        }
+        assertFalse(directory.resolve("object.bam").toFile().exists());
+        assertFalse(directory.resolve("object.bam.gnosparts").toFile().exists());
+    }
+
+    @Test
+    public void checksSizeAgainstMetadata() throws Exception {
+        try {
+            download(metadata(md5(content), content.length + 1), 3);
+            fail("the size does not match");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("the metadata gives " + (content.length + 1)));
+        }
+        assertEquals(Collections.singletonList("HEAD"), requests);
+    }
+
+    @Test
+    public void readsFileEntries() {
+        String xml = metadata("0123456789ABCDEF0123456789ABCDEF", 10);
+        assertArrayEquals(new String[] { "10", "0123456789abcdef0123456789abcdef" }, GnosDownload.fileEntry(xml, "object.bam"));
+        assertNull(GnosDownload.fileEntry(xml, "object.bam.bai"));
+    }
+
+    private File download(String xml, int retries) throws IOException, InterruptedException {
+        File file = directory.resolve("object.bam").toFile();
+        List<String[]> files = new ArrayList<>();
+        files.add(new String[] { url, file.getPath() });
+        new GnosDownload(TOKEN, retries).download(files, xml, SEGMENT, 2);
+        return file;
+    }
+
+    private static List<String> list(String... actions) {
+        return Collections.synchronizedList(new ArrayList<>(Arrays.asList(actions)));
+    }
+
+    private static String metadata(String md5, long size) {
+        return "<ResultSet><Result><files><file><filename>object.bam</filename><filesize>" + size + "</filesize>"
+                + "<checksum type=\"MD5\">" + md5 + "</checksum></file></files></Result></ResultSet>";
+    }
+
+    private static String md5(byte[] data) throws Exception {
+        return Checksums.hex(MessageDigest.getInstance("MD5").digest(data));
+    }
+
+    /**
+     * Serves the content to requests with the bearer token.
+     */
+    private class StandIn implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String method = exchange.getRequestMethod();
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                requests.add(range == null ? method : method + " " + range);
+                if (!("Bearer " + TOKEN).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                    send(exchange, 401, "no token");
+                    return;
+                }
+                if ("HEAD".equals(method)) {
+                    exchange.getResponseHeaders().set("ETag", "\"version-1\"");
+                    exchange.getResponseHeaders().set("Content-Length", String.valueOf(content.length));
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                int from = Integer.parseInt(bounds[0]);
+                int to = Integer.parseInt(bounds[1]);
+                List<String> pending = null;
+                for (Map.Entry<Long, List<String>> entry : actions.entrySet()) {
+                    // a resumed range starts within the segment it continues
+                    if (entry.getKey() <= from && from < entry.getKey() + SEGMENT) {
+                        pending = entry.getValue();
+                    }
+                }
+                String action = pending == null || pending.isEmpty() ? null : pending.remove(0);
+                if (action == null) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + content.length);
+                    exchange.sendResponseHeaders(206, to + 1 - from);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(content, from, to + 1 - from);
+                    }
+                } else if (action.equals("whole")) {
+                    exchange.sendResponseHeaders(200, content.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(content);
+                    }
+                } else if (action.startsWith("drop:")) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + content.length);
+                    exchange.sendResponseHeaders(206, to + 1 - from);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(content, from, Integer.parseInt(action.substring(5)));
+                    out.flush();
+                    // closing short of the length drops the connection
+                } else {
+                    if (action.equals("429")) {
+                        exchange.getResponseHeaders().set("Retry-After", "1");
+                    }
+                    send(exchange, Integer.parseInt(action), "<error>" + action + "</error>");
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void send(HttpExchange exchange, int status, String body) throws IOException {
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package io.seqware.pancancer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the pull job lines against a stubbed docker on the PATH. The stub keeps the local image as a file holding its digest and pulls
+ * whatever digest the registry file holds.
+ */
+public class ImagePullTest {
+
+    private static final String IMAGE = "pancancer/stand-in:1.0";
+    private static final String DIGEST = "sha256:0123abcd";
+    private static final String STALE = "sha256:4567ef01";
+
+    private static final String DOCKER = "#!/bin/bash\n" //
+            + "echo \"$*\" >> \"$STUB/calls\"\n" //
+            + "case \"$1\" in\n" //
+            + "  inspect) [ -f \"$STUB/local\" ] || exit 1\n" //
+            + "    if [ \"$2\" = --format ]; then echo \"pancancer/stand-in@`cat \"$STUB/local\"` \"; fi ;;\n" //
+            + "  pull) [ -f \"$STUB/registry\" ] || exit 1; cp \"$STUB/registry\" \"$STUB/local\" ;;\n" //
+            + "esac\n";
+
+    private Path stub;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = Files.createTempDirectory("docker");
+        Files.createDirectory(stub.resolve("bin"));
+        Path docker = stub.resolve("bin").resolve("docker");
+        Files.write(docker, DOCKER.getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(docker, PosixFilePermissions.fromString("rwxr-xr-x"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.delete(stub);
+    }
+
+    @Test
+    public void skipsPresentImage() throws Exception {
+        image("local", STALE);
+        assertEquals(0, run(null));
+        assertEquals(0, pulls());
+    }
+
+    @Test
+    public void pullsMissingImage() throws Exception {
+        image("registry", DIGEST);
+        assertEquals(0, run(null));
+        assertEquals(1, pulls());
+    }
+
+    @Test
+    public void skipsImageWithDigest() throws Exception {
+        image("local", DIGEST);
+        assertEquals(0, run(DIGEST));
+        assertEquals(0, pulls());
+    }
+
+    @Test
+    public void pullsAgainOnDigestMismatch() throws Exception {
+        image("local", STALE);
+        image("registry", DIGEST);
+        assertEquals(0, run(DIGEST));
+        assertEquals(1, pulls());
+        assertEquals(DIGEST, new String(Files.readAllBytes(stub.resolve("local")), StandardCharsets.UTF_8).trim());
+    }
+
+    @Test
+    public void failsWhenPulledImageStillMismatches() throws Exception {
+        image("local", STALE);
+        image("registry", STALE);
+        assertEquals(1, run(DIGEST));
+        assertEquals(1, pulls());
+    }
+
+    @Test
+    public void failsWhenPullFails() throws Exception {
+        assertEquals(1, run(null));
+        assertEquals(1, pulls());
+    }
+
+    private void image(String where, String digest) throws IOException {
+        Files.write(stub.resolve(where), (digest + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private int run(String digest) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder("bash", "-c", DEWrapperWorkflow.imagePullCommand(IMAGE, digest));
+        builder.environment().put("PATH", stub.resolve("bin") + File.pathSeparator + System.getenv("PATH"));
+        builder.environment().put("STUB", stub.toString());
+        builder.redirectErrorStream(true).redirectOutput(stub.resolve("output").toFile());
+        return builder.start().waitFor();
+    }
+
+    private int pulls() throws IOException {
+        Path calls = stub.resolve("calls");
+        if (!Files.exists(calls)) {
+            return 0;
+        }
+        int pulls = 0;
+        List<String> lines = Files.readAllLines(calls, StandardCharsets.UTF_8);
+        for (String line : lines) {
+            if (line.equals("pull " + IMAGE)) {
+                pulls++;
+            }
+        }
+        return pulls;
+    }
+}
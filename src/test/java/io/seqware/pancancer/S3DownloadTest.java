@@ -0,0 +1,251 @@
+package io.seqware.pancancer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Downloads from a local S3 compatible stand-in that checks the signature of every request, answers ranged GETs and fails the
+ * requests it is told to.
+ */
+public class S3DownloadTest {
+
+    private static final String ACCESS_KEY = "AKIDSTANDIN";
+    private static final String SECRET_KEY = "stand-in-secret";
+    private static final long PART = 1000;
+
+    private final byte[] object = new byte[4500];
+    private HttpServer server;
+    private S3Signer signer;
+    private Path directory;
+    private String etag = "\"etag-1\"";
+    /** statuses to answer instead of the part, by the first byte of the range */
+    private final Map<Long, List<Integer>> failures = new HashMap<>();
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(21).nextBytes(object);
+        directory = Files.createTempDirectory("s3");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new StandIn());
+        server.start();
+        String endpoint = "http://127.0.0.1:" + server.getAddress().getPort();
+        signer = new S3Signer(ACCESS_KEY, SECRET_KEY, null, "us-east-1", endpoint);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        TestFiles.delete(directory);
+    }
+
+    @Test
+    public void downloadsInParts() throws Exception {
+        File file = download();
+        assertArrayEquals(object, Files.readAllBytes(file.toPath()));
+        assertFalse("the journal goes once the file is complete", new File(file + ".s3parts").exists());
+        assertEquals(6, requests.size());
+        assertTrue(requests.contains("HEAD"));
+        assertTrue(requests.contains("GET bytes=4000-4499"));
+    }
+
+    @Test
+    public void headGivesSizeAndEtag() throws Exception {
+        String[] head = new S3Download(signer).head("s3://bucket/data/object.bam");
+        assertEquals("4500", head[0]);
+        assertEquals(etag, head[1]);
+    }
+
+    @Test
+    public void standInRejectsWrongSignature() throws Exception {
+        S3Signer wrong = new S3Signer(ACCESS_KEY, "other-secret", null, "us-east-1", "http://127.0.0.1:" + server.getAddress().getPort());
+        try {
+            new S3Download(wrong).head("s3://bucket/data/object.bam");
+            fail("the stand-in accepted a wrong signature");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("HTTP 403"));
+        }
+    }
+
+    @Test
+    public void retriesSlowDown() throws Exception {
+        failures.put(1000L, new ArrayList<>(Collections.singletonList(503)));
+        File file = download();
+        assertArrayEquals(object, Files.readAllBytes(file.toPath()));
+        assertEquals(2, Collections.frequency(requests, "GET bytes=1000-1999"));
+    }
+
+    @Test
+    public void resumesMissingParts() throws Exception {
+        // a 412 is not retried, the run ends with the other parts recorded
+        failures.put(2000L, new ArrayList<>(Collections.singletonList(412)));
+        try {
+            download();
+            fail("the failed part ends the download");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("part 2") && e.getMessage().contains("HTTP 412"));
+        }
+        File journal = directory.resolve("object.bam.s3parts").toFile();
+        assertTrue(journal.isFile());
+
+        requests.clear();
+        File file = download();
+        assertArrayEquals(object, Files.readAllBytes(file.toPath()));
+        assertFalse(journal.exists());
+        assertEquals(2, requests.size());
+        assertTrue(requests.contains("GET bytes=2000-2999"));
+    }
+
+    @Test
+    public void startsOverWhenObjectChanged() throws Exception {
+        failures.put(2000L, new ArrayList<>(Collections.singletonList(412)));
+        try {
+            download();
+            fail("the failed part ends the download");
+        } catch (IOException e) {
+            // expected
+        }
+        object[0]++;
+        etag = "\"etag-2\"";
+
+        requests.clear();
+        File file = download();
+        assertArrayEquals(object, Files.readAllBytes(file.toPath()));
+        assertEquals(6, requests.size());
+    }
+
+    @Test
+    public void skipsCompleteFile() throws Exception {
+        download();
+        requests.clear();
+        File file = download();
+        assertArrayEquals(object, Files.readAllBytes(file.toPath()));
+        assertEquals(Collections.singletonList("HEAD"), requests);
+    }
+
+    private File download() throws IOException, InterruptedException {
+        File file = directory.resolve("object.bam").toFile();
+        List<String[]> objects = new ArrayList<>();
+        objects.add(new String[] { "s3://bucket/data/object.bam", file.getPath() });
+        new S3Download(signer).download(objects, PART, 2);
+        return file;
+    }
+
+    /**
+     * Serves the object at /bucket/data/object.bam, a request whose signature does not verify gets a 403.
+     */
+    private class StandIn implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String method = exchange.getRequestMethod();
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                requests.add(range == null ? method : method + " " + range);
+                if (!verified(exchange)) {
+                    send(exchange, 403, "<Error><Code>SignatureDoesNotMatch</Code></Error>");
+                } else if (!"/bucket/data/object.bam".equals(exchange.getRequestURI().getPath())) {
+                    send(exchange, 404, "<Error><Code>NoSuchKey</Code></Error>");
+                } else if ("HEAD".equals(method)) {
+                    exchange.getResponseHeaders().set("ETag", etag);
+                    exchange.getResponseHeaders().set("Content-Length", String.valueOf(object.length));
+                    exchange.sendResponseHeaders(200, -1);
+                } else {
+                    String[] bounds = range.substring("bytes=".length()).split("-");
+                    long from = Long.parseLong(bounds[0]);
+                    int to = Integer.parseInt(bounds[1]);
+                    List<Integer> statuses = failures.get(from);
+                    String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+                    if (statuses != null && !statuses.isEmpty()) {
+                        int status = statuses.remove(0);
+                        send(exchange, status, "<Error><Code>" + (status == 503 ? "SlowDown" : "PreconditionFailed") + "</Code></Error>");
+                    } else if (ifMatch != null && !ifMatch.equals(etag)) {
+                        send(exchange, 412, "<Error><Code>PreconditionFailed</Code></Error>");
+                    } else {
+                        exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + object.length);
+                        exchange.sendResponseHeaders(206, to + 1 - from);
+                        try (OutputStream out = exchange.getResponseBody()) {
+                            out.write(object, (int) from, (int) (to + 1 - from));
+                        }
+                    }
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        /**
+         * Signs the request again from the headers it names and compares the Authorization header.
+         */
+        private boolean verified(HttpExchange exchange) throws IOException {
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            String amzDate = exchange.getRequestHeaders().getFirst("X-Amz-Date");
+            if (authorization == null || amzDate == null || !authorization.contains("Credential=" + ACCESS_KEY + "/")) {
+                return false;
+            }
+            String signedHeaders = authorization.replaceAll(".*SignedHeaders=([^,]*),.*", "$1");
+            Map<String, String> headers = new TreeMap<>();
+            for (String name : signedHeaders.split(";")) {
+                if (!name.equals("host") && !name.equals("x-amz-date") && !name.equals("x-amz-content-sha256")) {
+                    headers.put(name, exchange.getRequestHeaders().getFirst(name));
+                }
+            }
+            if (!("127.0.0.1:" + server.getAddress().getPort()).equals(exchange.getRequestHeaders().getFirst("Host"))) {
+                return false;
+            }
+            SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'", Locale.ROOT);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            try {
+                URL url = new URL("http://" + exchange.getRequestHeaders().getFirst("Host") + exchange.getRequestURI());
+                new S3Signer(ACCESS_KEY, SECRET_KEY, null, "us-east-1", null).sign(exchange.getRequestMethod(), url, headers,
+                        exchange.getRequestHeaders().getFirst("X-Amz-Content-Sha256"), format.parse(amzDate));
+            } catch (ParseException e) {
+                return false;
+            }
+            return authorization.equals(headers.get("authorization"));
+        }
+
+        private void send(HttpExchange exchange, int status, String body) throws IOException {
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+}
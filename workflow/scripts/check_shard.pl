@@ -0,0 +1,26 @@
+use strict;
+
+# this script fails when a VCF of an SNV shard has records outside the chromosomes listed in the ini of the shard,
+# which is what a DKFZ image ignoring chromosomeIndices produces: every shard calls the whole genome
+
+my ($ini, @vcfs) = @ARGV;
+
+die "USAGE: check_shard.pl <shard ini> <vcf.gz>...\n" if (scalar(@vcfs) == 0);
+
+my %chromosomes;
+open IN, '<', $ini or die "CANNOT OPEN FILE: '$ini'\n";
+while (<IN>) {
+  if (/^chromosomeIndices=\(\s*(.*?)\s*\)/) { %chromosomes = map { $_ => 1 } split /\s+/, $1; }
+}
+close IN;
+die "NO chromosomeIndices IN '$ini'\n" if (scalar(keys %chromosomes) == 0);
+
+foreach my $vcf (@vcfs) {
+  open VCF, "gzip -dc $vcf |" or die "CANNOT OPEN FILE: '$vcf'\n";
+  while (<VCF>) {
+    next if (/^#/);
+    my ($chr) = split /\t/;
+    die "RECORD ON $chr OUTSIDE THE SHARD IN '$vcf', THE DKFZ IMAGE DOES NOT HONOUR chromosomeIndices\n" if (!$chromosomes{$chr});
+  }
+  close VCF or die "CANNOT READ FILE: '$vcf'\n";
+}
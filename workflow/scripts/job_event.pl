@@ -0,0 +1,49 @@
+use strict;
+use Fcntl qw(:flock);
+use File::Basename;
+use File::Path qw(make_path);
+use Time::HiRes qw(time);
+
+# this script appends one start or end event of a workflow job to the NDJSON event log
+# the bytes are the storage reads and writes of the calling job shell and the children it waited for,
+# work done inside docker containers is accounted to the docker daemon and does not show up here
+# a freed event records the bytes a job released on disk, it comes between the start and end of that job
+# a transfer event records the bytes a job moved and the seconds it took once the transfer scheduler released it, likewise
+
+my ($events, $event, $job, $donor, $aliquot, $value, $seconds) = @ARGV;
+
+die "USAGE: job_event.pl <events file> <start|end|freed|transfer> <job> <donor or -> <aliquot or -> [exit code|freed bytes|bytes seconds]\n"
+  if (!defined($aliquot) || ($event ne "start" && $event ne "end" && $event ne "freed" && $event ne "transfer")
+    || ($event ne "start" && !defined($value)) || ($event eq "transfer" && !defined($seconds)));
+
+my ($bytes_in, $bytes_out) = (0, 0);
+my $shell = getppid();
+if (open IO, '<', "/proc/$shell/io") {
+  while (<IO>) {
+    $bytes_in = $1 if (/^read_bytes:\s+(\d+)/);
+    $bytes_out = $1 if (/^write_bytes:\s+(\d+)/);
+  }
+  close IO;
+}
+
+my $line = "{\"event\":\"$event\",\"time\":" . sprintf("%.3f", time()) . ",\"job\":" . quote($job) . ",\"donor\":" . quote($donor eq "-" ? "" : $donor)
+  . ",\"aliquot\":" . quote($aliquot eq "-" ? "" : $aliquot) . ",\"pid\":$shell,\"bytes_in\":$bytes_in,\"bytes_out\":$bytes_out";
+$line .= ",\"exit_code\":" . int($value) if ($event eq "end");
+$line .= ",\"freed_bytes\":" . ($value =~ /^\d+$/ ? $value : 0) if ($event eq "freed");
+$line .= ",\"transfer_bytes\":" . ($value =~ /^\d+$/ ? $value : 0) . ",\"transfer_seconds\":" . ($seconds =~ /^\d+$/ ? $seconds : 0)
+  if ($event eq "transfer");
+$line .= "}\n";
+
+make_path(dirname($events));
+open OUT, '>>', $events or die "CANNOT WRITE FILE: '$events'\n";
+flock(OUT, LOCK_EX);
+print OUT $line;
+close OUT;
+
+
+sub quote {
+    my ($value) = @_;
+    $value =~ s/(["\\])/\\$1/g;
+    $value =~ s/([\x00-\x1f])/sprintf("\\u%04x", ord($1))/ge;
+    return "\"$value\"";
+}
@@ -0,0 +1,53 @@
+use strict;
+use File::Find;
+use File::Path qw(make_path);
+
+# this script merges the unpacked result tarballs of the SNV shards into one tree with the layout of an unsharded run
+# a file found in one shard is moved to the same path, text files found in several shards are concatenated in shard
+# order keeping only the leading '#' header lines of the first, any other file found in several shards is kept once
+# per shard with .shard_<n> before its extension
+
+my ($target, @shards) = @ARGV;
+
+die "USAGE: merge_shard_trees.pl <target directory> <shard directory>...\n" if (scalar(@shards) == 0);
+
+# relative path to the shards holding it, in shard order
+my %copies;
+my @dirs;
+for (my $n=0; $n<scalar(@shards); $n++) {
+  my $root = $shards[$n];
+  find({ no_chdir => 1, wanted => sub {
+    return if ($File::Find::name eq $root);
+    my $path = substr($File::Find::name, length($root) + 1);
+    if (-d $File::Find::name) { push @dirs, $path; }
+    else { push @{$copies{$path}}, $n; }
+  } }, $root);
+}
+
+make_path($target);
+foreach my $dir (@dirs) { make_path("$target/$dir"); }
+
+foreach my $path (sort keys %copies) {
+  my @in = @{$copies{$path}};
+  if (scalar(@in) == 1) {
+    rename("$shards[$in[0]]/$path", "$target/$path") or die "CANNOT MOVE FILE: '$shards[$in[0]]/$path'\n";
+  } elsif (scalar(grep { -T "$shards[$_]/$path" } @in) == scalar(@in)) {
+    open OUT, '>', "$target/$path" or die "CANNOT WRITE FILE: '$target/$path'\n";
+    for (my $i=0; $i<scalar(@in); $i++) {
+      open IN, '<', "$shards[$in[$i]]/$path" or die "CANNOT OPEN FILE: '$shards[$in[$i]]/$path'\n";
+      my $header = 1;
+      while (<IN>) {
+        $header = 0 if (!/^#/);
+        print OUT $_ if ($i == 0 || !$header);
+      }
+      close IN;
+    }
+    close OUT or die "CANNOT WRITE FILE: '$target/$path'\n";
+  } else {
+    foreach my $n (@in) {
+      my $copy = $path;
+      $copy =~ s/((\.[^.\/]+)?(\.gz)?)$/.shard_$n$1/;
+      rename("$shards[$n]/$path", "$target/$copy") or die "CANNOT MOVE FILE: '$shards[$n]/$path'\n";
+    }
+  }
+}
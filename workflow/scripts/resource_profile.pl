@@ -0,0 +1,160 @@
+use strict;
+
+# this script splits the cores and memory of the host between the containers that run at the same time
+# arguments are the reserved memory in GB followed by NAME=WEIGHT pairs, it prints NAME_DOCKER_RESOURCES
+# variables that can be sourced by a job and passed to docker run
+# NAME=WEIGHT:COUNT splits the share of NAME again between COUNT containers running at the same time and prints
+# NAME_0_DOCKER_RESOURCES to NAME_<COUNT-1>_DOCKER_RESOURCES instead
+# NAME=@OTHER gives NAME the whole share of OTHER, for containers that never run at the same time as OTHER
+
+my $reserved_gb = shift @ARGV;
+my @names;
+my %weights;
+my %counts;
+my @aliases;
+my %shares;
+my $total_weight = 0;
+
+foreach my $arg (@ARGV) {
+  my ($name, $share) = split /=/, $arg;
+  if (defined($share) && $share =~ /^@(\S+)$/) {
+    push @aliases, [$name, $1];
+    next;
+  }
+  my ($weight, $count) = split /:/, (defined($share) ? $share : "");
+  $count = 1 if (!defined($count));
+  die "BAD WEIGHT: '$arg'\n" if (!defined($weight) || $weight <= 0 || $count !~ /^\d+$/ || $count < 1);
+  push @names, $name;
+  $weights{$name} = $weight;
+  $counts{$name} = $count;
+  $total_weight += $weight;
+}
+
+# only the cpus this process may run on, the wrapper can itself be confined to part of the host
+my %allowed;
+if (open IN, '<', "/proc/self/status") {
+  while (<IN>) {
+    if (/^Cpus_allowed_list:\s+(\S+)/) { %allowed = map { $_ => 1 } expand($1); }
+  }
+  close IN;
+}
+
+# cpus grouped by NUMA node when the host exposes them, otherwise a single node
+my @cpus;
+my %cpu_node;
+my @nodes = sort { node_id($a) <=> node_id($b) } glob("/sys/devices/system/node/node[0-9]*");
+foreach my $node (@nodes) {
+  my $id = node_id($node);
+  open IN, '<', "$node/cpulist" or next;
+  my $list = <IN>;
+  close IN;
+  chomp $list;
+  foreach my $cpu (expand($list)) {
+    next if (scalar(keys %allowed) > 0 && !$allowed{$cpu});
+    push @cpus, $cpu;
+    $cpu_node{$cpu} = $id;
+  }
+}
+if (scalar(@cpus) == 0 && scalar(keys %allowed) > 0) {
+  @cpus = sort { $a <=> $b } keys %allowed;
+}
+if (scalar(@cpus) == 0) {
+  my $nproc = `nproc`;
+  chomp $nproc;
+  @cpus = (0 .. $nproc - 1);
+}
+my %used_nodes = map { $cpu_node{$_} => 1 } grep { defined($cpu_node{$_}) } @cpus;
+my $numa = scalar(keys %used_nodes) > 1;
+
+# memory in MB, keeping the reserve for the host and the wrapper itself
+my $mem_mb = 0;
+open IN, '<', "/proc/meminfo" or die "CANNOT OPEN FILE: '/proc/meminfo'\n";
+while (<IN>) {
+  if (/^MemTotal:\s+(\d+)\s+kB/) { $mem_mb = int($1 / 1024); }
+}
+close IN;
+$mem_mb -= $reserved_gb * 1024;
+die "NOT ENOUGH MEMORY AFTER RESERVING $reserved_gb GB\n" if ($mem_mb <= 0);
+
+# contiguous slices of the cpu list so each container stays on as few nodes as possible
+my $offset = 0;
+for (my $i=0; $i<scalar(@names); $i++) {
+  my $name = $names[$i];
+  my $count = int(scalar(@cpus) * $weights{$name} / $total_weight);
+  $count = 1 if ($count < 1);
+  $count = scalar(@cpus) - $offset if ($i == scalar(@names) - 1 || $offset + $count > scalar(@cpus));
+  if ($count < 1) {
+    # hosts with fewer cores than containers share the last core
+    $offset = scalar(@cpus) - 1;
+    $count = 1;
+  }
+  my @slice = @cpus[$offset .. $offset + $count - 1];
+  $offset += $count;
+
+  my $mem = int($mem_mb * $weights{$name} / $total_weight);
+  $shares{$name} = [$mem, @slice];
+  if ($counts{$name} == 1) {
+    print uc($name) . "_DOCKER_RESOURCES=\"" . resources($mem, @slice) . "\"\n";
+    next;
+  }
+  # containers of the same caller running at once get equal parts, sharing cores when there are fewer than containers
+  for (my $j=0; $j<$counts{$name}; $j++) {
+    my $first = int(scalar(@slice) * $j / $counts{$name});
+    my $last = int(scalar(@slice) * ($j + 1) / $counts{$name}) - 1;
+    $last = $first if ($last < $first);
+    print uc($name) . "_" . $j . "_DOCKER_RESOURCES=\"" . resources(int($mem / $counts{$name}), @slice[$first .. $last]) . "\"\n";
+  }
+}
+foreach my $alias (@aliases) {
+  my ($name, $other) = @{$alias};
+  die "NO SHARE FOR '$other'\n" if (!defined($shares{$other}));
+  print uc($name) . "_DOCKER_RESOURCES=\"" . resources(@{$shares{$other}}) . "\"\n";
+}
+
+
+sub resources {
+  my ($mem, @slice) = @_;
+  my $resources = "--cpuset-cpus=" . compress(@slice) . " --memory=" . $mem . "m";
+  if ($numa) {
+    my %used = map { $cpu_node{$_} => 1 } @slice;
+    $resources .= " --cpuset-mems=" . compress(sort { $a <=> $b } keys %used);
+  }
+  return $resources;
+}
+
+
+sub node_id {
+  my ($path) = @_;
+  $path =~ /node(\d+)$/;
+  return $1;
+}
+
+sub expand {
+  my ($list) = @_;
+  my @ret;
+  foreach my $range (split /,/, $list) {
+    my ($start, $stop) = split /-/, $range;
+    $stop = $start if (!defined($stop));
+    push @ret, ($start .. $stop);
+  }
+  return @ret;
+}
+
+sub compress {
+  my @ids = @_;
+  my @ranges;
+  my $start = $ids[0];
+  my $prev = $ids[0];
+  for (my $i=1; $i<=scalar(@ids); $i++) {
+    if ($i < scalar(@ids) && $ids[$i] == $prev + 1) {
+      $prev = $ids[$i];
+      next;
+    }
+    push @ranges, ($start == $prev ? $start : "$start-$prev");
+    if ($i < scalar(@ids)) {
+      $start = $ids[$i];
+      $prev = $ids[$i];
+    }
+  }
+  return join(",", @ranges);
+}
@@ -0,0 +1,95 @@
+use strict;
+
+# this script splits the primary chromosomes of a reference into contiguous shards of similar length
+# and writes one DKFZ ini per shard, the shards keep the reference order so their VCFs can simply be concatenated
+# the shards are balanced over 1-22, X and Y, MT and the unplaced, decoy and GL contigs are added to the last shard
+# so the whole reference is called
+
+my ($reference, $shards, $base_ini, $prefix) = @ARGV;
+
+die "USAGE: shard_genome.pl <reference fasta or fai> <shards> <base ini> <output prefix>\n" if (!defined($prefix) || $shards < 1);
+
+my @chromosomes;
+my @rest;
+foreach my $chr (read_lengths($reference)) {
+  if (primary($chr->[0])) { push @chromosomes, $chr; }
+  else { push @rest, $chr->[0]; }
+}
+die "ONLY ".scalar(@chromosomes)." CHROMOSOMES FOR $shards SHARDS\n" if (scalar(@chromosomes) < $shards);
+
+my $total = 0;
+foreach my $chr (@chromosomes) { $total += $chr->[1]; }
+
+# walk the chromosomes in order, closing a shard once it reaches its share of what is left
+my @assigned;
+my $remaining = $total;
+my $current = [];
+my $length = 0;
+for (my $i=0; $i<scalar(@chromosomes); $i++) {
+  my $chr = $chromosomes[$i];
+  push @{$current}, $chr->[0];
+  $length += $chr->[1];
+  my $open = $shards - scalar(@assigned);
+  my $left = scalar(@chromosomes) - $i - 1;
+  if ($open > 1 && ($length >= $remaining / $open || $left == $open - 1)) {
+    push @assigned, $current;
+    $remaining -= $length;
+    $current = [];
+    $length = 0;
+  }
+}
+push @assigned, $current;
+push @{$assigned[-1]}, @rest;
+
+my $ini = "";
+open IN, '<', $base_ini or die "CANNOT OPEN FILE: '$base_ini'\n";
+while (<IN>) { $ini .= $_; }
+close IN;
+
+for (my $i=0; $i<scalar(@assigned); $i++) {
+  open OUT, '>', "$prefix$i.ini" or die "CANNOT WRITE FILE: '$prefix$i.ini'\n";
+  print OUT $ini;
+  print OUT "chromosomeIndices=( ".join(" ", @{$assigned[$i]})." )\n";
+  close OUT;
+  print "shard $i: ".join(" ", @{$assigned[$i]})."\n";
+}
+
+
+sub read_lengths {
+    my ($file) = @_;
+
+    my @ret;
+    my $fai = ($file =~ /\.fai$/) ? $file : "$file.fai";
+    if (-f $fai) {
+      open IN, '<', $fai or die "CANNOT OPEN FILE: '$fai'\n";
+      while (<IN>) {
+        my @tokens = split /\t/;
+        push @ret, [$tokens[0], $tokens[1]];
+      }
+      close IN;
+      return @ret;
+    }
+
+    # no index, count the bases of each sequence
+    open IN, '<', $file or die "CANNOT OPEN FILE: '$file'\n";
+    my $name;
+    my $length = 0;
+    while (<IN>) {
+      chomp;
+      if (/^>(\S+)/) {
+        push @ret, [$name, $length] if (defined($name));
+        $name = $1;
+        $length = 0;
+      } else {
+        $length += length($_);
+      }
+    }
+    push @ret, [$name, $length] if (defined($name));
+    close IN;
+    return @ret;
+}
+
+sub primary {
+    my ($name) = @_;
+    return $name =~ /^(chr)?([0-9]+|X|Y)$/;
+}